@@ -7,11 +7,9 @@ import cern.jet.random.Normal;
 import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
 import marc.henrard.book.algorithmicdifferentiation.mathad.MathSad;
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeAad;
-import marc.henrard.book.algorithmicdifferentiation.tape.TapeEntryAad;
 import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
 import marc.henrard.book.algorithmicdifferentiation.type.DoubleDerivatives;
 import marc.henrard.book.algorithmicdifferentiation.type.DoubleSad;
-import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
 
 /**
  * Implementation of the Black-Scholes formula for option pricing.
@@ -330,17 +328,9 @@ public class BlackFormula {
     inputBar[2] = omega * (forward * nPlus - strike * nMinus) * priceBar;
     inputBar[1] = sqrtExpiry * periodVolatilityBar;
     inputBar[0] = numeraire * omega * nPlus * priceBar;
-    int indexPrice0 = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        forwardAad.tapeIndex(), price, inputBar[0]));
-    int indexPrice1 = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        volatilityAad.tapeIndex(), indexPrice0, price, inputBar[1]));
-    int indexPrice2 = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        numeraireAad.tapeIndex(), indexPrice1, price, inputBar[2]));
-    int indexPrice3 = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        strikeAad.tapeIndex(), indexPrice2, price, inputBar[3]));
-    int indexPrice4 = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        expiryAad.tapeIndex(), indexPrice3, price, inputBar[4]));
-    return new DoubleAad(price, indexPrice4);
+    int indexPrice = tape.addManualEntry(price, new int[] {forwardAad.tapeIndex(), volatilityAad.tapeIndex(), 
+        numeraireAad.tapeIndex(), strikeAad.tapeIndex(), expiryAad.tapeIndex()}, inputBar);
+    return new DoubleAad(price, indexPrice);
   }
   
 }
@@ -4,11 +4,10 @@
 package marc.henrard.book.algorithmicdifferentiation.finance.formula;
 
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeAad;
-import marc.henrard.book.algorithmicdifferentiation.tape.TapeEntryAad;
+import marc.henrard.book.algorithmicdifferentiation.tape.TapeAadPool;
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeUtils;
 import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
 import marc.henrard.book.algorithmicdifferentiation.type.DoubleDerivatives;
-import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
 
 /**
  * Implementation of the SABR model with implied volatility by approximation formula for option pricing.
@@ -120,6 +119,41 @@ public class SabrPriceFormula {
     return price;
   }
   
+  /**
+   * Computes the option price in the SABR model with implied volatility and record the operations in the Tape.
+   * <p>
+   * The SABR implied volatility is computed with automatic AAD in a preaccumulation scope of the tape: it is 
+   * recorded as one entry with its local gradient instead of the full sequence of operations.
+   * @param forward The forward price.
+   * @param alpha SABR Alpha parameter.
+   * @param beta SABR Beta parameter.
+   * @param rho SABR Rho parameter. 
+   * @param nu SABR Nu parameter.
+   * @param numeraire The numeraire.
+   * @param strike The option strike.
+   * @param expiry The option expiry.
+   * @param isCall The call (true) / put (false) flag.
+   * @param tape The tape where the operations are recorded. The tape is modified by the method.
+   * @return The price and its derivatives.
+   */
+  public static DoubleAad price_Aad_Automatic_Scope(
+      DoubleAad forward, 
+      DoubleAad alpha, 
+      DoubleAad beta, 
+      DoubleAad rho, 
+      DoubleAad nu, 
+      DoubleAad numeraire, 
+      DoubleAad strike, 
+      DoubleAad expiry, 
+      boolean isCall, 
+      TapeAad tape) {
+    tape.openScope();
+    DoubleAad volatility = tape.closeScope(SabrVolatilityFormula
+        .volatility_Aad_Automatic(forward, alpha, beta, rho, nu, strike, expiry, tape));
+    DoubleAad price = BlackFormula.price_Aad_Automatic(forward, volatility, numeraire, strike, expiry, isCall, tape);
+    return price;
+  }
+  
   /**
    * Computes the option price in the SABR model with implied volatility and record the operations in the Tape.
    * <p>
@@ -159,7 +193,7 @@ public class SabrPriceFormula {
    * to the (8) inputs.
    * <p>
    * The signature of the method is a manual Aad one, but inside the implied volatility is computed with manual Aad
-   * and the Black formula with automatic Aad.
+   * and the Black formula with automatic Aad. The tape is borrowed from {@link TapeAadPool#DEFAULT}.
    * @param forward The forward price.
    * @param alpha SABR Alpha parameter.
    * @param beta SABR Beta parameter.
@@ -182,21 +216,21 @@ public class SabrPriceFormula {
       double expiry, 
       boolean isCall) {
     DoubleDerivatives volatility = SabrVolatilityFormula.volatility_Aad(forward, alpha, beta, rho, nu, strike, expiry);
-    TapeAad tape = new TapeAad();
-    int iForward = tape.addEntry(new TapeEntryAad(OperationTypeAad.INPUT, forward));
-    DoubleAad forwardAad = new DoubleAad(forward, iForward);
-    int iVolatility = tape.addEntry(new TapeEntryAad(OperationTypeAad.INPUT, volatility.value()));
-    DoubleAad volatilityAad = new DoubleAad(volatility.value(), iVolatility);
-    int iNumeraire = tape.addEntry(new TapeEntryAad(OperationTypeAad.INPUT, numeraire));
-    DoubleAad numeraireAad = new DoubleAad(numeraire, iNumeraire);
-    int iStrike = tape.addEntry(new TapeEntryAad(OperationTypeAad.INPUT, strike));
-    DoubleAad strikeAad = new DoubleAad(strike, iStrike);
-    int iExpiry = tape.addEntry(new TapeEntryAad(OperationTypeAad.INPUT, expiry));
-    DoubleAad expiryAad = new DoubleAad(expiry, iExpiry);
-    DoubleAad priceAad = BlackFormula
-        .price_Aad_Automatic(forwardAad, volatilityAad, numeraireAad, strikeAad, expiryAad, isCall, tape);
-    TapeUtils.interpret(tape);
-    double[] priceDerivatives = TapeUtils.extractDerivatives(tape);
+    TapeAad tape = TapeAadPool.DEFAULT.borrow();
+    DoubleAad priceAad;
+    double[] priceDerivatives;
+    try {
+      DoubleAad forwardAad = DoubleAad.input(forward, tape);
+      DoubleAad volatilityAad = DoubleAad.input(volatility.value(), tape);
+      DoubleAad numeraireAad = DoubleAad.input(numeraire, tape);
+      DoubleAad strikeAad = DoubleAad.input(strike, tape);
+      DoubleAad expiryAad = DoubleAad.input(expiry, tape);
+      priceAad = BlackFormula
+          .price_Aad_Automatic(forwardAad, volatilityAad, numeraireAad, strikeAad, expiryAad, isCall, tape);
+      priceDerivatives = TapeUtils.interpret(tape);
+    } finally {
+      TapeAadPool.DEFAULT.release(tape);
+    }
     double priceBar = 1.0d;
     double volatilityBar = priceDerivatives[1];
     double[] inputBar = new double[8]; // forward, alpha, beta, rho, nu, numeraire, strike, expiry
@@ -246,16 +280,8 @@ public class SabrPriceFormula {
         SabrVolatilityFormula.volatility_Aad_Automatic(forward, alpha, beta, rho, nu, strike, expiry, tape);
     DoubleDerivatives price = BlackFormula.price_Aad_Optimized(forward.value(), volatility.value(), 
         numeraire.value(), strike.value(), expiry.value(), isCall);
-    int indexForward = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        forward.tapeIndex(), price.value(), price.derivatives()[0]));
-    int indexVolatility = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        volatility.tapeIndex(), indexForward, price.value(), price.derivatives()[1]));
-    int indexNumeraire = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        numeraire.tapeIndex(), indexVolatility, price.value(), price.derivatives()[2]));
-    int indexStrike = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        strike.tapeIndex(), indexNumeraire, price.value(), price.derivatives()[3]));
-    int indexPrice = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        expiry.tapeIndex(), indexStrike, price.value(), price.derivatives()[4]));
+    int indexPrice = tape.addManualEntry(price.value(), new int[] {forward.tapeIndex(), volatility.tapeIndex(), 
+        numeraire.tapeIndex(), strike.tapeIndex(), expiry.tapeIndex()}, price.derivatives());
     DoubleAad priceAad = new DoubleAad(price.value(), indexPrice);
     return priceAad;
   }
@@ -290,20 +316,9 @@ public class SabrPriceFormula {
       TapeAad tape) {
     DoubleDerivatives volatility = SabrVolatilityFormula.volatility_Aad(forward.value(), alpha.value(), beta.value(), 
         rho.value(), nu.value(), strike.value(), expiry.value());
-    int indexForward = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        forward.tapeIndex(), volatility.value(), volatility.derivatives()[0]));
-    int indexAlpha = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        alpha.tapeIndex(), indexForward, volatility.value(), volatility.derivatives()[1]));
-    int indexBeta = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        beta.tapeIndex(), indexAlpha, volatility.value(), volatility.derivatives()[2]));
-    int indexRho = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        rho.tapeIndex(), indexBeta, volatility.value(), volatility.derivatives()[3]));
-    int indexNu = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        nu.tapeIndex(), indexRho, volatility.value(), volatility.derivatives()[4]));
-    int indexStrike = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        strike.tapeIndex(), indexNu, volatility.value(), volatility.derivatives()[5]));
-    int indexVolatility = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        expiry.tapeIndex(), indexStrike, volatility.value(), volatility.derivatives()[6]));
+    int indexVolatility = tape.addManualEntry(volatility.value(), new int[] {forward.tapeIndex(), alpha.tapeIndex(), 
+        beta.tapeIndex(), rho.tapeIndex(), nu.tapeIndex(), strike.tapeIndex(), expiry.tapeIndex()}, 
+        volatility.derivatives());
     DoubleAad volatilityAad = new DoubleAad(volatility.value(), indexVolatility);
     DoubleAad price = BlackFormula.price_Aad_Automatic(forward, volatilityAad, numeraire, strike, expiry, isCall, tape);
     return price;
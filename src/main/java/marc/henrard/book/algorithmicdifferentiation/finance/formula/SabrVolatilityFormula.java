@@ -5,10 +5,8 @@ package marc.henrard.book.algorithmicdifferentiation.finance.formula;
 
 import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeAad;
-import marc.henrard.book.algorithmicdifferentiation.tape.TapeEntryAad;
 import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
 import marc.henrard.book.algorithmicdifferentiation.type.DoubleDerivatives;
-import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
 
 /**
  * Implementation of the SABR implied volatility approximation formula for option pricing.
@@ -206,7 +204,9 @@ public class SabrVolatilityFormula {
     DoubleAad logfK = MathAad.log(MathAad.dividedBy(forward, strike, tape), tape);
     DoubleAad z = MathAad.multipliedBy(MathAad.multipliedBy(MathAad.dividedBy(nu, alpha, tape), fKbeta, tape), logfK, tape);
     DoubleAad zxz;
-    if(Math.abs(z.value()) < Z_RANGE) { // z close to 0, first order approximation for x/x(z)
+    // The test on |z| is recorded as one guard, the same for z positive or negative
+    if (MathAad.compareAbs(z, Z_RANGE, tape) < 0) {
+      // z close to 0, first order approximation for x/x(z)
       zxz =  MathAad.plus(MathAad.multipliedBy(MathAad.multipliedBy(z, rho, tape), -0.5d, tape), 1.0d, tape);
     } else {
       DoubleAad sqz =  MathAad.sqrt(MathAad.plus(MathAad.plus(MathAad.multipliedBy(MathAad.multipliedBy(rho, z, tape), 
@@ -352,21 +352,10 @@ public class SabrVolatilityFormula {
     inputBar[5] += 0.5 * beta1 * fKbeta / strike * fKbetaBar;
     inputBar[5] += -logfKBar / strike;
     inputBar[6] += (factor31 + factor32 + factor33) * factor3Bar;
-    int indexVolatility0 = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        forwardAad.tapeIndex(), volatility, inputBar[0]));
-    int indexVolatility1 = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        alphaAad.tapeIndex(), indexVolatility0, volatility, inputBar[1]));
-    int indexVolatility2 = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        betaAad.tapeIndex(), indexVolatility1, volatility, inputBar[2]));
-    int indexVolatility3 = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        rhoAad.tapeIndex(), indexVolatility2, volatility, inputBar[3]));
-    int indexVolatility4 = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        nuAad.tapeIndex(), indexVolatility3, volatility, inputBar[4]));
-    int indexVolatility5 = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        strikeAad.tapeIndex(), indexVolatility4, volatility, inputBar[5]));
-    int indexVolatility6 = tape.addEntry(new TapeEntryAad(OperationTypeAad.MANUAL, 
-        expiryAad.tapeIndex(), indexVolatility5, volatility, inputBar[6]));
-    DoubleAad volatilityAad = new DoubleAad(volatility, indexVolatility6);
+    int indexVolatility = tape.addManualEntry(volatility, new int[] {forwardAad.tapeIndex(), alphaAad.tapeIndex(), 
+        betaAad.tapeIndex(), rhoAad.tapeIndex(), nuAad.tapeIndex(), strikeAad.tapeIndex(), expiryAad.tapeIndex()}, 
+        inputBar);
+    DoubleAad volatilityAad = new DoubleAad(volatility, indexVolatility);
     return volatilityAad;
   }
 
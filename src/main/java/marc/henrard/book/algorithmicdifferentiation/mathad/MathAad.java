@@ -4,13 +4,15 @@
 package marc.henrard.book.algorithmicdifferentiation.mathad;
 
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeAad;
-import marc.henrard.book.algorithmicdifferentiation.tape.TapeEntryAad;
 import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
 import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
 import cern.jet.random.Normal;
 
 /**
  * Class with basic mathematical operations applied to {@link DoubleAad}.
+ * <p>
+ * The local partial derivatives of each operation are provided to the tape when the operation is recorded. 
+ * The ones requiring the evaluation of a transcendental function are computed only if the tape records them.
  */
 public class MathAad {
   
@@ -27,7 +29,8 @@ public class MathAad {
    */
   public static DoubleAad plus(DoubleAad d1, DoubleAad d2, TapeAad tape) {
     double valueOutput = d1.value() + d2.value();
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.ADDITION, d1.tapeIndex(), d2.tapeIndex(), valueOutput));
+    int index = tape.addEntry(OperationTypeAad.ADDITION, d1.tapeIndex(), d2.tapeIndex(), valueOutput, 0.0d, 
+        1.0d, 1.0d);
     return new DoubleAad(valueOutput, index);
   }
 
@@ -40,7 +43,7 @@ public class MathAad {
    */
   public static DoubleAad plus(DoubleAad d, double o, TapeAad tape) {
     double valueOutput = d.value() + o;
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.ADDITION1, d.tapeIndex(), valueOutput, o));
+    int index = tape.addEntry(OperationTypeAad.ADDITION1, d.tapeIndex(), -1, valueOutput, o, 1.0d, 0.0d);
     return new DoubleAad(valueOutput, index);
   }
   
@@ -54,7 +57,8 @@ public class MathAad {
    */
   public static DoubleAad minus(DoubleAad d1, DoubleAad d2, TapeAad tape) {
     double valueOutput = d1.value() - d2.value();
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.SUBTRACTION, d1.tapeIndex(), d2.tapeIndex(), valueOutput));
+    int index = tape.addEntry(OperationTypeAad.SUBTRACTION, d1.tapeIndex(), d2.tapeIndex(), valueOutput, 0.0d, 
+        1.0d, -1.0d);
     return new DoubleAad(valueOutput, index);
   }
   
@@ -68,7 +72,8 @@ public class MathAad {
    */
   public static DoubleAad multipliedBy(DoubleAad d1, DoubleAad d2, TapeAad tape) {
     double valueOutput = d1.value() * d2.value();
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.MULTIPLICATION, d1.tapeIndex(), d2.tapeIndex(), valueOutput));
+    int index = tape.addEntry(OperationTypeAad.MULTIPLICATION, d1.tapeIndex(), d2.tapeIndex(), valueOutput, 0.0d, 
+        d2.value(), d1.value());
     return new DoubleAad(valueOutput, index);
   }
 
@@ -81,7 +86,7 @@ public class MathAad {
    */
   public static DoubleAad multipliedBy(DoubleAad d1, double d2, TapeAad tape) {
     double valueOutput = d1.value() * d2;
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.MULTIPLICATION1, d1.tapeIndex(), valueOutput, d2));
+    int index = tape.addEntry(OperationTypeAad.MULTIPLICATION1, d1.tapeIndex(), -1, valueOutput, d2, d2, 0.0d);
     return new DoubleAad(valueOutput, index);
   }
   
@@ -95,7 +100,8 @@ public class MathAad {
    */
   public static DoubleAad dividedBy(DoubleAad d1, DoubleAad d2, TapeAad tape) {
     double valueOutput = d1.value() / d2.value();
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.DIVISION, d1.tapeIndex(), d2.tapeIndex(), valueOutput));
+    int index = tape.addEntry(OperationTypeAad.DIVISION, d1.tapeIndex(), d2.tapeIndex(), valueOutput, 0.0d, 
+        1.0d / d2.value(), -valueOutput / d2.value());
     return new DoubleAad(valueOutput, index);
   }
   
@@ -109,7 +115,9 @@ public class MathAad {
    */
   public static DoubleAad pow(DoubleAad d1, DoubleAad d2, TapeAad tape) {
     double valueOutput = Math.pow(d1.value(), d2.value());
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.POW, d1.tapeIndex(), d2.tapeIndex(), valueOutput));
+    double partial2 = tape.isRecordingPartials() ? valueOutput * Math.log(d1.value()) : 0.0d;
+    int index = tape.addEntry(OperationTypeAad.POW, d1.tapeIndex(), d2.tapeIndex(), valueOutput, 0.0d, 
+        d2.value() * valueOutput / d1.value(), partial2);
     return new DoubleAad(valueOutput, index);
   }
   
@@ -123,7 +131,8 @@ public class MathAad {
    */
   public static DoubleAad pow(DoubleAad d1, double d2, TapeAad tape) {
     double valueOutput = Math.pow(d1.value(), d2);
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.POW1, d1.tapeIndex(), valueOutput, d2));
+    int index = tape.addEntry(OperationTypeAad.POW1, d1.tapeIndex(), -1, valueOutput, d2, 
+        d2 * valueOutput / d1.value(), 0.0d);
     return new DoubleAad(valueOutput, index);
   }
   
@@ -136,7 +145,8 @@ public class MathAad {
    */
   public static DoubleAad sin(DoubleAad d, TapeAad tape) {
     double valueOutput = Math.sin(d.value());
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.SIN, d.tapeIndex(), valueOutput));
+    double partial = tape.isRecordingPartials() ? Math.cos(d.value()) : 0.0d;
+    int index = tape.addEntry(OperationTypeAad.SIN, d.tapeIndex(), -1, valueOutput, 0.0d, partial, 0.0d);
     return new DoubleAad(valueOutput, index);
   }
   
@@ -149,7 +159,8 @@ public class MathAad {
    */
   public static DoubleAad cos(DoubleAad d1, TapeAad tape) {
     double valueOutput = Math.cos(d1.value());
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.COS, d1.tapeIndex(), valueOutput));
+    double partial = tape.isRecordingPartials() ? -Math.sin(d1.value()) : 0.0d;
+    int index = tape.addEntry(OperationTypeAad.COS, d1.tapeIndex(), -1, valueOutput, 0.0d, partial, 0.0d);
     return new DoubleAad(valueOutput, index);
   }
   
@@ -162,7 +173,7 @@ public class MathAad {
    */
   public static DoubleAad sqrt(DoubleAad d1, TapeAad tape) {
     double valueOutput = Math.sqrt(d1.value());
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.SQRT, d1.tapeIndex(), valueOutput));
+    int index = tape.addEntry(OperationTypeAad.SQRT, d1.tapeIndex(), -1, valueOutput, 0.0d, 0.5d / valueOutput, 0.0d);
     return new DoubleAad(valueOutput, index);
   }
   
@@ -175,7 +186,7 @@ public class MathAad {
    */
   public static DoubleAad exp(DoubleAad d1, TapeAad tape) {
     double valueOutput = Math.exp(d1.value());
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.EXP, d1.tapeIndex(), valueOutput));
+    int index = tape.addEntry(OperationTypeAad.EXP, d1.tapeIndex(), -1, valueOutput, 0.0d, valueOutput, 0.0d);
     return new DoubleAad(valueOutput, index);
   }
   
@@ -188,7 +199,7 @@ public class MathAad {
    */
   public static DoubleAad log(DoubleAad d1, TapeAad tape) {
     double valueOutput = Math.log(d1.value());
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.LOG, d1.tapeIndex(), valueOutput));
+    int index = tape.addEntry(OperationTypeAad.LOG, d1.tapeIndex(), -1, valueOutput, 0.0d, 1.0d / d1.value(), 0.0d);
     return new DoubleAad(valueOutput, index);
   }
   
@@ -201,8 +212,43 @@ public class MathAad {
    */
   public static DoubleAad normalCdf(DoubleAad d1, TapeAad tape) {
     double valueOutput = NORMAL.cdf(d1.value());
-    int index = tape.addEntry(new TapeEntryAad(OperationTypeAad.NORMALCDF, d1.tapeIndex(), valueOutput));
+    double partial = tape.isRecordingPartials() ? NORMAL.pdf(d1.value()) : 0.0d;
+    int index = tape.addEntry(OperationTypeAad.NORMALCDF, d1.tapeIndex(), -1, valueOutput, 0.0d, partial, 0.0d);
     return new DoubleAad(valueOutput, index);
   }
 
+  /**
+   * Compares an augmented double with a primitive double and records the comparison in the tape.
+   * <p>
+   * The comparison has no derivative. It is recorded as a guard: when the tape is replayed with other inputs,
+   * a different result of the comparison indicates that the code would take another branch.
+   * @param d The augmented double.
+   * @param o The primitive double.
+   * @param tape The tape where the comparison should be recorded.
+   * @return The sign of the difference: -1 if d is smaller than o, 0 if they are equal, 1 if d is larger than o.
+   */
+  public static int compare(DoubleAad d, double o, TapeAad tape) {
+    int sign = (d.value() < o) ? -1 : ((d.value() > o) ? 1 : 0);
+    tape.addEntry(OperationTypeAad.GUARD, d.tapeIndex(), -1, sign, o, 0.0d, 0.0d);
+    return sign;
+  }
+
+  /**
+   * Compares the absolute value of an augmented double with a primitive double and records the comparison in
+   * the tape.
+   * <p>
+   * The comparison is recorded as one guard, see {@link #compare(DoubleAad, double, TapeAad)}: the tape recorded
+   * for a value can be replayed for the opposite value.
+   * @param d The augmented double.
+   * @param o The primitive double.
+   * @param tape The tape where the comparison should be recorded.
+   * @return The sign of the difference: -1 if |d| is smaller than o, 0 if they are equal, 1 if |d| is larger than o.
+   */
+  public static int compareAbs(DoubleAad d, double o, TapeAad tape) {
+    double abs = Math.abs(d.value());
+    int sign = (abs < o) ? -1 : ((abs > o) ? 1 : 0);
+    tape.addEntry(OperationTypeAad.GUARD_ABS, d.tapeIndex(), -1, sign, o, 0.0d, 0.0d);
+    return sign;
+  }
+
 }
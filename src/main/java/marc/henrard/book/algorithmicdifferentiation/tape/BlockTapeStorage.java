@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Storage of the entries of a {@link TapeAad} as fixed length records in byte buffer blocks.
+ * <p>
+ * Each block holds {@link #BLOCK_SIZE} entries. The record of an entry contains the two argument indices, the value,
+ * the extra value, the operation type and, if recorded, the two partial derivatives. The subclasses decide where
+ * the blocks are held.
+ */
+abstract class BlockTapeStorage extends TapeStorage {
+
+  /** The binary logarithm of the number of entries in a block. */
+  static final int BLOCK_SHIFT = 16;
+  /** The number of entries in a block. */
+  static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  /** The mask giving the position of an entry in its block. */
+  static final int BLOCK_MASK = BLOCK_SIZE - 1;
+  /** The offsets of the fields in a record. */
+  private static final int INDEX_ARG1 = 0;
+  private static final int INDEX_ARG2 = 4;
+  private static final int VALUE = 8;
+  private static final int EXTRA_VALUE = 16;
+  private static final int OPERATION_TYPE = 24;
+  private static final int PARTIAL_ARG1 = 32;
+  private static final int PARTIAL_ARG2 = 40;
+  /** The length of a record, without and with partial derivatives. */
+  private static final int RECORD_LENGTH = 32;
+  private static final int RECORD_LENGTH_PARTIALS = 48;
+
+  /** The length of a record. */
+  final int recordLength;
+
+  /**
+   * Creates a storage.
+   * @param recordPartials Whether the partial derivatives are stored.
+   */
+  BlockTapeStorage(boolean recordPartials) {
+    recordLength = recordPartials ? RECORD_LENGTH_PARTIALS : RECORD_LENGTH;
+  }
+
+  /**
+   * Returns the number of bytes in a block.
+   * @return The block length.
+   */
+  int blockLength() {
+    return BLOCK_SIZE * recordLength;
+  }
+
+  /**
+   * Returns a block, to be read.
+   * @param blockIndex The block index.
+   * @return The block.
+   */
+  abstract ByteBuffer block(int blockIndex);
+
+  /**
+   * Returns a block, to be modified.
+   * @param blockIndex The block index.
+   * @return The block.
+   */
+  abstract ByteBuffer blockForWrite(int blockIndex);
+
+  @Override
+  void set(int index, byte operationType, int indexArg1, int indexArg2, double value, double extraValue) {
+    ByteBuffer block = blockForWrite(index >>> BLOCK_SHIFT);
+    int position = (index & BLOCK_MASK) * recordLength;
+    block.putInt(position + INDEX_ARG1, indexArg1);
+    block.putInt(position + INDEX_ARG2, indexArg2);
+    block.putDouble(position + VALUE, value);
+    block.putDouble(position + EXTRA_VALUE, extraValue);
+    block.put(position + OPERATION_TYPE, operationType);
+  }
+
+  @Override
+  void setPartials(int index, double partialArg1, double partialArg2) {
+    ByteBuffer block = blockForWrite(index >>> BLOCK_SHIFT);
+    int position = (index & BLOCK_MASK) * recordLength;
+    block.putDouble(position + PARTIAL_ARG1, partialArg1);
+    block.putDouble(position + PARTIAL_ARG2, partialArg2);
+  }
+
+  @Override
+  byte getOperationType(int index) {
+    return block(index >>> BLOCK_SHIFT).get((index & BLOCK_MASK) * recordLength + OPERATION_TYPE);
+  }
+
+  @Override
+  int getIndexArg1(int index) {
+    return block(index >>> BLOCK_SHIFT).getInt((index & BLOCK_MASK) * recordLength + INDEX_ARG1);
+  }
+
+  @Override
+  int getIndexArg2(int index) {
+    return block(index >>> BLOCK_SHIFT).getInt((index & BLOCK_MASK) * recordLength + INDEX_ARG2);
+  }
+
+  @Override
+  double getValue(int index) {
+    return block(index >>> BLOCK_SHIFT).getDouble((index & BLOCK_MASK) * recordLength + VALUE);
+  }
+
+  @Override
+  double getExtraValue(int index) {
+    return block(index >>> BLOCK_SHIFT).getDouble((index & BLOCK_MASK) * recordLength + EXTRA_VALUE);
+  }
+
+  @Override
+  double getPartialArg1(int index) {
+    return block(index >>> BLOCK_SHIFT).getDouble((index & BLOCK_MASK) * recordLength + PARTIAL_ARG1);
+  }
+
+  @Override
+  double getPartialArg2(int index) {
+    return block(index >>> BLOCK_SHIFT).getDouble((index & BLOCK_MASK) * recordLength + PARTIAL_ARG2);
+  }
+
+}
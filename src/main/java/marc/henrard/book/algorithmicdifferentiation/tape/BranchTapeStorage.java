@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+/**
+ * Storage of the entries of a branch {@link TapeAad}, recorded on top of the entries of a frozen prefix tape.
+ * <p>
+ * The entries of the prefix keep their indices and are read from the storage of the prefix, which is shared by
+ * all the branches and never modified. The entries of the branch follow, stored in a storage on the heap owned
+ * by the branch.
+ * <p>
+ * The values are not stored in one array indexed as the tape: the backward sweep reads the values of the prefix
+ * entries from the array of the prefix, if any, and the ones of the branch entries from {@link #branchValues()}.
+ * Nothing of the prefix is copied.
+ */
+final class BranchTapeStorage extends TapeStorage {
+
+  /** The storage of the prefix. */
+  private final TapeStorage prefix;
+  /** The number of entries of the prefix. */
+  private final int prefixSize;
+  /** The storage of the branch entries, the first one at index 0. */
+  private final HeapTapeStorage branch;
+
+  /**
+   * Creates a storage.
+   * @param prefix The storage of the prefix.
+   * @param prefixSize The number of entries of the prefix.
+   * @param capacity The initial capacity for the branch entries.
+   * @param recordPartials Whether the partial derivatives are stored.
+   */
+  BranchTapeStorage(TapeStorage prefix, int prefixSize, int capacity, boolean recordPartials) {
+    this.prefix = prefix;
+    this.prefixSize = prefixSize;
+    this.branch = new HeapTapeStorage(capacity, recordPartials);
+  }
+
+  /**
+   * Returns the storage of the prefix.
+   * @return The storage.
+   */
+  TapeStorage prefix() {
+    return prefix;
+  }
+
+  @Override
+  int firstIndex() {
+    return prefixSize;
+  }
+
+  @Override
+  int capacity() {
+    return prefixSize + branch.capacity();
+  }
+
+  @Override
+  void grow(int capacity) {
+    branch.grow(capacity - prefixSize);
+  }
+
+  @Override
+  void set(int index, byte operationType, int indexArg1, int indexArg2, double value, double extraValue) {
+    branch.set(index - prefixSize, operationType, indexArg1, indexArg2, value, extraValue);
+  }
+
+  @Override
+  void setPartials(int index, double partialArg1, double partialArg2) {
+    branch.setPartials(index - prefixSize, partialArg1, partialArg2);
+  }
+
+  @Override
+  byte getOperationType(int index) {
+    return (index < prefixSize) ? prefix.getOperationType(index) : branch.getOperationType(index - prefixSize);
+  }
+
+  @Override
+  int getIndexArg1(int index) {
+    return (index < prefixSize) ? prefix.getIndexArg1(index) : branch.getIndexArg1(index - prefixSize);
+  }
+
+  @Override
+  int getIndexArg2(int index) {
+    return (index < prefixSize) ? prefix.getIndexArg2(index) : branch.getIndexArg2(index - prefixSize);
+  }
+
+  @Override
+  double getValue(int index) {
+    return (index < prefixSize) ? prefix.getValue(index) : branch.getValue(index - prefixSize);
+  }
+
+  @Override
+  double getExtraValue(int index) {
+    return (index < prefixSize) ? prefix.getExtraValue(index) : branch.getExtraValue(index - prefixSize);
+  }
+
+  @Override
+  double getPartialArg1(int index) {
+    return (index < prefixSize) ? prefix.getPartialArg1(index) : branch.getPartialArg1(index - prefixSize);
+  }
+
+  @Override
+  double getPartialArg2(int index) {
+    return (index < prefixSize) ? prefix.getPartialArg2(index) : branch.getPartialArg2(index - prefixSize);
+  }
+
+  /**
+   * Returns the values of the branch entries, the first one at index 0.
+   * @return The array.
+   */
+  double[] branchValues() {
+    return branch.values();
+  }
+
+  @Override
+  boolean isValueRetained(int index) {
+    return (index < prefixSize) ? prefix.isValueRetained(index) : branch.isValueRetained(index - prefixSize);
+  }
+
+}
@@ -0,0 +1,348 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+/**
+ * Storage of the entries of a {@link TapeAad} shared by several threads recording concurrently.
+ * <p>
+ * The index space is divided in blocks of a fixed number of entries. A block is reserved by one writer with an atomic
+ * increment of the block counter; its entries are then written by that writer only, without lock. The blocks are
+ * stored in parallel primitive arrays, referenced from a directory of segments allocated on demand with an atomic
+ * compare-and-set. The storage is used through the {@link Writer} view of each recording thread and, once all the
+ * writers are done, directly by the frozen tape assembled by {@link TapeConcurrent}.
+ */
+final class ConcurrentTapeStorage extends TapeStorage {
+
+  /** The binary logarithm of the number of blocks in a segment of the directory. */
+  private static final int SEGMENT_SHIFT = 12;
+  /** The number of blocks in a segment of the directory. */
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+  /** The binary logarithm of the number of entries in a block. */
+  private final int blockShift;
+  /** The mask giving the position of an entry in its block. */
+  private final int blockMask;
+  /** Whether the partial derivatives are stored. */
+  private final boolean recordPartials;
+  /** The segments of the directory of blocks. */
+  private final AtomicReferenceArray<Block[]> segments;
+  /** The number of blocks reserved. */
+  private final AtomicInteger nbBlocks = new AtomicInteger();
+
+  /**
+   * Creates a storage.
+   * @param blockShift The binary logarithm of the number of entries in a block.
+   * @param recordPartials Whether the partial derivatives are stored.
+   */
+  ConcurrentTapeStorage(int blockShift, boolean recordPartials) {
+    this.blockShift = blockShift;
+    this.blockMask = (1 << blockShift) - 1;
+    this.recordPartials = recordPartials;
+    this.segments = new AtomicReferenceArray<>(((Integer.MAX_VALUE >>> blockShift) >>> SEGMENT_SHIFT) + 1);
+  }
+
+  /**
+   * Returns the number of entries in a block.
+   * @return The block size.
+   */
+  int blockSize() {
+    return 1 << blockShift;
+  }
+
+  /**
+   * Returns the number of blocks reserved.
+   * @return The number of blocks.
+   */
+  int nbBlocks() {
+    return nbBlocks.get();
+  }
+
+  /**
+   * Returns the number of the writer which reserved a block.
+   * @param blockIndex The block index.
+   * @return The writer number.
+   */
+  int owner(int blockIndex) {
+    return block(blockIndex).owner;
+  }
+
+  /**
+   * Reserves a new block for a writer. The block is allocated and registered in the directory.
+   * @param owner The number of the writer.
+   * @return The index of the first entry of the block.
+   */
+  int reserveBlock(int owner) {
+    int blockIndex = nbBlocks.getAndIncrement();
+    if (blockIndex >= (Integer.MAX_VALUE >>> blockShift)) {
+      throw new IllegalStateException("The concurrent tape is full");
+    }
+    int segmentIndex = blockIndex >>> SEGMENT_SHIFT;
+    Block[] segment = segments.get(segmentIndex);
+    if (segment == null) {
+      segments.compareAndSet(segmentIndex, null, new Block[SEGMENT_SIZE]);
+      segment = segments.get(segmentIndex);
+    }
+    // Only the owner writes in the block; the other threads read it after receiving one of its entries
+    segment[blockIndex & (SEGMENT_SIZE - 1)] = new Block(1 << blockShift, recordPartials, owner);
+    return blockIndex << blockShift;
+  }
+
+  /**
+   * Returns a block.
+   * @param blockIndex The block index.
+   * @return The block.
+   */
+  private Block block(int blockIndex) {
+    return segments.get(blockIndex >>> SEGMENT_SHIFT)[blockIndex & (SEGMENT_SIZE - 1)];
+  }
+
+  @Override
+  int capacity() {
+    return nbBlocks.get() << blockShift;
+  }
+
+  @Override
+  void grow(int capacity) {
+    throw new IllegalStateException("The concurrent storage grows by blocks reserved by the writers");
+  }
+
+  @Override
+  int reserve(int size, int maxIndexArg) {
+    throw new IllegalStateException("The entries of a concurrent storage should be recorded through a writer");
+  }
+
+  @Override
+  boolean isShared() {
+    return true;
+  }
+
+  @Override
+  void set(int index, byte operationType, int indexArg1, int indexArg2, double value, double extraValue) {
+    Block block = block(index >>> blockShift);
+    int position = index & blockMask;
+    block.operationTypes[position] = operationType;
+    block.indexArg1[position] = indexArg1;
+    block.indexArg2[position] = indexArg2;
+    block.value[position] = value;
+    block.extraValue[position] = extraValue;
+  }
+
+  @Override
+  void setPartials(int index, double partialArg1, double partialArg2) {
+    Block block = block(index >>> blockShift);
+    int position = index & blockMask;
+    block.partialArg1[position] = partialArg1;
+    block.partialArg2[position] = partialArg2;
+  }
+
+  /**
+   * Changes the first argument index of an entry. Used to rebase the MANUAL_NARY offsets when the tape is assembled.
+   * @param index The entry index.
+   * @param indexArg1 The new first argument index.
+   */
+  void setIndexArg1(int index, int indexArg1) {
+    block(index >>> blockShift).indexArg1[index & blockMask] = indexArg1;
+  }
+
+  /**
+   * Changes the second argument index of an entry. Used to rebase the AFFINE offsets when the tape is assembled.
+   * @param index The entry index.
+   * @param indexArg2 The new second argument index.
+   */
+  void setIndexArg2(int index, int indexArg2) {
+    block(index >>> blockShift).indexArg2[index & blockMask] = indexArg2;
+  }
+
+  @Override
+  byte getOperationType(int index) {
+    return block(index >>> blockShift).operationTypes[index & blockMask];
+  }
+
+  @Override
+  int getIndexArg1(int index) {
+    return block(index >>> blockShift).indexArg1[index & blockMask];
+  }
+
+  @Override
+  int getIndexArg2(int index) {
+    return block(index >>> blockShift).indexArg2[index & blockMask];
+  }
+
+  @Override
+  double getValue(int index) {
+    return block(index >>> blockShift).value[index & blockMask];
+  }
+
+  @Override
+  double getExtraValue(int index) {
+    return block(index >>> blockShift).extraValue[index & blockMask];
+  }
+
+  @Override
+  double getPartialArg1(int index) {
+    return block(index >>> blockShift).partialArg1[index & blockMask];
+  }
+
+  @Override
+  double getPartialArg2(int index) {
+    return block(index >>> blockShift).partialArg2[index & blockMask];
+  }
+
+  /**
+   * The entries of one block, in parallel primitive arrays.
+   */
+  private static final class Block {
+
+    /** The number of the writer which reserved the block. */
+    private final int owner;
+    /** The operation type ordinal of each entry. */
+    private final byte[] operationTypes;
+    /** The tape index of the first argument of each entry. */
+    private final int[] indexArg1;
+    /** The tape index of the second argument of each entry. */
+    private final int[] indexArg2;
+    /** The value of each entry. */
+    private final double[] value;
+    /** The extra value of each entry. */
+    private final double[] extraValue;
+    /** The partial derivative of each entry with respect to its first argument. Null if not recorded. */
+    private final double[] partialArg1;
+    /** The partial derivative of each entry with respect to its second argument. Null if not recorded. */
+    private final double[] partialArg2;
+
+    /**
+     * Creates a block.
+     * @param blockSize The number of entries.
+     * @param recordPartials Whether the partial derivatives are stored.
+     * @param owner The number of the writer which reserved the block.
+     */
+    private Block(int blockSize, boolean recordPartials, int owner) {
+      this.owner = owner;
+      operationTypes = new byte[blockSize];
+      indexArg1 = new int[blockSize];
+      indexArg2 = new int[blockSize];
+      value = new double[blockSize];
+      extraValue = new double[blockSize];
+      partialArg1 = recordPartials ? new double[blockSize] : null;
+      partialArg2 = recordPartials ? new double[blockSize] : null;
+    }
+  }
+
+  /**
+   * The view of the storage used by one recording thread.
+   * <p>
+   * The entries are written in the current block of the writer. A new block is reserved when the current one is full
+   * or when an argument of the entry is after the current position of the writer, which happens when the argument
+   * has been recorded by another writer in a block reserved after the current one. As the blocks are reserved in
+   * increasing order, the entry is then recorded after all its arguments. The unused entries of the abandoned block
+   * are filled with NOP entries.
+   */
+  static final class Writer extends TapeStorage {
+
+    /** The shared storage. */
+    private final ConcurrentTapeStorage shared;
+    /** The number of the writer. */
+    private final int owner;
+    /** The index of the entry after the current block. */
+    private int blockEnd;
+
+    /**
+     * Creates a writer.
+     * @param shared The shared storage.
+     * @param owner The number of the writer.
+     */
+    Writer(ConcurrentTapeStorage shared, int owner) {
+      this.shared = shared;
+      this.owner = owner;
+      this.blockEnd = 0;
+    }
+
+    /**
+     * Fills the unused entries of the current block with NOP entries.
+     * @param size The current size of the tape recorded by the writer.
+     */
+    void pad(int size) {
+      for (int loope = size; loope < blockEnd; loope++) {
+        shared.set(loope, (byte) OperationTypeAad.NOP.ordinal(), -1, -1, 0.0d, 0.0d);
+      }
+    }
+
+    @Override
+    int reserve(int size, int maxIndexArg) {
+      if (size == blockEnd || maxIndexArg >= size) {
+        pad(size);
+        int blockStart = shared.reserveBlock(owner);
+        blockEnd = blockStart + shared.blockSize();
+        return blockStart;
+      }
+      return size;
+    }
+
+    @Override
+    int capacity() {
+      return shared.capacity();
+    }
+
+    @Override
+    void grow(int capacity) {
+      throw new IllegalStateException("The concurrent storage grows by blocks reserved by the writers");
+    }
+
+    @Override
+    boolean isShared() {
+      return true;
+    }
+
+    @Override
+    void set(int index, byte operationType, int indexArg1, int indexArg2, double value, double extraValue) {
+      shared.set(index, operationType, indexArg1, indexArg2, value, extraValue);
+    }
+
+    @Override
+    void setPartials(int index, double partialArg1, double partialArg2) {
+      shared.setPartials(index, partialArg1, partialArg2);
+    }
+
+    @Override
+    byte getOperationType(int index) {
+      return shared.getOperationType(index);
+    }
+
+    @Override
+    int getIndexArg1(int index) {
+      return shared.getIndexArg1(index);
+    }
+
+    @Override
+    int getIndexArg2(int index) {
+      return shared.getIndexArg2(index);
+    }
+
+    @Override
+    double getValue(int index) {
+      return shared.getValue(index);
+    }
+
+    @Override
+    double getExtraValue(int index) {
+      return shared.getExtraValue(index);
+    }
+
+    @Override
+    double getPartialArg1(int index) {
+      return shared.getPartialArg1(index);
+    }
+
+    @Override
+    double getPartialArg2(int index) {
+      return shared.getPartialArg2(index);
+    }
+  }
+
+}
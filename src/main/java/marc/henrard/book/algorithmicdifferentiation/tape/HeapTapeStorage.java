@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.util.Arrays;
+
+/**
+ * Storage of the entries of a {@link TapeAad} in parallel primitive arrays on the heap (structure of arrays).
+ */
+final class HeapTapeStorage extends TapeStorage {
+
+  /** The operation type ordinal of each entry. */
+  private byte[] operationTypes;
+  /** The tape index of the first argument of each entry. */
+  private int[] indexArg1;
+  /** The tape index of the second argument of each entry. */
+  private int[] indexArg2;
+  /** The value of each entry. Null if the values have been released. */
+  private double[] value;
+  /** The entries whose value is retained, as a bit set. Null if the values have not been released. */
+  private long[] retained;
+  /** The number of values retained before each word of the bit set. */
+  private int[] retainedRank;
+  /** The values retained, in the order of the entries. */
+  private double[] retainedValues;
+  /** The extra value of each entry. */
+  private double[] extraValue;
+  /** The partial derivative of each entry with respect to its first argument. Null if not recorded. */
+  private double[] partialArg1;
+  /** The partial derivative of each entry with respect to its second argument. Null if not recorded. */
+  private double[] partialArg2;
+
+  /**
+   * Creates a storage.
+   * @param capacity The initial capacity.
+   * @param recordPartials Whether the partial derivatives are stored.
+   */
+  HeapTapeStorage(int capacity, boolean recordPartials) {
+    operationTypes = new byte[capacity];
+    indexArg1 = new int[capacity];
+    indexArg2 = new int[capacity];
+    value = new double[capacity];
+    extraValue = new double[capacity];
+    if (recordPartials) {
+      partialArg1 = new double[capacity];
+      partialArg2 = new double[capacity];
+    }
+  }
+
+  @Override
+  int capacity() {
+    return operationTypes.length;
+  }
+
+  @Override
+  void grow(int capacity) {
+    operationTypes = Arrays.copyOf(operationTypes, capacity);
+    indexArg1 = Arrays.copyOf(indexArg1, capacity);
+    indexArg2 = Arrays.copyOf(indexArg2, capacity);
+    value = Arrays.copyOf(value, capacity);
+    extraValue = Arrays.copyOf(extraValue, capacity);
+    if (partialArg1 != null) {
+      partialArg1 = Arrays.copyOf(partialArg1, capacity);
+      partialArg2 = Arrays.copyOf(partialArg2, capacity);
+    }
+  }
+
+  @Override
+  void set(int index, byte operationType, int indexArg1, int indexArg2, double value, double extraValue) {
+    this.operationTypes[index] = operationType;
+    this.indexArg1[index] = indexArg1;
+    this.indexArg2[index] = indexArg2;
+    this.value[index] = value;
+    this.extraValue[index] = extraValue;
+  }
+
+  @Override
+  void setPartials(int index, double partialArg1, double partialArg2) {
+    this.partialArg1[index] = partialArg1;
+    this.partialArg2[index] = partialArg2;
+  }
+
+  @Override
+  byte getOperationType(int index) {
+    return operationTypes[index];
+  }
+
+  @Override
+  int getIndexArg1(int index) {
+    return indexArg1[index];
+  }
+
+  @Override
+  int getIndexArg2(int index) {
+    return indexArg2[index];
+  }
+
+  @Override
+  double getValue(int index) {
+    if (value != null) {
+      return value[index];
+    }
+    int word = index >>> 6;
+    long bits = retained[word];
+    if ((bits & (1L << index)) == 0) {
+      throw new IllegalStateException("The value of entry " + index + " has been released");
+    }
+    return retainedValues[retainedRank[word] + Long.bitCount(bits & ((1L << index) - 1))];
+  }
+
+  @Override
+  void releaseValues(long[] retained) {
+    if (value == null) {
+      return;
+    }
+    this.retained = retained.clone();
+    retainedRank = new int[retained.length];
+    int nbRetained = 0;
+    for (int loopw = 0; loopw < retained.length; loopw++) {
+      retainedRank[loopw] = nbRetained;
+      nbRetained += Long.bitCount(retained[loopw]);
+    }
+    retainedValues = new double[nbRetained];
+    int loopr = 0;
+    for (int loopw = 0; loopw < retained.length; loopw++) {
+      for (long bits = retained[loopw]; bits != 0; bits &= bits - 1) {
+        retainedValues[loopr++] = value[(loopw << 6) + Long.numberOfTrailingZeros(bits)];
+      }
+    }
+    value = null;
+  }
+
+  @Override
+  boolean hasReleasedValues() {
+    return value == null;
+  }
+
+  @Override
+  boolean isValueRetained(int index) {
+    return value != null || (retained[index >>> 6] & (1L << index)) != 0;
+  }
+
+  @Override
+  void restoreValues() {
+    if (value == null) {
+      value = new double[operationTypes.length];
+      retained = null;
+      retainedRank = null;
+      retainedValues = null;
+    }
+  }
+
+  @Override
+  double getExtraValue(int index) {
+    return extraValue[index];
+  }
+
+  @Override
+  double getPartialArg1(int index) {
+    return partialArg1[index];
+  }
+
+  @Override
+  double getPartialArg2(int index) {
+    return partialArg2[index];
+  }
+
+  @Override
+  double[] values() {
+    return value;
+  }
+
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Storage of the entries of a {@link TapeAad} in direct byte buffers, outside of the Java heap.
+ * <p>
+ * Each block is held in its own direct buffer. The storage grows by adding blocks, without copying the entries 
+ * already stored. The memory of the blocks is released when the storage is garbage collected.
+ */
+final class OffHeapTapeStorage extends BlockTapeStorage {
+
+  /** The blocks. */
+  private ByteBuffer[] blocks;
+  /** The number of blocks allocated. */
+  private int nbBlocks;
+
+  /**
+   * Creates a storage.
+   * @param capacity The initial capacity.
+   * @param recordPartials Whether the partial derivatives are stored.
+   */
+  OffHeapTapeStorage(int capacity, boolean recordPartials) {
+    super(recordPartials);
+    blocks = new ByteBuffer[4];
+    nbBlocks = 0;
+    grow(capacity);
+  }
+
+  @Override
+  int capacity() {
+    return nbBlocks << BLOCK_SHIFT;
+  }
+
+  @Override
+  void grow(int capacity) {
+    int nbBlocksRequired = (int) (((long) capacity + BLOCK_MASK) >>> BLOCK_SHIFT);
+    if (nbBlocksRequired > blocks.length) {
+      blocks = Arrays.copyOf(blocks, Math.max(2 * blocks.length, nbBlocksRequired));
+    }
+    while (nbBlocks < nbBlocksRequired) {
+      blocks[nbBlocks++] = ByteBuffer.allocateDirect(blockLength()).order(ByteOrder.nativeOrder());
+    }
+  }
+
+  @Override
+  ByteBuffer block(int blockIndex) {
+    return blocks[blockIndex];
+  }
+
+  @Override
+  ByteBuffer blockForWrite(int blockIndex) {
+    return blocks[blockIndex];
+  }
+
+}
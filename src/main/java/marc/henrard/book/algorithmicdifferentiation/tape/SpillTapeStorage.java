@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Storage of the entries of a {@link TapeAad} in a scratch file, with a small number of blocks resident in memory.
+ * <p>
+ * The blocks are held in a fixed number of direct buffers (pages). When a block which is not resident is accessed,
+ * the least recently used page is written to the file if it has been modified and the block is read in its place.
+ * When the blocks are accessed in decreasing order, as in a backward sweep, the block preceding the one read is 
+ * read ahead in a background thread. The scratch file is deleted when the storage is closed.
+ * <p>
+ * The storage is not thread-safe, even to read the entries.
+ */
+final class SpillTapeStorage extends BlockTapeStorage {
+
+  /** The executor reading the blocks ahead. */
+  private static final ExecutorService READ_AHEAD = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "tape-read-ahead");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /** The scratch file. */
+  private final FileChannel channel;
+  /** The number of blocks of the capacity. */
+  private int nbBlocks;
+  /** The pages. */
+  private final ByteBuffer[] pages;
+  /** The index of the block held in each page, -1 if none. */
+  private final int[] pageBlocks;
+  /** Whether each page has been modified since it was read. */
+  private final boolean[] pageDirty;
+  /** The last use of each page, for the choice of the page to replace. */
+  private final long[] pageUse;
+  /** The counter of page uses. */
+  private long nbUses;
+  /** The page used last. */
+  private int lastPage;
+  /** The buffer where the block read ahead is stored. */
+  private ByteBuffer readAheadBuffer;
+  /** The index of the block read ahead, -1 if none. */
+  private int readAheadBlock;
+  /** The result of the read ahead. */
+  private Future<?> readAhead;
+  /** The index of the last block which was not resident when accessed. */
+  private int lastMissBlock;
+
+  /**
+   * Creates a storage.
+   * @param directory The directory of the scratch file.
+   * @param nbPages The number of blocks resident in memory.
+   * @param recordPartials Whether the partial derivatives are stored.
+   */
+  SpillTapeStorage(File directory, int nbPages, boolean recordPartials) {
+    super(recordPartials);
+    try {
+      Path file = Files.createTempFile(directory.toPath(), "tape", ".bin");
+      channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, 
+          StandardOpenOption.DELETE_ON_CLOSE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    pages = new ByteBuffer[nbPages];
+    pageBlocks = new int[nbPages];
+    pageDirty = new boolean[nbPages];
+    pageUse = new long[nbPages];
+    for (int loopp = 0; loopp < nbPages; loopp++) {
+      pages[loopp] = ByteBuffer.allocateDirect(blockLength()).order(ByteOrder.nativeOrder());
+      pageBlocks[loopp] = -1;
+    }
+    readAheadBuffer = ByteBuffer.allocateDirect(blockLength()).order(ByteOrder.nativeOrder());
+    readAheadBlock = -1;
+    lastMissBlock = -1;
+    nbBlocks = 1;
+  }
+
+  @Override
+  int capacity() {
+    return nbBlocks << BLOCK_SHIFT;
+  }
+
+  @Override
+  void grow(int capacity) {
+    nbBlocks = Math.max(nbBlocks, (int) (((long) capacity + BLOCK_MASK) >>> BLOCK_SHIFT));
+  }
+
+  @Override
+  ByteBuffer block(int blockIndex) {
+    if (pageBlocks[lastPage] != blockIndex) {
+      lastPage = page(blockIndex);
+    }
+    return pages[lastPage];
+  }
+
+  @Override
+  ByteBuffer blockForWrite(int blockIndex) {
+    ByteBuffer block = block(blockIndex);
+    pageDirty[lastPage] = true;
+    return block;
+  }
+
+  @Override
+  void close() {
+    try {
+      waitReadAhead();
+      channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns the page holding a block, reading the block if it is not resident.
+   * @param blockIndex The block index.
+   * @return The page.
+   */
+  private int page(int blockIndex) {
+    for (int loopp = 0; loopp < pages.length; loopp++) {
+      if (pageBlocks[loopp] == blockIndex) {
+        pageUse[loopp] = ++nbUses;
+        return loopp;
+      }
+    }
+    int page = 0;
+    for (int loopp = 1; loopp < pages.length; loopp++) {
+      if (pageUse[loopp] < pageUse[page]) {
+        page = loopp;
+      }
+    }
+    if (pageDirty[page]) {
+      write(pages[page], pageBlocks[page]);
+      pageDirty[page] = false;
+    }
+    if (readAheadBlock == blockIndex) {
+      waitReadAhead();
+      ByteBuffer buffer = pages[page];
+      pages[page] = readAheadBuffer;
+      readAheadBuffer = buffer;
+    } else {
+      read(pages[page], blockIndex);
+    }
+    pageBlocks[page] = blockIndex;
+    pageUse[page] = ++nbUses;
+    if (blockIndex == lastMissBlock - 1 && blockIndex > 0 && !isResident(blockIndex - 1)) {
+      waitReadAhead();
+      int block = blockIndex - 1;
+      ByteBuffer buffer = readAheadBuffer;
+      readAheadBlock = block;
+      readAhead = READ_AHEAD.submit(() -> read(buffer, block));
+    }
+    lastMissBlock = blockIndex;
+    return page;
+  }
+
+  /**
+   * Returns whether a block is held in a page.
+   * @param blockIndex The block index.
+   * @return The flag.
+   */
+  private boolean isResident(int blockIndex) {
+    for (int loopp = 0; loopp < pages.length; loopp++) {
+      if (pageBlocks[loopp] == blockIndex) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Waits for the end of the read ahead in progress, if any.
+   */
+  private void waitReadAhead() {
+    if (readAheadBlock < 0) {
+      return;
+    }
+    try {
+      readAhead.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    readAheadBlock = -1;
+    readAhead = null;
+  }
+
+  /**
+   * Writes a block in the file.
+   * @param buffer The buffer holding the block.
+   * @param blockIndex The block index.
+   */
+  private void write(ByteBuffer buffer, int blockIndex) {
+    ByteBuffer source = buffer.duplicate();
+    source.clear();
+    long position = (long) blockIndex * blockLength();
+    try {
+      while (source.hasRemaining()) {
+        position += channel.write(source, position);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Reads a block from the file. The part of the block which has never been written is set to 0.
+   * @param buffer The buffer where the block is read.
+   * @param blockIndex The block index.
+   */
+  private void read(ByteBuffer buffer, int blockIndex) {
+    ByteBuffer target = buffer.duplicate();
+    target.clear();
+    long position = (long) blockIndex * blockLength();
+    try {
+      while (target.hasRemaining()) {
+        int nbBytes = channel.read(target, position);
+        if (nbBytes < 0) {
+          break;
+        }
+        position += nbBytes;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    while (target.hasRemaining()) {
+      target.put((byte) 0);
+    }
+  }
+
+}
@@ -3,29 +3,241 @@
  */
 package marc.henrard.book.algorithmicdifferentiation.tape;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.util.Arrays;
+
+import com.opengamma.strata.collect.ArgChecker;
+
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
 
 /**
  * Class describing a tape for Adjoint Algorithmic Differentiation.
+ * <p>
+ * The entries are stored in parallel primitive arrays (structure of arrays): one array for the operation codes,
+ * two for the argument indices and two for the value and the extra value. The value bars are stored in an array
+ * allocated when the tape is first interpreted in place. The arrays grow by chunks when the tape is full. 
+ * No object is created when an entry is recorded through the primitive 
+ * {@link #addEntry(OperationTypeAad, int, int, double, double)} method.
+ * <p>
+ * For very large tapes, the entries can be stored outside of the Java heap, see {@link #offHeap(int, boolean)},
+ * or in a scratch file, see {@link #spilled(File, int, boolean)}. The record and interpretation methods are the same
+ * for all storages. One logical tape can be recorded by several threads with {@link TapeConcurrent}.
+ * <p>
+ * A tape can be created in a mode where the local partial derivatives of each entry with respect to its arguments
+ * are stored when the entry is recorded (Jacobian-on-record). The reverse sweep of such a tape is a 
+ * multiply-accumulate loop, without operation type dispatch and without evaluation of transcendental functions.
+ * <p>
+ * A block of manual code can be recorded as one entry with any number of arguments through
+ * {@link #addManualEntry(double, int[], double[])}. The argument indices and derivatives of those entries are 
+ * stored in two side arrays. The constants of the AFFINE entries produced by {@link TapeOptimizer} are stored in
+ * the same side arrays.
+ * <p>
+ * A sub-computation can be preaccumulated: the operations recorded between {@link #openScope()} and 
+ * {@link #closeScope(DoubleAad)} are replaced by one MANUAL_NARY entry with the local gradient of the scope output.
+ * <p>
+ * The tape records which values are read by the backward sweep: the values of the arguments of the multiplications,
+ * divisions and functions, and the values of the results of the exponentials, square roots and powers. The other 
+ * values, as the ones of the additions, can be released once the tape is frozen, see {@link #releaseValues()}.
+ * <p>
+ * Once recorded, a tape can be frozen with {@link #freeze()}. A frozen tape is immutable: no entry can be added 
+ * and its value bars can not be modified. It can then be interpreted several times, possibly concurrently by 
+ * several threads, with the adjoints stored in caller-supplied workspaces, 
+ * see {@link TapeUtils#interpret(TapeAad, int, double[])}. The tape should be frozen before being shared 
+ * with the other threads.
  */
 public class TapeAad {
-  
-  /** The initial capacity of the list holding the tape. */
-  private final static int INITIAL_CAPACITY = 250;
-  /** The list holding each entry in the tape.*/
-  private final List<TapeEntryAad> tapeList;
+
+  /** The initial capacity of the arrays holding the tape. */
+  private final static int INITIAL_CAPACITY = 256;
+  /** The initial capacity of the array holding the input indices. */
+  private final static int INITIAL_INPUT_CAPACITY = 16;
+  /** The initial capacity of the side arrays holding the arguments of the manual entries. */
+  private final static int INITIAL_MANUAL_CAPACITY = 64;
+  /** The initial capacity of the array holding the marks of the open scopes. */
+  private final static int INITIAL_SCOPE_CAPACITY = 4;
+  /** The operation types, indexed by their ordinal. */
+  private final static OperationTypeAad[] OPERATION_TYPES = OperationTypeAad.values();
+
+  /** The storage of the entries. */
+  private final TapeStorage storage;
+  /** The derivative of the final value with respect to each entry. Populated when the tape is interpreted. */
+  private double[] valueBar;
+  /** Whether the local partial derivatives are recorded. */
+  private final boolean recordPartials;
+  /** The entries whose value is read by the backward sweep, as a bit set. */
+  private long[] valueRead;
+  /** Whether the bit set may include arguments of removed entries, to be recomputed before it is used. */
+  private boolean valueReadStale;
+  /** Scratch array used to compute the local partial derivatives. Null if not recorded. */
+  private final double[] partialsScratch;
+  /** The tape indices of the INPUT entries, in increasing order. */
+  private int[] inputIndices;
+  /** The number of INPUT entries. */
+  private int nbInputs;
+  /** The tape indices of the arguments of the MANUAL_NARY entries, stored consecutively. */
+  private int[] manualIndexArgs;
+  /** The derivatives of the MANUAL_NARY entries with respect to their arguments, stored consecutively. */
+  private double[] manualDerivatives;
+  /** The number of elements used in the side arrays of the MANUAL_NARY and AFFINE entries. */
+  private int manualSize;
+  /** Whether the side arrays are shared with a prefix, to be copied before a write. */
+  private boolean manualShared;
+  /** The marks of the open scopes, the innermost last. */
+  private int[] scopeMarks;
+  /** The number of open scopes. */
+  private int nbScopes;
+  /** Scratch array for the value bars of the local sweep when a scope is closed. */
+  private double[] scopeValueBar;
+  /** Scratch array for the external arguments of a scope. */
+  private int[] scopeIndexArgs;
+  /** Scratch array for the derivatives with respect to the external arguments of a scope. */
+  private double[] scopeDerivatives;
   /** The current size of the tape. */
   private int size;
-  
+  /** Whether the tape is frozen. */
+  private boolean frozen;
+
   /**
-   * Construct an empty list with a default initial capacity.
+   * Construct an empty tape with a default initial capacity.
    */
   public TapeAad() {
-    this.tapeList = new ArrayList<TapeEntryAad>(INITIAL_CAPACITY);
+    this(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Construct an empty tape with a given initial capacity.
+   * @param initialCapacity The initial capacity.
+   */
+  public TapeAad(int initialCapacity) {
+    this(initialCapacity, false);
+  }
+
+  /**
+   * Construct an empty tape with a given initial capacity, recording or not the local partial derivatives.
+   * @param initialCapacity The initial capacity.
+   * @param recordPartials Whether the local partial derivatives of each entry are recorded.
+   */
+  public TapeAad(int initialCapacity, boolean recordPartials) {
+    this(new HeapTapeStorage(Math.max(initialCapacity, 1), recordPartials), recordPartials);
+  }
+
+  /**
+   * Construct an empty tape with its entries stored outside of the Java heap, in direct byte buffers.
+   * <p>
+   * The storage of the entries does not count in the heap size and is not scanned by the garbage collector; 
+   * it grows by blocks without copy of the entries already recorded. The heap holds only the input indices, 
+   * the side arrays of the MANUAL_NARY entries and, if the tape is interpreted in place, the value bars. 
+   * The access to the entries is slower than for a tape on the heap.
+   * @param initialCapacity The initial capacity.
+   * @param recordPartials Whether the local partial derivatives of each entry are recorded.
+   * @return The tape.
+   */
+  public static TapeAad offHeap(int initialCapacity, boolean recordPartials) {
+    return new TapeAad(new OffHeapTapeStorage(Math.max(initialCapacity, 1), recordPartials), recordPartials);
+  }
+
+  /**
+   * Construct an empty tape with its entries stored in a scratch file, only a few blocks of entries being resident 
+   * in memory.
+   * <p>
+   * The entries are recorded in blocks of 65536 entries; the blocks which are not used anymore are written to 
+   * the file. The backward sweep reads the blocks in reverse order, the preceding block being read ahead in 
+   * a background thread. The size of the tape is limited by the disk, only the value bars are held in memory for 
+   * all the entries.
+   * <p>
+   * The sweep accesses only the entry propagated when the local partial derivatives are recorded, the file is then
+   * read sequentially backward. Without the partial derivatives, the values of the arguments are read, which may
+   * require to read blocks out of order. The access to an entry which is not resident is slow. 
+   * <p>
+   * The tape can not be interpreted by several threads at the same time, even when frozen.
+   * The scratch file is deleted by {@link #close()}.
+   * @param directory The directory where the scratch file is created.
+   * @param nbResidentBlocks The number of blocks of entries resident in memory, at least 2.
+   * @param recordPartials Whether the local partial derivatives of each entry are recorded.
+   * @return The tape.
+   */
+  public static TapeAad spilled(File directory, int nbResidentBlocks, boolean recordPartials) {
+    ArgChecker.isTrue(nbResidentBlocks >= 2, "nbResidentBlocks should be at least 2");
+    return new TapeAad(new SpillTapeStorage(directory, nbResidentBlocks, recordPartials), recordPartials);
+  }
+
+  /**
+   * Construct an empty tape with a given storage.
+   * @param storage The storage of the entries.
+   * @param recordPartials Whether the local partial derivatives of each entry are recorded.
+   */
+  TapeAad(TapeStorage storage, boolean recordPartials) {
+    this.storage = storage;
+    valueBar = new double[0];
+    valueRead = new long[(storage.capacity() >>> 6) + 1];
+    this.recordPartials = recordPartials;
+    if (recordPartials) {
+      partialsScratch = new double[2];
+    } else {
+      partialsScratch = null;
+    }
+    inputIndices = new int[INITIAL_INPUT_CAPACITY];
+    nbInputs = 0;
+    manualIndexArgs = new int[INITIAL_MANUAL_CAPACITY];
+    manualDerivatives = new double[INITIAL_MANUAL_CAPACITY];
+    manualSize = 0;
+    scopeMarks = new int[INITIAL_SCOPE_CAPACITY];
+    nbScopes = 0;
+    scopeValueBar = new double[0];
+    scopeIndexArgs = new int[0];
+    scopeDerivatives = new double[0];
     size = 0;
+    frozen = false;
+  }
+
+  /**
+   * Construct an empty branch on top of a frozen prefix tape. The entries, inputs and side arrays of the prefix
+   * are shared, the side arrays being copied when the branch records its first MANUAL_NARY or AFFINE entry.
+   * @param prefix The prefix tape, frozen.
+   * @param initialCapacity The initial capacity for the entries of the branch.
+   */
+  TapeAad(TapeAad prefix, int initialCapacity) {
+    this(new BranchTapeStorage(prefix.storage, prefix.size, initialCapacity, prefix.recordPartials),
+        prefix.recordPartials);
+    this.size = prefix.size;
+    this.inputIndices = Arrays.copyOf(prefix.inputIndices, Math.max(prefix.nbInputs, INITIAL_INPUT_CAPACITY));
+    this.nbInputs = prefix.nbInputs;
+    this.manualIndexArgs = prefix.manualIndexArgs;
+    this.manualDerivatives = prefix.manualDerivatives;
+    this.manualSize = prefix.manualSize;
+    this.manualShared = true;
   }
-  
+
+  /**
+   * Construct a frozen tape over a storage recorded by other tapes.
+   * @param storage The storage of the entries.
+   * @param recordPartials Whether the local partial derivatives of each entry are recorded.
+   * @param size The number of entries.
+   * @param inputIndices The tape indices of the INPUT entries, in increasing order.
+   * @param manualIndexArgs The side array of the arguments of the MANUAL_NARY entries.
+   * @param manualDerivatives The side array of the derivatives of the MANUAL_NARY entries.
+   * @param valueRead The entries whose value is read by the backward sweep, as a bit set.
+   */
+  TapeAad(
+      TapeStorage storage,
+      boolean recordPartials,
+      int size,
+      int[] inputIndices,
+      int[] manualIndexArgs,
+      double[] manualDerivatives,
+      long[] valueRead) {
+    this(storage, recordPartials);
+    this.size = size;
+    this.inputIndices = inputIndices;
+    this.nbInputs = inputIndices.length;
+    this.manualIndexArgs = manualIndexArgs;
+    this.manualDerivatives = manualDerivatives;
+    this.manualSize = manualIndexArgs.length;
+    this.valueRead = valueRead;
+    this.frozen = true;
+  }
+
   /**
    * Returns the current size of the tape.
    * @return The size.
@@ -33,14 +245,267 @@ public class TapeAad {
   public int size() {
     return size;
   }
-  
+
+  /**
+   * Returns the number of entries the tape can hold before growing.
+   * @return The capacity.
+   */
+  public int capacity() {
+    return storage.capacity();
+  }
+
+  /**
+   * Returns the number of INPUT entries in the tape.
+   * @return The number of inputs.
+   */
+  public int getNbInputs() {
+    return nbInputs;
+  }
+
+  /**
+   * Returns the tape index of an input. The inputs are numbered in the order in which they have been recorded.
+   * @param inputNumber The input number, between 0 (included) and the number of inputs (excluded).
+   * @return The tape index.
+   */
+  public int getInputIndex(int inputNumber) {
+    if (inputNumber < 0 || inputNumber >= nbInputs) {
+      throw new IndexOutOfBoundsException("Input: " + inputNumber + ", Number of inputs: " + nbInputs);
+    }
+    return inputIndices[inputNumber];
+  }
+
+  /**
+   * Returns a mark of the current position of the tape, to be used with {@link #rewindTo(int)}.
+   * @return The mark.
+   */
+  public int mark() {
+    return size;
+  }
+
+  /**
+   * Removes all the entries recorded after a mark. The backing storage is kept.
+   * <p>
+   * The value bars of the entries before the mark are not modified. The scopes opened after the mark are discarded.
+   * @param mark The mark, as returned by {@link #mark()}.
+   */
+  public void rewindTo(int mark) {
+    checkNotFrozen();
+    checkNotShared();
+    if (mark < storage.firstIndex() || mark > size) {
+      throw new IndexOutOfBoundsException("Mark: " + mark + ", Size: " + size);
+    }
+    for (int loope = size - 1; loope >= mark; loope--) {
+      if (storage.getOperationType(loope) == OperationTypeAad.MANUAL_NARY.ordinal()) {
+        manualSize = storage.getIndexArg1(loope);
+      } else if (storage.getOperationType(loope) == OperationTypeAad.AFFINE.ordinal()) {
+        manualSize = affineOffset(storage.getIndexArg2(loope));
+      } else if (!recordPartials && ((storage.getIndexArg1(loope) >= 0 && storage.getIndexArg1(loope) < mark) ||
+          (storage.getIndexArg2(loope) >= 0 && storage.getIndexArg2(loope) < mark))) {
+        valueReadStale = true; // The entry may have marked the value of an argument kept
+      }
+    }
+    for (int loope = mark; loope < size; loope++) {
+      valueRead[loope >>> 6] &= ~(1L << loope);
+    }
+    size = mark;
+    while (nbInputs > 0 && inputIndices[nbInputs - 1] >= mark) {
+      nbInputs--;
+    }
+    while (nbScopes > 0 && scopeMarks[nbScopes - 1] > mark) {
+      nbScopes--;
+    }
+  }
+
+  /**
+   * Removes all the entries of the tape. The backing storage is kept, the tape can be reused without allocation.
+   * A frozen tape is unfrozen by this method and the open scopes are discarded. For a branch of a 
+   * {@link TapePrefix}, the entries of the prefix are kept.
+   */
+  public void reset() {
+    checkNotShared();
+    if (storage.firstIndex() > 0) { // Branch: the prefix is kept
+      frozen = false;
+      rewindTo(storage.firstIndex());
+      nbScopes = 0;
+      return;
+    }
+    Arrays.fill(valueRead, 0, Math.min((size >>> 6) + 1, valueRead.length), 0L);
+    valueReadStale = false;
+    storage.restoreValues();
+    size = 0;
+    nbInputs = 0;
+    manualSize = 0;
+    nbScopes = 0;
+    frozen = false;
+  }
+
+  /**
+   * Releases the resources held by the storage of the tape, as the scratch file of a spilled tape. The tape can not
+   * be used anymore. No effect for the tapes stored in memory.
+   */
+  public void close() {
+    storage.close();
+  }
+
+  /**
+   * Opens a preaccumulation scope. The entries recorded until the matching {@link #closeScope(DoubleAad)} are 
+   * replaced by one entry when the scope is closed. Scopes can be nested.
+   * <p>
+   * The inputs should be created before the scope is opened.
+   */
+  public void openScope() {
+    checkNotFrozen();
+    checkNotShared();
+    if (nbScopes == scopeMarks.length) {
+      scopeMarks = Arrays.copyOf(scopeMarks, 2 * nbScopes);
+    }
+    scopeMarks[nbScopes++] = size;
+  }
+
+  /**
+   * Closes the innermost preaccumulation scope.
+   * <p>
+   * The entries recorded in the scope are swept backward from the output to compute the derivatives of the output
+   * with respect to the entries recorded before the scope and used in it. The scope entries are removed 
+   * and replaced by one MANUAL_NARY entry holding those derivatives. The arguments with a zero derivative 
+   * are not recorded. The {@link DoubleAad} created in the scope, except the one returned, should not be used 
+   * anymore after the scope is closed.
+   * @param output The output of the scope. It should be recorded in the scope.
+   * @return The output, referring to the new entry.
+   */
+  public DoubleAad closeScope(DoubleAad output) {
+    checkNotFrozen();
+    if (nbScopes == 0) {
+      throw new IllegalStateException("No scope is open");
+    }
+    int mark = scopeMarks[nbScopes - 1];
+    int outputIndex = output.tapeIndex();
+    ArgChecker.inRange(outputIndex, mark, size, "outputIndex");
+    if (nbInputs > 0 && inputIndices[nbInputs - 1] >= mark) {
+      throw new IllegalStateException("Inputs can not be created in a scope");
+    }
+    if (scopeValueBar.length < size) {
+      scopeValueBar = new double[storage.capacity()];
+    }
+    // External arguments of the scope, with their value bars reset
+    int nbArgs = 0;
+    for (int loope = mark; loope <= outputIndex; loope++) {
+      int indexArg1 = storage.getIndexArg1(loope);
+      int indexArg2 = storage.getIndexArg2(loope);
+      int nbEntryArgs = (getOperationType(loope) == OperationTypeAad.MANUAL_NARY) ? indexArg2 : 2;
+      for (int loopa = 0; loopa < nbEntryArgs; loopa++) {
+        int indexArg = (getOperationType(loope) == OperationTypeAad.MANUAL_NARY) ? 
+            manualIndexArgs[indexArg1 + loopa] : (loopa == 0) ? indexArg1 : indexArg2;
+        if (indexArg >= 0 && indexArg < mark) {
+          if (nbArgs == scopeIndexArgs.length) {
+            scopeIndexArgs = Arrays.copyOf(scopeIndexArgs, Math.max(2 * nbArgs, INITIAL_SCOPE_CAPACITY));
+          }
+          scopeIndexArgs[nbArgs++] = indexArg;
+          scopeValueBar[indexArg] = 0.0d;
+        }
+      }
+    }
+    Arrays.fill(scopeValueBar, mark, outputIndex + 1, 0.0d);
+    scopeValueBar[outputIndex] = 1.0d;
+    TapeUtils.sweep(this, scopeValueBar, outputIndex, mark);
+    // Each argument is kept once, with its derivative
+    int nbDerivatives = 0;
+    if (scopeDerivatives.length < nbArgs) {
+      scopeDerivatives = new double[scopeIndexArgs.length];
+    }
+    for (int loopa = 0; loopa < nbArgs; loopa++) {
+      int indexArg = scopeIndexArgs[loopa];
+      double derivative = scopeValueBar[indexArg];
+      if (derivative != 0.0d) {
+        scopeIndexArgs[nbDerivatives] = indexArg;
+        scopeDerivatives[nbDerivatives++] = derivative;
+        scopeValueBar[indexArg] = 0.0d;
+      }
+    }
+    double outputValue = storage.getValue(outputIndex);
+    nbScopes--;
+    rewindTo(mark);
+    int index = recordManual(outputValue, scopeIndexArgs, scopeDerivatives, nbDerivatives);
+    return new DoubleAad(outputValue, index);
+  }
+
+  /**
+   * Returns the number of open preaccumulation scopes.
+   * @return The number of scopes.
+   */
+  public int getNbScopes() {
+    return nbScopes;
+  }
+
+  /**
+   * Freezes the tape. No entry can be added and the value bars stored in the tape can not be modified anymore.
+   */
+  public void freeze() {
+    refreshValueRead();
+    frozen = true;
+  }
+
+  /**
+   * Releases the values of the entries which are not read by the backward sweep. The tape should be frozen.
+   * <p>
+   * The values of the additions, subtractions and multiplications by a constant, among others, are not read by 
+   * the sweep. They are released and {@link #getValue(int)} throws an exception for those entries. 
+   * The interpretation of the tape with {@link TapeUtils} is not affected; the algorithms which read all the values, 
+   * as {@link TapeOptimizer}, {@link TapeReplay} or {@link TapeCompiler}, can not be used on the tape anymore.
+   * If the tape records the local partial derivatives, all the values are released.
+   * <p>
+   * The values are released only for the tapes stored on the heap; the method has no effect for the other storages.
+   * The values are available again, for new entries, after a {@link #reset()}.
+   */
+  public void releaseValues() {
+    if (!frozen) {
+      throw new IllegalStateException("The tape should be frozen to release its values");
+    }
+    storage.releaseValues(recordPartials ? new long[valueRead.length] : valueRead);
+  }
+
+  /**
+   * Returns whether the value of an entry is available, i.e. it has not been released by {@link #releaseValues()}.
+   * @param index The entry index.
+   * @return The flag.
+   */
+  public boolean isValueRetained(int index) {
+    checkIndex(index);
+    return storage.isValueRetained(index);
+  }
+
+  /**
+   * Returns whether the value of an entry is read by the backward sweep, as recorded with the entries which use it.
+   * Not recorded if the tape records the local partial derivatives.
+   * @param index The entry index.
+   * @return The flag.
+   */
+  public boolean isValueRead(int index) {
+    checkIndex(index);
+    refreshValueRead();
+    return (valueRead[index >>> 6] & (1L << index)) != 0;
+  }
+
+  /**
+   * Returns whether the tape is frozen.
+   * @return The frozen flag.
+   */
+  public boolean isFrozen() {
+    return frozen;
+  }
+
   /**
    * Retrieve an entry in the tape by its index.
+   * <p>
+   * The entry returned is a copy of the data stored in the tape, including the value bar at the time of the call.
+   * For a MANUAL_NARY entry, the argument indices are the offset and the number of arguments in the side arrays.
    * @param index The entry index.
    * @return The entry.
    */
   public TapeEntryAad getEntry(int index) {
-    return tapeList.get(index);
+    checkIndex(index);
+    return new TapeEntryAad(getOperationType(index), storage.getIndexArg1(index), storage.getIndexArg2(index),
+        storage.getValue(index), storage.getExtraValue(index), getValueBar(index));
   }
 
   /**
@@ -49,9 +514,577 @@ public class TapeAad {
    * @return The index of the new entry.
    */
   public int addEntry(TapeEntryAad entry) {
-    tapeList.add(entry);
-    size++;
-    return size - 1;
+    return addEntry(entry.getOperationType(), entry.getIndexArg1(), entry.getIndexArg2(),
+        entry.getValue(), entry.getExtraValue());
+  }
+
+  /**
+   * Add an entry with no argument in the tape and returns the index of the new entry.
+   * @param operationType The AD type of operation.
+   * @param value The value of the result.
+   * @return The index of the new entry.
+   */
+  public int addEntry(OperationTypeAad operationType, double value) {
+    return addEntry(operationType, -1, -1, value, 0.0d);
+  }
+
+  /**
+   * Add an entry with one argument in the tape and returns the index of the new entry.
+   * @param operationType The AD type of operation.
+   * @param indexArg The tape index of the operation argument.
+   * @param value The value of the result.
+   * @return The index of the new entry.
+   */
+  public int addEntry(OperationTypeAad operationType, int indexArg, double value) {
+    return addEntry(operationType, indexArg, -1, value, 0.0d);
+  }
+
+  /**
+   * Add an entry with two arguments in the tape and returns the index of the new entry.
+   * @param operationType The AD type of operation.
+   * @param indexArg1 The tape index of the operation first argument.
+   * @param indexArg2 The tape index of the operation second argument.
+   * @param value The value of the result.
+   * @return The index of the new entry.
+   */
+  public int addEntry(OperationTypeAad operationType, int indexArg1, int indexArg2, double value) {
+    return addEntry(operationType, indexArg1, indexArg2, value, 0.0d);
+  }
+
+  /**
+   * Add an entry with one argument and an extra value in the tape and returns the index of the new entry.
+   * @param operationType The AD type of operation.
+   * @param indexArg The tape index of the operation argument.
+   * @param value The value of the result.
+   * @param extraValue Extra value required in some cases for further processing.
+   * @return The index of the new entry.
+   */
+  public int addEntry(OperationTypeAad operationType, int indexArg, double value, double extraValue) {
+    return addEntry(operationType, indexArg, -1, value, extraValue);
+  }
+
+  /**
+   * Add an entry in the tape and returns the index of the new entry.
+   * <p>
+   * If the tape records the local partial derivatives, they are computed from the values of the arguments.
+   * @param operationType The AD type of operation.
+   * @param indexArg1 The tape index of the operation first argument.
+   * @param indexArg2 The tape index of the operation second argument. -1 if there is no second argument.
+   * @param value The value of the result.
+   * @param extraValue Extra value required in some cases for further processing.
+   * @return The index of the new entry.
+   */
+  public int addEntry(
+      OperationTypeAad operationType,
+      int indexArg1,
+      int indexArg2,
+      double value,
+      double extraValue) {
+    int index = addEntry(operationType, indexArg1, indexArg2, value, extraValue, 0.0d, 0.0d);
+    if (recordPartials) {
+      TapeUtils.localPartials(this, index, partialsScratch);
+      storage.setPartials(index, partialsScratch[0], partialsScratch[1]);
+    }
+    return index;
+  }
+
+  /**
+   * Add an entry with its local partial derivatives in the tape and returns the index of the new entry.
+   * <p>
+   * The partial derivatives are stored only if the tape records them; they are ignored otherwise.
+   * The MANUAL_NARY entries should be added with {@link #addManualEntry(double, int[], double[])}.
+   * @param operationType The AD type of operation.
+   * @param indexArg1 The tape index of the operation first argument.
+   * @param indexArg2 The tape index of the operation second argument. -1 if there is no second argument.
+   * @param value The value of the result.
+   * @param extraValue Extra value required in some cases for further processing.
+   * @param partialArg1 The partial derivative of the result with respect to the first argument.
+   * @param partialArg2 The partial derivative of the result with respect to the second argument.
+   * @return The index of the new entry.
+   */
+  public int addEntry(
+      OperationTypeAad operationType,
+      int indexArg1,
+      int indexArg2,
+      double value,
+      double extraValue,
+      double partialArg1,
+      double partialArg2) {
+    ArgChecker.isTrue(operationType != OperationTypeAad.MANUAL_NARY, 
+        "MANUAL_NARY entries should be added with addManualEntry");
+    ArgChecker.isTrue(operationType != OperationTypeAad.AFFINE, "AFFINE entries are created by TapeOptimizer");
+    return record(operationType, indexArg1, indexArg2, Math.max(indexArg1, indexArg2), value, extraValue,
+        partialArg1, partialArg2);
+  }
+
+  /**
+   * Add an entry for a block of manual code, with any number of arguments, and returns the index of the new entry.
+   * <p>
+   * The entry replaces the chain of two arguments MANUAL entries: the output value is stored once and the sweep
+   * propagates its value bar to all the arguments in one loop. The arrays are copied in the tape.
+   * @param value The value of the result.
+   * @param indexArgs The tape indices of the arguments.
+   * @param derivatives The derivatives of the result with respect to each argument.
+   * @return The index of the new entry.
+   */
+  public int addManualEntry(double value, int[] indexArgs, double[] derivatives) {
+    int nbArgs = indexArgs.length;
+    ArgChecker.isTrue(derivatives.length == nbArgs, 
+        "derivatives length {} should be equal to the number of arguments {}", derivatives.length, nbArgs);
+    return recordManual(value, indexArgs, derivatives, nbArgs);
+  }
+
+  /**
+   * Records a MANUAL_NARY entry at the end of the tape, with the first elements of the argument and derivative arrays.
+   * @param value The value of the result.
+   * @param indexArgs The tape indices of the arguments.
+   * @param derivatives The derivatives of the result with respect to each argument.
+   * @param nbArgs The number of arguments.
+   * @return The index of the new entry.
+   */
+  private int recordManual(double value, int[] indexArgs, double[] derivatives, int nbArgs) {
+    checkNotFrozen();
+    ensureManualCapacity(nbArgs);
+    int offset = manualSize;
+    System.arraycopy(indexArgs, 0, manualIndexArgs, offset, nbArgs);
+    System.arraycopy(derivatives, 0, manualDerivatives, offset, nbArgs);
+    manualSize += nbArgs;
+    int maxIndexArg = -1;
+    for (int loopa = 0; loopa < nbArgs; loopa++) {
+      maxIndexArg = Math.max(maxIndexArg, indexArgs[loopa]);
+    }
+    return record(OperationTypeAad.MANUAL_NARY, offset, nbArgs, maxIndexArg, value, 0.0d, 0.0d, 0.0d);
+  }
+
+  /**
+   * Add an AFFINE entry, a * x + b, in the tape and returns the index of the new entry.
+   * <p>
+   * The factor is stored as extra value and the constant in the side arrays; the second argument index of the entry
+   * refers to the constant, see {@link #getAffineConstant(int)}.
+   * @param indexArg The tape index of the argument.
+   * @param value The value of the result.
+   * @param factor The factor a.
+   * @param constant The constant b.
+   * @return The index of the new entry.
+   */
+  int addAffineEntry(int indexArg, double value, double factor, double constant) {
+    checkNotFrozen();
+    ensureManualCapacity(1);
+    int offset = manualSize;
+    manualIndexArgs[offset] = -1;
+    manualDerivatives[offset] = constant;
+    manualSize++;
+    return record(OperationTypeAad.AFFINE, indexArg, -2 - offset, indexArg, value, factor, factor, 0.0d);
+  }
+
+  /**
+   * Ensures that the side arrays can hold a number of additional elements and that they are not shared.
+   * @param nbElements The number of additional elements.
+   */
+  private void ensureManualCapacity(int nbElements) {
+    if (manualShared || manualSize + nbElements > manualIndexArgs.length) {
+      int capacity = Math.max(2 * manualIndexArgs.length, manualSize + nbElements);
+      manualIndexArgs = Arrays.copyOf(manualIndexArgs, capacity);
+      manualDerivatives = Arrays.copyOf(manualDerivatives, capacity);
+      manualShared = false;
+    }
+  }
+
+  /**
+   * Records an entry at the end of the tape.
+   * @param operationType The AD type of operation.
+   * @param indexArg1 The tape index of the operation first argument.
+   * @param indexArg2 The tape index of the operation second argument.
+   * @param maxIndexArg The largest tape index of the arguments, -1 if there is no argument.
+   * @param value The value of the result.
+   * @param extraValue Extra value required in some cases for further processing.
+   * @param partialArg1 The partial derivative of the result with respect to the first argument.
+   * @param partialArg2 The partial derivative of the result with respect to the second argument.
+   * @return The index of the new entry.
+   */
+  private int record(
+      OperationTypeAad operationType,
+      int indexArg1,
+      int indexArg2,
+      int maxIndexArg,
+      double value,
+      double extraValue,
+      double partialArg1,
+      double partialArg2) {
+    checkNotFrozen();
+    int index = storage.reserve(size, maxIndexArg);
+    storage.set(index, (byte) operationType.ordinal(), indexArg1, indexArg2, value, extraValue);
+    if (index < valueBar.length) {
+      valueBar[index] = 0.0d;
+    }
+    if ((index >>> 6) >= valueRead.length) { // Grown with the entries, also when the values read are not recorded
+      valueRead = Arrays.copyOf(valueRead, Math.max(2 * valueRead.length, (index >>> 6) + 1));
+    }
+    if (recordPartials) {
+      storage.setPartials(index, partialArg1, partialArg2);
+    } else {
+      markValueRead(operationType, index, indexArg1, indexArg2);
+    }
+    if (operationType == OperationTypeAad.INPUT) {
+      if (nbInputs == inputIndices.length) {
+        inputIndices = Arrays.copyOf(inputIndices, 2 * nbInputs);
+      }
+      inputIndices[nbInputs++] = index;
+    }
+    size = index + 1;
+    return index;
+  }
+
+  /**
+   * Marks the values read by the backward sweep for an entry.
+   * @param operationType The AD type of operation.
+   * @param index The entry index.
+   * @param indexArg1 The tape index of the operation first argument.
+   * @param indexArg2 The tape index of the operation second argument.
+   */
+  private void markValueRead(OperationTypeAad operationType, int index, int indexArg1, int indexArg2) {
+    switch (operationType) {
+      case MULTIPLICATION:
+      case DIVISION:
+        valueRead[indexArg1 >>> 6] |= 1L << indexArg1;
+        valueRead[indexArg2 >>> 6] |= 1L << indexArg2;
+        break;
+      case POW:
+        valueRead[indexArg2 >>> 6] |= 1L << indexArg2;
+        valueRead[indexArg1 >>> 6] |= 1L << indexArg1;
+        valueRead[index >>> 6] |= 1L << index;
+        break;
+      case POW1:
+        valueRead[indexArg1 >>> 6] |= 1L << indexArg1;
+        valueRead[index >>> 6] |= 1L << index;
+        break;
+      case SIN:
+      case COS:
+      case LOG:
+      case NORMALCDF:
+        valueRead[indexArg1 >>> 6] |= 1L << indexArg1;
+        break;
+      case EXP:
+      case SQRT:
+        valueRead[index >>> 6] |= 1L << index;
+        break;
+      default: // The sweep reads only the extra value or no value
+        break;
+    }
+  }
+
+  /**
+   * Recomputes the values read by the backward sweep from the entries of the tape, if entries using them have been
+   * removed by {@link #rewindTo(int)} or {@link #closeScope(DoubleAad)}.
+   */
+  private void refreshValueRead() {
+    if (!valueReadStale) {
+      return;
+    }
+    Arrays.fill(valueRead, 0L);
+    for (int loope = storage.firstIndex(); loope < size; loope++) {
+      markValueRead(getOperationType(loope), loope, storage.getIndexArg1(loope), storage.getIndexArg2(loope));
+    }
+    valueReadStale = false;
+  }
+
+  /**
+   * Copies an entry of another tape at the end of this tape, with new argument indices.
+   * <p>
+   * The operation type, value, extra value and local partial derivatives (if recorded in both tapes) are copied.
+   * @param source The tape from which the entry is copied.
+   * @param index The index of the entry in the source tape.
+   * @param indexArg1 The index of the first argument in this tape.
+   * @param indexArg2 The index of the second argument in this tape.
+   * @return The index of the new entry.
+   */
+  int copyEntry(TapeAad source, int index, int indexArg1, int indexArg2) {
+    ArgChecker.isTrue(source.getOperationType(index) != OperationTypeAad.MANUAL_NARY,
+        "MANUAL_NARY entries should be copied with copyManualEntry");
+    if (source.getOperationType(index) == OperationTypeAad.AFFINE) { // The second index refers to the constant
+      return addAffineEntry(indexArg1, source.getValue(index), source.getExtraValue(index),
+          source.getAffineConstant(index));
+    }
+    if (recordPartials && source.isRecordingPartials()) {
+      return addEntry(source.getOperationType(index), indexArg1, indexArg2, source.getValue(index),
+          source.getExtraValue(index), source.getPartialArg1(index), source.getPartialArg2(index));
+    }
+    return addEntry(source.getOperationType(index), indexArg1, indexArg2, source.getValue(index),
+        source.getExtraValue(index));
+  }
+
+  /**
+   * Copies a MANUAL_NARY entry of another tape at the end of this tape, with the argument indices remapped.
+   * @param source The tape from which the entry is copied.
+   * @param index The index of the entry in the source tape.
+   * @param remap The index in this tape of each entry of the source tape.
+   * @return The index of the new entry.
+   */
+  int copyManualEntry(TapeAad source, int index, int[] remap) {
+    int nbArgs = source.getManualNbArgs(index);
+    int[] indexArgs = new int[nbArgs];
+    double[] derivatives = new double[nbArgs];
+    for (int loopa = 0; loopa < nbArgs; loopa++) {
+      indexArgs[loopa] = remap[source.getManualIndexArg(index, loopa)];
+      derivatives[loopa] = source.getManualDerivative(index, loopa);
+    }
+    return addManualEntry(source.getValue(index), indexArgs, derivatives);
+  }
+
+  /**
+   * Returns the operation type of an entry.
+   * @param index The entry index.
+   * @return The operation type.
+   */
+  public OperationTypeAad getOperationType(int index) {
+    return OPERATION_TYPES[storage.getOperationType(index)];
+  }
+
+  /**
+   * Returns the tape index of the first argument of an entry.
+   * @param index The entry index.
+   * @return The argument index.
+   */
+  public int getIndexArg1(int index) {
+    return storage.getIndexArg1(index);
+  }
+
+  /**
+   * Returns the tape index of the second argument of an entry.
+   * @param index The entry index.
+   * @return The argument index, -1 if there is no second argument. Negative for an AFFINE entry, for which it
+   *   refers to the constant in the side arrays.
+   */
+  public int getIndexArg2(int index) {
+    return storage.getIndexArg2(index);
+  }
+
+  /**
+   * Returns the value of an entry.
+   * @param index The entry index.
+   * @return The value.
+   */
+  public double getValue(int index) {
+    return storage.getValue(index);
+  }
+
+  /**
+   * Returns the extra value of an entry.
+   * @param index The entry index.
+   * @return The extra value.
+   */
+  public double getExtraValue(int index) {
+    return storage.getExtraValue(index);
+  }
+
+  /**
+   * Returns the constant b of an AFFINE entry a * x + b. The factor a is the extra value.
+   * @param index The entry index.
+   * @return The constant.
+   */
+  public double getAffineConstant(int index) {
+    ArgChecker.isTrue(getOperationType(index) == OperationTypeAad.AFFINE, "entry {} is not an AFFINE entry", index);
+    return manualDerivatives[affineOffset(storage.getIndexArg2(index))];
+  }
+
+  /**
+   * Returns the offset in the side arrays of the constant of an AFFINE entry.
+   * @param indexArg2 The second argument index of the entry.
+   * @return The offset.
+   */
+  static int affineOffset(int indexArg2) {
+    return -2 - indexArg2;
+  }
+
+  /**
+   * Returns the number of arguments of a MANUAL_NARY entry.
+   * @param index The entry index.
+   * @return The number of arguments.
+   */
+  public int getManualNbArgs(int index) {
+    checkManual(index);
+    return storage.getIndexArg2(index);
+  }
+
+  /**
+   * Returns the tape index of one argument of a MANUAL_NARY entry.
+   * @param index The entry index.
+   * @param argNumber The argument number, between 0 (included) and the number of arguments (excluded).
+   * @return The argument index.
+   */
+  public int getManualIndexArg(int index, int argNumber) {
+    checkManual(index);
+    return manualIndexArgs[storage.getIndexArg1(index) + argNumber];
+  }
+
+  /**
+   * Returns the derivative of a MANUAL_NARY entry with respect to one of its arguments.
+   * @param index The entry index.
+   * @param argNumber The argument number, between 0 (included) and the number of arguments (excluded).
+   * @return The derivative.
+   */
+  public double getManualDerivative(int index, int argNumber) {
+    checkManual(index);
+    return manualDerivatives[storage.getIndexArg1(index) + argNumber];
+  }
+
+  /**
+   * Returns the array holding the argument indices of the MANUAL_NARY entries. Used by the interpreters of 
+   * this package.
+   * @return The array.
+   */
+  int[] manualIndexArgs() {
+    return manualIndexArgs;
+  }
+
+  /**
+   * Returns the array holding the derivatives of the MANUAL_NARY entries. Used by the interpreters of this package.
+   * @return The array.
+   */
+  double[] manualDerivatives() {
+    return manualDerivatives;
+  }
+
+  /**
+   * Returns whether the tape records the local partial derivatives of each entry.
+   * @return The flag.
+   */
+  public boolean isRecordingPartials() {
+    return recordPartials;
+  }
+
+  /**
+   * Returns the partial derivative of an entry with respect to its first argument. 
+   * Available only if the tape records the partial derivatives.
+   * @param index The entry index.
+   * @return The partial derivative.
+   */
+  public double getPartialArg1(int index) {
+    checkRecordingPartials();
+    return storage.getPartialArg1(index);
+  }
+
+  /**
+   * Returns the partial derivative of an entry with respect to its second argument. 
+   * Available only if the tape records the partial derivatives.
+   * @param index The entry index.
+   * @return The partial derivative.
+   */
+  public double getPartialArg2(int index) {
+    checkRecordingPartials();
+    return storage.getPartialArg2(index);
+  }
+
+  /**
+   * Returns the value bar of an entry. Populated only when the tape has been interpreted.
+   * @param index The entry index.
+   * @return The value bar.
+   */
+  public double getValueBar(int index) {
+    return (index < valueBar.length) ? valueBar[index] : 0.0d;
+  }
+
+  /**
+   * Adds a given amount to the value bar of an entry. The tape is modified by this method.
+   * @param index The entry index.
+   * @param valueBar The amount to add.
+   */
+  public void addValueBar(int index, double valueBar) {
+    checkNotFrozen();
+    valueBars()[index] += valueBar;
+  }
+
+  /**
+   * Returns the number of elements used in the side arrays of the MANUAL_NARY and AFFINE entries.
+   * @return The number of elements.
+   */
+  int manualSize() {
+    return manualSize;
+  }
+
+  /**
+   * Returns the bit set of the entries whose value is read by the backward sweep.
+   * @return The bit set, possibly longer than required.
+   */
+  long[] valueRead() {
+    refreshValueRead();
+    return valueRead;
+  }
+
+  /**
+   * Returns the storage of the entries.
+   * @return The storage.
+   */
+  TapeStorage storage() {
+    return storage;
+  }
+
+  /**
+   * Returns the array holding the values of the tape. Used by the interpreters of this package.
+   * @return The array, with a length at least equal to the size of the tape. Null if the entries are stored
+   *   outside of the heap.
+   */
+  double[] values() {
+    return storage.values();
+  }
+
+  /**
+   * Returns the array holding the value bars of the tape, allocating or extending it if required. 
+   * Used by the interpreters of this package.
+   * @return The array, with a length at least equal to the size of the tape.
+   */
+  double[] valueBars() {
+    if (valueBar.length < size) {
+      valueBar = Arrays.copyOf(valueBar, storage.capacity());
+    }
+    return valueBar;
+  }
+
+  /**
+   * Checks that the tape is not frozen.
+   */
+  private void checkNotFrozen() {
+    if (frozen) {
+      throw new IllegalStateException("The tape is frozen");
+    }
+  }
+
+  /**
+   * Checks that the storage of the tape is not shared with other tapes.
+   */
+  private void checkNotShared() {
+    if (storage.isShared()) {
+      throw new IllegalStateException("The entries of a concurrent tape can not be removed");
+    }
+  }
+
+  /**
+   * Checks that the tape records the local partial derivatives.
+   */
+  private void checkRecordingPartials() {
+    if (!recordPartials) {
+      throw new IllegalStateException("The tape does not record the partial derivatives");
+    }
+  }
+
+  /**
+   * Checks that an entry is a MANUAL_NARY entry.
+   * @param index The entry index.
+   */
+  private void checkManual(int index) {
+    ArgChecker.isTrue(getOperationType(index) == OperationTypeAad.MANUAL_NARY, 
+        "entry {} is not a MANUAL_NARY entry", index);
+  }
+
+  /**
+   * Checks that an index refers to an entry of the tape.
+   * @param index The index.
+   */
+  private void checkIndex(int index) {
+    int limit = storage.isShared() ? storage.capacity() : size; // Entries recorded by the other tapes
+    if (index < 0 || index >= limit) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + limit);
+    }
   }
 
 }
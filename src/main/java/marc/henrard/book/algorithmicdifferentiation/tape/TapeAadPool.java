@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of reusable {@link TapeAad}.
+ * <p>
+ * The pool is thread-confined: each thread borrows from and returns to its own set of tapes,
+ * there is no synchronization. The tapes are pre-sized and reset when returned, so that in steady state
+ * borrowing a tape and recording on it does not allocate any memory on the tape side.
+ */
+public class TapeAadPool {
+
+  /** The default capacity of the tapes created by the pool. */
+  private static final int DEFAULT_TAPE_CAPACITY = 1024;
+  /** A default pool, shared by the formulas. */
+  public static final TapeAadPool DEFAULT = new TapeAadPool(DEFAULT_TAPE_CAPACITY);
+
+  /** The initial capacity of the tapes created by the pool. */
+  private final int tapeCapacity;
+  /** The tapes available for each thread. */
+  private final ThreadLocal<ArrayDeque<TapeAad>> tapes;
+
+  /**
+   * Constructor.
+   * @param tapeCapacity The initial capacity of the tapes created by the pool.
+   */
+  public TapeAadPool(int tapeCapacity) {
+    this.tapeCapacity = tapeCapacity;
+    this.tapes = ThreadLocal.withInitial(ArrayDeque::new);
+  }
+
+  /**
+   * Borrows an empty tape from the pool. A new tape is created if none is available for the current thread.
+   * @return The tape.
+   */
+  public TapeAad borrow() {
+    TapeAad tape = tapes.get().pollFirst();
+    return (tape == null) ? new TapeAad(tapeCapacity) : tape;
+  }
+
+  /**
+   * Returns a tape to the pool. The tape is reset and should not be used by the caller anymore.
+   * <p>
+   * A tape already available in the pool of the current thread can not be returned again: two later borrowers
+   * would share it.
+   * @param tape The tape.
+   * @throws IllegalStateException if the tape has already been returned to the pool
+   */
+  public void release(TapeAad tape) {
+    ArrayDeque<TapeAad> available = tapes.get();
+    if (available.contains(tape)) { // Identity, the tapes do not override equals
+      throw new IllegalStateException("The tape has already been returned to the pool");
+    }
+    tape.reset();
+    available.addFirst(tape);
+  }
+
+  /**
+   * Returns the number of tapes available in the pool for the current thread.
+   * @return The number of tapes.
+   */
+  public int available() {
+    return tapes.get().size();
+  }
+
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import com.opengamma.strata.collect.ArgChecker;
+
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleDerivatives;
+
+/**
+ * Adjoint Algorithmic Differentiation of a time-stepped computation with checkpoints.
+ * <p>
+ * The computation is a sequence of steps, each one transforming a state with some parameters. Recording all the
+ * steps on one tape would require a memory proportional to the number of steps. With checkpoints, the forward pass
+ * stores only the state at the start of each segment of steps (the checkpoints); each step is recorded on a tape
+ * which is immediately reset. The backward pass processes the segments in reverse order: the steps of the segment
+ * are recorded again from the checkpoint and the tape is interpreted with the adjoints of the segment final state
+ * as weights, producing the adjoints of the segment initial state and the contribution to the parameter adjoints.
+ * <p>
+ * The segments have a constant number of steps (the interval). The memory is proportional to the interval for the
+ * tape and to the number of segments for the checkpoints; with the default interval, the square root of the
+ * number of steps, both are O(&radic;N). Each step is computed twice. The tapes are borrowed from
+ * {@link TapeAadPool#DEFAULT} and the value bars of the backward pass are stored in one workspace reused by all
+ * the segments.
+ * <p>
+ * The instances are not thread-safe: they keep the maximal tape size of the last computation.
+ */
+public class TapeCheckpointing {
+
+  /**
+   * One step of a time-stepped computation.
+   */
+  @FunctionalInterface
+  public interface Step {
+
+    /**
+     * Computes the state after one step and records the operations in the tape.
+     * @param stepIndex The index of the step, between 0 (included) and the number of steps (excluded).
+     * @param state The state before the step.
+     * @param parameters The parameters.
+     * @param tape The tape where the operations are recorded.
+     * @return The state after the step, with the same number of elements as the state before the step.
+     */
+    DoubleAad[] apply(int stepIndex, DoubleAad[] state, DoubleAad[] parameters, TapeAad tape);
+  }
+
+  /** The step. */
+  private final Step step;
+  /** The number of steps. */
+  private final int nbSteps;
+  /** The number of steps in each segment between checkpoints. */
+  private final int interval;
+  /** The maximal size of the tape in the last computation. */
+  private int maxTapeSize;
+
+  /**
+   * Creates a checkpointed computation with the default interval, the square root of the number of steps.
+   * @param step The step.
+   * @param nbSteps The number of steps.
+   */
+  public TapeCheckpointing(Step step, int nbSteps) {
+    this(step, nbSteps, defaultInterval(nbSteps));
+  }
+
+  /**
+   * Creates a checkpointed computation.
+   * @param step The step.
+   * @param nbSteps The number of steps.
+   * @param interval The number of steps in each segment between checkpoints. A larger interval requires more tape
+   *   memory and less checkpoints memory.
+   */
+  public TapeCheckpointing(Step step, int nbSteps, int interval) {
+    ArgChecker.notNegative(nbSteps, "nbSteps");
+    ArgChecker.isTrue(interval > 0, "interval should be strictly positive");
+    this.step = step;
+    this.nbSteps = nbSteps;
+    this.interval = interval;
+  }
+
+  /**
+   * Returns the default interval for a number of steps: the square root of the number of steps, rounded up.
+   * @param nbSteps The number of steps.
+   * @return The interval.
+   */
+  public static int defaultInterval(int nbSteps) {
+    return Math.max(1, (int) Math.ceil(Math.sqrt(nbSteps)));
+  }
+
+  /**
+   * Returns the number of steps in each segment between checkpoints.
+   * @return The interval.
+   */
+  public int getInterval() {
+    return interval;
+  }
+
+  /**
+   * Returns the maximal number of entries in the tape during the last computation.
+   * @return The maximal tape size.
+   */
+  public int getMaxTapeSize() {
+    return maxTapeSize;
+  }
+
+  /**
+   * Computes a weighted sum of the final state and its derivatives with respect to the initial state and
+   * the parameters.
+   * @param initialState The initial state.
+   * @param parameters The parameters.
+   * @param weights The weights of the final state elements.
+   * @return The weighted sum of the final state and its derivatives with respect to the initial state elements
+   *   followed by the parameters.
+   */
+  public DoubleDerivatives valueAndDerivatives(double[] initialState, double[] parameters, double[] weights) {
+    int nbState = initialState.length;
+    int nbParameters = parameters.length;
+    ArgChecker.isTrue(weights.length == nbState,
+        "weights length {} should be equal to the state length {}", weights.length, nbState);
+    // Forward: checkpoints at the start of each segment
+    int nbSegments = (nbSteps + interval - 1) / interval;
+    double[][] checkpoints = new double[nbSegments][];
+    double[] state = initialState.clone();
+    maxTapeSize = 0;
+    TapeAad tape = TapeAadPool.DEFAULT.borrow();
+    try {
+      for (int loops = 0; loops < nbSteps; loops++) {
+        if (loops % interval == 0) {
+          checkpoints[loops / interval] = state.clone();
+        }
+        state = values(record(tape, loops, loops + 1, state, parameters));
+        maxTapeSize = Math.max(maxTapeSize, tape.size());
+        tape.reset();
+      }
+      double value = 0.0d;
+      for (int loopi = 0; loopi < nbState; loopi++) {
+        value += weights[loopi] * state[loopi];
+      }
+      // Backward: segments in reverse order
+      double[] stateBar = weights.clone();
+      double[] derivatives = new double[nbState + nbParameters];
+      double[] workspace = new double[0]; // Reused by the segments, grown to the largest segment tape
+      for (int loopsg = nbSegments - 1; loopsg >= 0; loopsg--) {
+        int startStep = loopsg * interval;
+        int endStep = Math.min(startStep + interval, nbSteps);
+        DoubleAad[] segmentState = record(tape, startStep, endStep, checkpoints[loopsg], parameters);
+        maxTapeSize = Math.max(maxTapeSize, tape.size());
+        if (workspace.length < tape.size()) {
+          workspace = new double[tape.size()];
+        }
+        double[] segmentDerivatives = TapeUtils.interpret(tape, segmentState, stateBar, workspace);
+        System.arraycopy(segmentDerivatives, 0, stateBar, 0, nbState);
+        for (int loopp = 0; loopp < nbParameters; loopp++) {
+          derivatives[nbState + loopp] += segmentDerivatives[nbState + loopp];
+        }
+        tape.reset();
+      }
+      System.arraycopy(stateBar, 0, derivatives, 0, nbState);
+      return new DoubleDerivatives(value, derivatives);
+    } finally {
+      TapeAadPool.DEFAULT.release(tape);
+    }
+  }
+
+  /**
+   * Records a segment of steps on a tape, with the initial state and the parameters as inputs.
+   * @param tape The tape, empty.
+   * @param startStep The first step of the segment.
+   * @param endStep The step after the last step of the segment.
+   * @param initialState The initial state of the segment.
+   * @param parameters The parameters.
+   * @return The final state of the segment.
+   */
+  private DoubleAad[] record(TapeAad tape, int startStep, int endStep, double[] initialState, double[] parameters) {
+    DoubleAad[] state = new DoubleAad[initialState.length];
+    for (int loopi = 0; loopi < initialState.length; loopi++) {
+      state[loopi] = DoubleAad.input(initialState[loopi], tape);
+    }
+    DoubleAad[] parametersAad = new DoubleAad[parameters.length];
+    for (int loopp = 0; loopp < parameters.length; loopp++) {
+      parametersAad[loopp] = DoubleAad.input(parameters[loopp], tape);
+    }
+    for (int loops = startStep; loops < endStep; loops++) {
+      state = step.apply(loops, state, parametersAad, tape);
+      ArgChecker.isTrue(state.length == initialState.length,
+          "step {} returned a state of length {}, expected {}", loops, state.length, initialState.length);
+    }
+    return state;
+  }
+
+  /**
+   * Returns the values of augmented doubles.
+   * @param state The augmented doubles.
+   * @return The values.
+   */
+  private static double[] values(DoubleAad[] state) {
+    double[] values = new double[state.length];
+    for (int loopi = 0; loopi < state.length; loopi++) {
+      values[loopi] = state[loopi].value();
+    }
+    return values;
+  }
+
+}
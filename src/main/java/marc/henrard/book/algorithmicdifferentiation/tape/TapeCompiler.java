@@ -0,0 +1,350 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.ToDoubleBiFunction;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import com.opengamma.strata.collect.ArgChecker;
+
+import cern.jet.random.Normal;
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+/**
+ * Compiler of frozen {@link TapeAad} into {@link TapeKernel}.
+ * <p>
+ * The tape is translated into the Java source of a class with straight-line code: the forward evaluation of the
+ * entries followed by the backward propagation of the value bars, each entry value and value bar in a local
+ * variable. The source is compiled in memory with the system Java compiler and the class loaded in a dedicated
+ * class loader. There is no dispatch on the operation type and no array access for the intermediary results.
+ * <p>
+ * The compiler is intended for tapes of fixed-topology formulas, with a few hundred entries at most.
+ * Only the entries contributing to the output are compiled. The GUARD entries are checked and the kernel throws an
+ * {@link IllegalStateException} if the inputs are not on the branch recorded. The MANUAL, MANUAL_NARY and
+ * COMPOSITION entries can not be compiled, their derivatives depend on the inputs in a way which is not stored
+ * in the tape.
+ */
+public class TapeCompiler {
+
+  /** The normal distribution implementation, used for the cumulative distribution function in the kernels. */
+  private static final Normal NORMAL = new Normal(0.0d, 1.0d, null);
+  /** The counter used to name the generated classes. */
+  private static final AtomicInteger COUNTER = new AtomicInteger();
+
+  /**
+   * Compiles a tape into a kernel computing an output and its derivatives with respect to the inputs.
+   * @param tape The tape. It should be frozen.
+   * @param outputIndex The tape index of the output.
+   * @return The kernel.
+   */
+  public static TapeKernel compile(TapeAad tape, int outputIndex) {
+    if (!tape.isFrozen()) {
+      throw new IllegalStateException("The tape should be frozen to be compiled");
+    }
+    ArgChecker.inRange(outputIndex, 0, tape.size(), "outputIndex");
+    String className = "TapeKernel" + COUNTER.incrementAndGet();
+    String source = source(tape, outputIndex, className);
+    ToDoubleBiFunction<double[], double[]> function = load(className, source);
+    return function::applyAsDouble;
+  }
+
+  /**
+   * Generates the source of the kernel class.
+   * <p>
+   * The class implements {@link ToDoubleBiFunction} and has a constructor with the normal cumulative distribution
+   * function as argument; it uses only the JDK classes.
+   * @param tape The tape.
+   * @param outputIndex The tape index of the output.
+   * @param className The name of the class.
+   * @return The source.
+   */
+  static String source(TapeAad tape, int outputIndex, String className) {
+    boolean[] live = liveEntries(tape, outputIndex);
+    StringBuilder code = new StringBuilder();
+    code.append("public final class ").append(className)
+        .append(" implements java.util.function.ToDoubleBiFunction<double[], double[]> {\n")
+        .append("  private final java.util.function.DoubleUnaryOperator normalCdf;\n")
+        .append("  public ").append(className).append("(java.util.function.DoubleUnaryOperator normalCdf) {\n")
+        .append("    this.normalCdf = normalCdf;\n")
+        .append("  }\n")
+        .append("  public double applyAsDouble(double[] in, double[] grad) {\n");
+    // Forward
+    int loopi = 0;
+    for (int loope = 0; loope <= outputIndex; loope++) {
+      OperationTypeAad type = tape.getOperationType(loope);
+      if (type == OperationTypeAad.INPUT) {
+        code.append("    double v").append(loope).append(" = in[").append(loopi++).append("];\n");
+        continue;
+      }
+      if (!live[loope]) {
+        continue;
+      }
+      String x = "v" + tape.getIndexArg1(loope);
+      String y = "v" + tape.getIndexArg2(loope);
+      String extra = literal(tape.getExtraValue(loope));
+      if (type == OperationTypeAad.GUARD || type == OperationTypeAad.GUARD_ABS) {
+        x = (type == OperationTypeAad.GUARD_ABS) ? "Math.abs(" + x + ")" : x;
+        double sign = tape.getValue(loope);
+        String branch = (sign < 0.0d) ? x + " < " + extra : 
+            ((sign > 0.0d) ? x + " > " + extra : "!(" + x + " < " + extra + " || " + x + " > " + extra + ")");
+        code.append("    if (!(").append(branch).append(")) {\n")
+            .append("      throw new IllegalStateException(")
+            .append("\"The inputs are not on the branch recorded in the tape\");\n")
+            .append("    }\n");
+        continue;
+      }
+      code.append("    double v").append(loope).append(" = ");
+      switch (type) {
+        case ADDITION:
+          code.append(x).append(" + ").append(y);
+          break;
+        case ADDITION1:
+          code.append(x).append(" + ").append(extra);
+          break;
+        case SUBTRACTION:
+          code.append(x).append(" - ").append(y);
+          break;
+        case MULTIPLICATION:
+          code.append(x).append(" * ").append(y);
+          break;
+        case MULTIPLICATION1:
+          code.append(x).append(" * ").append(extra);
+          break;
+        case AFFINE:
+          code.append(extra).append(" * ").append(x).append(" + ").append(literal(tape.getAffineConstant(loope)));
+          break;
+        case DIVISION:
+          code.append(x).append(" / ").append(y);
+          break;
+        case SIN:
+          code.append("Math.sin(").append(x).append(")");
+          break;
+        case COS:
+          code.append("Math.cos(").append(x).append(")");
+          break;
+        case EXP:
+          code.append("Math.exp(").append(x).append(")");
+          break;
+        case LOG:
+          code.append("Math.log(").append(x).append(")");
+          break;
+        case SQRT:
+          code.append("Math.sqrt(").append(x).append(")");
+          break;
+        case POW:
+          code.append("Math.pow(").append(x).append(", ").append(y).append(")");
+          break;
+        case POW1:
+          code.append("Math.pow(").append(x).append(", ").append(extra).append(")");
+          break;
+        case NORMALCDF:
+          code.append("normalCdf.applyAsDouble(").append(x).append(")");
+          break;
+        default: // MANUAL, MANUAL_NARY, COMPOSITION
+          throw new IllegalArgumentException(
+              "Entry " + loope + " of type " + type + " can not be compiled");
+      }
+      code.append(";\n");
+    }
+    // Backward
+    for (int loope = 0; loope <= outputIndex; loope++) {
+      if (live[loope] && !TapeUtils.isGuard(tape.getOperationType(loope))) {
+        code.append("    double b").append(loope).append(" = ").append((loope == outputIndex) ? "1.0d" : "0.0d")
+            .append(";\n");
+      }
+    }
+    for (int loope = outputIndex; loope >= 0; loope--) {
+      if (!live[loope]) {
+        continue;
+      }
+      String bar = "b" + loope;
+      String v = "v" + loope;
+      String x = "v" + tape.getIndexArg1(loope);
+      String y = "v" + tape.getIndexArg2(loope);
+      String xBar = "    b" + tape.getIndexArg1(loope);
+      String yBar = "    b" + tape.getIndexArg2(loope);
+      String extra = literal(tape.getExtraValue(loope));
+      switch (tape.getOperationType(loope)) {
+        case ADDITION:
+          code.append(xBar).append(" += ").append(bar).append(";\n");
+          code.append(yBar).append(" += ").append(bar).append(";\n");
+          break;
+        case ADDITION1:
+          code.append(xBar).append(" += ").append(bar).append(";\n");
+          break;
+        case SUBTRACTION:
+          code.append(xBar).append(" += ").append(bar).append(";\n");
+          code.append(yBar).append(" -= ").append(bar).append(";\n");
+          break;
+        case MULTIPLICATION:
+          code.append(xBar).append(" += ").append(y).append(" * ").append(bar).append(";\n");
+          code.append(yBar).append(" += ").append(x).append(" * ").append(bar).append(";\n");
+          break;
+        case MULTIPLICATION1:
+        case AFFINE:
+          code.append(xBar).append(" += ").append(extra).append(" * ").append(bar).append(";\n");
+          break;
+        case DIVISION:
+          code.append(xBar).append(" += ").append(bar).append(" / ").append(y).append(";\n");
+          code.append(yBar).append(" -= ").append(x).append(" / (").append(y).append(" * ").append(y).append(") * ")
+              .append(bar).append(";\n");
+          break;
+        case SIN:
+          code.append(xBar).append(" += Math.cos(").append(x).append(") * ").append(bar).append(";\n");
+          break;
+        case COS:
+          code.append(xBar).append(" -= Math.sin(").append(x).append(") * ").append(bar).append(";\n");
+          break;
+        case EXP:
+          code.append(xBar).append(" += ").append(v).append(" * ").append(bar).append(";\n");
+          break;
+        case LOG:
+          code.append(xBar).append(" += ").append(bar).append(" / ").append(x).append(";\n");
+          break;
+        case SQRT:
+          code.append(xBar).append(" += 0.5d / ").append(v).append(" * ").append(bar).append(";\n");
+          break;
+        case POW:
+          code.append(xBar).append(" += ").append(y).append(" * ").append(v).append(" / ").append(x).append(" * ")
+              .append(bar).append(";\n");
+          code.append(yBar).append(" += ").append(v).append(" * Math.log(").append(x).append(") * ")
+              .append(bar).append(";\n");
+          break;
+        case POW1:
+          code.append(xBar).append(" += ").append(extra).append(" * ").append(v).append(" / ").append(x)
+              .append(" * ").append(bar).append(";\n");
+          break;
+        case NORMALCDF:
+          code.append(xBar).append(" += Math.exp(-0.5d * ").append(x).append(" * ").append(x)
+              .append(") * 0.3989422804014327d * ").append(bar).append(";\n");
+          break;
+        default: // INPUT, GUARD, GUARD_ABS, NOP
+          break;
+      }
+    }
+    for (int loopk = 0; loopk < tape.getNbInputs(); loopk++) {
+      int inputIndex = tape.getInputIndex(loopk);
+      code.append("    grad[").append(loopk).append("] = ")
+          .append((inputIndex <= outputIndex) ? "b" + inputIndex : "0.0d").append(";\n");
+    }
+    code.append("    return v").append(outputIndex).append(";\n")
+        .append("  }\n")
+        .append("}\n");
+    return code.toString();
+  }
+
+  /**
+   * Returns the entries contributing to the output and the GUARD entries before the output, with their arguments.
+   * @param tape The tape.
+   * @param outputIndex The tape index of the output.
+   * @return The flags.
+   */
+  private static boolean[] liveEntries(TapeAad tape, int outputIndex) {
+    boolean[] live = new boolean[outputIndex + 1];
+    live[outputIndex] = true;
+    for (int loope = outputIndex; loope >= 0; loope--) {
+      OperationTypeAad type = tape.getOperationType(loope);
+      if (TapeUtils.isGuard(type) || type == OperationTypeAad.INPUT) {
+        live[loope] = true;
+      }
+      if (live[loope] && type != OperationTypeAad.MANUAL_NARY) {
+        if (tape.getIndexArg1(loope) >= 0) {
+          live[tape.getIndexArg1(loope)] = true;
+        }
+        if (tape.getIndexArg2(loope) >= 0) {
+          live[tape.getIndexArg2(loope)] = true;
+        }
+      }
+    }
+    return live;
+  }
+
+  /**
+   * Returns the Java literal of a double.
+   * @param value The value.
+   * @return The literal.
+   */
+  private static String literal(double value) {
+    if (Double.isNaN(value)) {
+      return "Double.NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return (value > 0) ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+    }
+    return "(" + Double.toString(value) + "d)";
+  }
+
+  /**
+   * Compiles the source of a kernel class in memory and creates an instance.
+   * @param className The name of the class.
+   * @param source The source.
+   * @return The instance.
+   */
+  @SuppressWarnings("unchecked")
+  private static ToDoubleBiFunction<double[], double[]> load(String className, String source) {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      throw new IllegalStateException("No Java compiler available to compile the tape");
+    }
+    JavaFileObject sourceFile = new SimpleJavaFileObject(
+        URI.create("string:///" + className + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return source;
+      }
+    };
+    ByteArrayOutputStream bytecode = new ByteArrayOutputStream();
+    JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(
+        compiler.getStandardFileManager(null, null, null)) {
+      @Override
+      public JavaFileObject getJavaFileForOutput(
+          Location location, String name, JavaFileObject.Kind kind, FileObject sibling) {
+        return new SimpleJavaFileObject(URI.create("bytes:///" + name + kind.extension), kind) {
+          @Override
+          public OutputStream openOutputStream() {
+            return bytecode;
+          }
+        };
+      }
+    };
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    boolean success = compiler.getTask(null, fileManager, diagnostics, Arrays.asList("-proc:none"), null,
+        Arrays.asList(sourceFile)).call();
+    if (!success) {
+      throw new IllegalStateException("The compilation of the tape failed: " + diagnostics.getDiagnostics());
+    }
+    byte[] classBytes = bytecode.toByteArray();
+    ClassLoader loader = new ClassLoader(TapeCompiler.class.getClassLoader()) {
+      @Override
+      protected Class<?> findClass(String name) throws ClassNotFoundException {
+        if (name.equals(className)) {
+          return defineClass(name, classBytes, 0, classBytes.length);
+        }
+        throw new ClassNotFoundException(name);
+      }
+    };
+    try {
+      DoubleUnaryOperator normalCdf = NORMAL::cdf;
+      return (ToDoubleBiFunction<double[], double[]>) loader.loadClass(className)
+          .getConstructor(DoubleUnaryOperator.class).newInstance(normalCdf);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("The compiled tape can not be loaded", e);
+    }
+  }
+
+}
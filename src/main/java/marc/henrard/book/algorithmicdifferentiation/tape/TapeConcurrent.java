@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.opengamma.strata.collect.ArgChecker;
+
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+/**
+ * One logical tape recorded concurrently by several threads.
+ * <p>
+ * Each thread records through its own writer, a {@link TapeAad} returned by {@link #writer()}. The entries of all
+ * the writers are stored in one index space, divided in blocks. A writer reserves a block with an atomic increment
+ * and writes its entries in the block without lock; when the block is full, it reserves a new one. An entry is always
+ * recorded after its arguments, even when they have been recorded by another thread: if an argument is after the
+ * current position of the writer, the writer moves to a new block, reserved after the block of the argument.
+ * The reverse sweep order of the tape is thus valid. The unused entries of the blocks are NOP entries.
+ * <p>
+ * The typical use is the pricing of the independent components of a basket in a fork/join pool: the inputs are
+ * recorded by the main thread, each component is recorded by a task with the writer of its thread and the results
+ * are combined by the main thread. A {@link marc.henrard.book.algorithmicdifferentiation.type.DoubleAad} recorded
+ * by one writer can be used by another writer once it has been passed between the threads with a happens-before
+ * relation, for example as the result of a task joined.
+ * <p>
+ * Once all the writers are done, {@link #freeze()} assembles the frozen tape which can be interpreted by all the
+ * methods of {@link TapeUtils}. The inputs are numbered in the order of their tape indices, which is the order in
+ * which they have been recorded if they are recorded by one thread. The writers can not rewind their tape or open
+ * preaccumulation scopes.
+ */
+public class TapeConcurrent {
+
+  /** The default binary logarithm of the number of entries in a block. */
+  private static final int DEFAULT_BLOCK_SHIFT = 10;
+
+  /** The storage shared by the writers. */
+  private final ConcurrentTapeStorage storage;
+  /** Whether the local partial derivatives of each entry are recorded. */
+  private final boolean recordPartials;
+  /** The writers, indexed by their number. */
+  private final List<TapeAad> writers = new CopyOnWriteArrayList<>();
+  /** The writer of each thread, cleared when the tape is frozen. The threads do not hold references to the tape. */
+  private final Map<Thread, TapeAad> writerByThread = new ConcurrentHashMap<>();
+  /** The tape assembled when frozen, null before. */
+  private volatile TapeAad frozen;
+
+  /**
+   * Creates a concurrent tape with blocks of 1024 entries, without the local partial derivatives.
+   */
+  public TapeConcurrent() {
+    this(1 << DEFAULT_BLOCK_SHIFT, false);
+  }
+
+  /**
+   * Creates a concurrent tape.
+   * @param blockSize The number of entries in a block. It should be a power of two, at least 16. Larger blocks
+   *   reduce the contention on the block counter, smaller blocks the number of NOP entries.
+   * @param recordPartials Whether the local partial derivatives of each entry are recorded.
+   */
+  public TapeConcurrent(int blockSize, boolean recordPartials) {
+    ArgChecker.isTrue(blockSize >= 16 && Integer.bitCount(blockSize) == 1,
+        "blockSize {} should be a power of two, at least 16", blockSize);
+    this.storage = new ConcurrentTapeStorage(Integer.numberOfTrailingZeros(blockSize), recordPartials);
+    this.recordPartials = recordPartials;
+  }
+
+  /**
+   * Returns the tape through which the current thread records its entries. The same tape is returned to each call
+   * from the same thread. The tape should be used only by its thread.
+   * @return The tape.
+   */
+  public TapeAad writer() {
+    if (frozen != null) {
+      throw new IllegalStateException("The concurrent tape is frozen");
+    }
+    return writerByThread.computeIfAbsent(Thread.currentThread(), thread -> newWriter());
+  }
+
+  /**
+   * Returns the number of threads which have recorded in the tape.
+   * @return The number of writers.
+   */
+  public int getNbWriters() {
+    return writers.size();
+  }
+
+  /**
+   * Returns the number of blocks reserved by the writers.
+   * @return The number of blocks.
+   */
+  public int getNbBlocks() {
+    return storage.nbBlocks();
+  }
+
+  /**
+   * Freezes the concurrent tape and returns the logical tape with the entries of all the writers.
+   * <p>
+   * All the writers should be done: their tasks should be completed and joined by the calling thread. The writers
+   * are frozen. The tape returned shares the storage of the writers; its size is the number of entries in the
+   * blocks reserved, including the NOP entries. The method can be called only once.
+   * @return The frozen tape.
+   */
+  public synchronized TapeAad freeze() {
+    if (frozen != null) {
+      throw new IllegalStateException("The concurrent tape is already frozen");
+    }
+    writerByThread.clear();
+    int nbWriters = writers.size();
+    int size = storage.capacity();
+    int nbInputs = 0;
+    int manualSize = 0;
+    int[] manualOffsets = new int[nbWriters];
+    long[] valueRead = new long[(size >>> 6) + 1];
+    for (int loopw = 0; loopw < nbWriters; loopw++) {
+      TapeAad tape = writers.get(loopw);
+      ((ConcurrentTapeStorage.Writer) tape.storage()).pad(tape.size());
+      tape.freeze();
+      nbInputs += tape.getNbInputs();
+      manualOffsets[loopw] = manualSize;
+      manualSize += tape.manualSize();
+      long[] tapeValueRead = tape.valueRead();
+      for (int loopb = 0; loopb < Math.min(tapeValueRead.length, valueRead.length); loopb++) {
+        valueRead[loopb] |= tapeValueRead[loopb];
+      }
+    }
+    int[] inputIndices = new int[nbInputs];
+    int[] manualIndexArgs = new int[manualSize];
+    double[] manualDerivatives = new double[manualSize];
+    int nbInputsCopied = 0;
+    for (int loopw = 0; loopw < nbWriters; loopw++) {
+      TapeAad tape = writers.get(loopw);
+      for (int loopi = 0; loopi < tape.getNbInputs(); loopi++) {
+        inputIndices[nbInputsCopied++] = tape.getInputIndex(loopi);
+      }
+      System.arraycopy(tape.manualIndexArgs(), 0, manualIndexArgs, manualOffsets[loopw], tape.manualSize());
+      System.arraycopy(tape.manualDerivatives(), 0, manualDerivatives, manualOffsets[loopw], tape.manualSize());
+    }
+    Arrays.sort(inputIndices);
+    // The offsets of the MANUAL_NARY and AFFINE entries refer to the side arrays of their writer
+    byte manualNary = (byte) OperationTypeAad.MANUAL_NARY.ordinal();
+    byte affine = (byte) OperationTypeAad.AFFINE.ordinal();
+    int blockShift = Integer.numberOfTrailingZeros(storage.blockSize());
+    for (int loope = 0; loope < size; loope++) {
+      if (storage.getOperationType(loope) == manualNary) {
+        int owner = storage.owner(loope >>> blockShift);
+        storage.setIndexArg1(loope, storage.getIndexArg1(loope) + manualOffsets[owner]);
+      } else if (storage.getOperationType(loope) == affine) {
+        int owner = storage.owner(loope >>> blockShift);
+        storage.setIndexArg2(loope, storage.getIndexArg2(loope) - manualOffsets[owner]);
+      }
+    }
+    frozen = new TapeAad(storage, recordPartials, size, inputIndices, manualIndexArgs, manualDerivatives, valueRead);
+    return frozen;
+  }
+
+  /**
+   * Creates the writer of the current thread.
+   * @return The writer.
+   */
+  private synchronized TapeAad newWriter() {
+    if (frozen != null) {
+      throw new IllegalStateException("The concurrent tape is frozen");
+    }
+    TapeAad tape = new TapeAad(new ConcurrentTapeStorage.Writer(storage, writers.size()), recordPartials);
+    writers.add(tape);
+    return tape;
+  }
+
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.util.ArrayDeque;
+import java.util.function.BiFunction;
+
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleDerivatives;
+
+/**
+ * Thread-local context managing the {@link TapeAad} of each thread.
+ * <p>
+ * A thread opens a context with {@link #begin()}, which borrows a tape from {@link TapeAadPool#DEFAULT}.
+ * The tape of the innermost context of the thread is available through {@link #current()}. The tape can be frozen
+ * with {@link #freeze()} and swept with {@link #sweep(DoubleAad)}, with a workspace owned by the thread.
+ * The context is closed by {@link #release()}, which returns the tape to the pool. Contexts can be nested.
+ * <p>
+ * As each thread uses its own tapes and workspaces, the computations of several threads, for example the pricing
+ * of a batch of options in a parallel stream or a fork/join pool, are independent: there is no synchronization.
+ * The complete life cycle of a computation is available in {@link #valueAndDerivatives(double[], BiFunction)}.
+ */
+public class TapeContext {
+
+  /** The tapes of the open contexts of each thread, the innermost first. */
+  private static final ThreadLocal<ArrayDeque<TapeAad>> TAPES = ThreadLocal.withInitial(ArrayDeque::new);
+  /** The workspace of each thread for the value bars. */
+  private static final ThreadLocal<double[][]> WORKSPACE = ThreadLocal.withInitial(() -> new double[1][0]);
+
+  /**
+   * Opens a context for the current thread, with an empty tape borrowed from the default pool.
+   * @return The tape of the context.
+   */
+  public static TapeAad begin() {
+    TapeAad tape = TapeAadPool.DEFAULT.borrow();
+    TAPES.get().addFirst(tape);
+    return tape;
+  }
+
+  /**
+   * Returns the tape of the innermost context of the current thread.
+   * @return The tape.
+   */
+  public static TapeAad current() {
+    TapeAad tape = TAPES.get().peekFirst();
+    if (tape == null) {
+      throw new IllegalStateException("No tape context is open for the current thread");
+    }
+    return tape;
+  }
+
+  /**
+   * Returns the number of contexts open for the current thread.
+   * @return The number of contexts.
+   */
+  public static int depth() {
+    return TAPES.get().size();
+  }
+
+  /**
+   * Records an input in the tape of the innermost context of the current thread.
+   * @param value The value of the input.
+   * @return The input.
+   */
+  public static DoubleAad input(double value) {
+    return DoubleAad.input(value, current());
+  }
+
+  /**
+   * Freezes the tape of the innermost context of the current thread.
+   */
+  public static void freeze() {
+    current().freeze();
+  }
+
+  /**
+   * Computes the derivatives of an output with respect to the inputs of the tape of the innermost context
+   * of the current thread. The value bars are stored in a workspace of the thread, the tape is not modified.
+   * @param output The output, recorded in the tape.
+   * @return The derivatives with respect to the inputs, in the order in which they have been recorded.
+   */
+  public static double[] sweep(DoubleAad output) {
+    TapeAad tape = current();
+    return TapeUtils.interpret(tape, output.tapeIndex(), workspace(tape.size()));
+  }
+
+  /**
+   * Closes the innermost context of the current thread and returns its tape to the pool.
+   * The tape is reset and should not be used anymore.
+   */
+  public static void release() {
+    TapeAad tape = current();
+    TAPES.get().pollFirst();
+    TapeAadPool.DEFAULT.release(tape);
+  }
+
+  /**
+   * Closes the context of a tape of the current thread and all the contexts opened after it, returning their tapes
+   * to the pool. Used to restore the contexts of the thread when the code run in a context may leave nested
+   * contexts open, for example when it throws an exception.
+   * @param tape The tape of the context, as returned by {@link #begin()}.
+   */
+  public static void release(TapeAad tape) {
+    ArrayDeque<TapeAad> tapes = TAPES.get();
+    boolean found = false;
+    for (TapeAad open : tapes) {
+      if (open == tape) {
+        found = true;
+        break;
+      }
+    }
+    if (!found) {
+      throw new IllegalStateException("The tape is not the one of an open context of the current thread");
+    }
+    TapeAad released;
+    do {
+      released = tapes.pollFirst();
+      TapeAadPool.DEFAULT.release(released);
+    } while (released != tape);
+  }
+
+  /**
+   * Computes the value of a function and its derivatives in a context of the current thread.
+   * <p>
+   * A context is opened, the inputs are recorded, the function is recorded and the tape is frozen and swept.
+   * The context is released, even if the function throws an exception; the contexts left open by the function
+   * are released with it.
+   * @param inputs The values of the inputs.
+   * @param function The function, recording its operations in the tape.
+   * @return The value and the derivatives with respect to the inputs.
+   */
+  public static DoubleDerivatives valueAndDerivatives(
+      double[] inputs,
+      BiFunction<DoubleAad[], TapeAad, DoubleAad> function) {
+    TapeAad tape = begin();
+    try {
+      DoubleAad[] inputsAad = new DoubleAad[inputs.length];
+      for (int loopi = 0; loopi < inputs.length; loopi++) {
+        inputsAad[loopi] = DoubleAad.input(inputs[loopi], tape);
+      }
+      DoubleAad output = function.apply(inputsAad, tape);
+      tape.freeze();
+      return new DoubleDerivatives(output.value(),
+          TapeUtils.interpret(tape, output.tapeIndex(), workspace(tape.size())));
+    } finally {
+      release(tape);
+    }
+  }
+
+  /**
+   * Returns the workspace of the current thread, with a length at least equal to a given size.
+   * @param size The minimal length.
+   * @return The workspace.
+   */
+  private static double[] workspace(int size) {
+    double[][] workspace = WORKSPACE.get();
+    if (workspace[0].length < size) {
+      workspace[0] = new double[Math.max(size, 2 * workspace[0].length)];
+    }
+    return workspace[0];
+  }
+
+}
@@ -7,6 +7,9 @@ import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
 
 /**
  * The description of one entry for a Adjoint (or reverse) Algorithmic Differentiation tape.
+ * <p>
+ * The {@link TapeAad} stores its entries in primitive arrays; this class is used to describe an entry 
+ * when adding it to a tape and to return a copy of an entry stored in a tape.
  */
 public class TapeEntryAad {
   
@@ -47,6 +50,30 @@ public class TapeEntryAad {
     valueBar = 0.0d;
   }
   
+  /**
+   * Constructor of a tape entry with two arguments, an extra value and a value bar.
+   * @param operationType  The AD type of operation
+   * @param indexArg1 The tape index of the operation first argument.
+   * @param indexArg2 The tape index of the operation second argument.
+   * @param value The value of the result.
+   * @param extraValue Extra value required in some cases for further processing.
+   * @param valueBar The derivative of the final value with respect to the variable.
+   */
+  TapeEntryAad(
+      OperationTypeAad operationType, 
+      int indexArg1, 
+      int indexArg2, 
+      double value, 
+      double extraValue,
+      double valueBar) {
+    this.operationType = operationType;
+    this.indexArg1 = indexArg1;
+    this.indexArg2 = indexArg2;
+    this.value = value;
+    this.extraValue = extraValue;
+    this.valueBar = valueBar;
+  }
+  
   /**
    * Constructor of a tape entry with two arguments.
    * @param operationType  The AD type of operation
@@ -162,6 +189,8 @@ public class TapeEntryAad {
 
   /**
    * Adds a given value to the valueBar argument. The entry is modified by this method.
+   * The entries returned by {@link TapeAad#getEntry(int)} are copies; use {@link TapeAad#addValueBar(int, double)}
+   * to modify the value bar stored in a tape.
    * @param valueBar Return the total.
    */
   public void addValueBar(double valueBar) {
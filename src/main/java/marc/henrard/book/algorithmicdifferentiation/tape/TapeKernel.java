@@ -0,0 +1,19 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+/**
+ * Function computing a value and its gradient, as compiled from a {@link TapeAad} by {@link TapeCompiler}.
+ */
+public interface TapeKernel {
+
+  /**
+   * Computes the value of the function and its gradient with respect to the inputs.
+   * @param inputs The values of the inputs, in the order in which they have been recorded in the tape.
+   * @param gradient The array where the derivatives with respect to the inputs are written.
+   * @return The value of the function.
+   */
+  double valueAndGradient(double[] inputs, double[] gradient);
+
+}
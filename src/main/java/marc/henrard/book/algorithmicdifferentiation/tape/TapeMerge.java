@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import com.opengamma.strata.collect.ArgChecker;
+
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+/**
+ * Merge of several {@link TapeAad} in one tape.
+ * <p>
+ * The tapes can be recorded independently, for example one tape per trade of a portfolio recorded in parallel,
+ * and then appended to a target tape to be swept together. The entries of each source tape are copied at the end
+ * of the target tape, in their original order, with their argument indices remapped. The INPUT entries of a source
+ * tape can be unified with INPUT entries of the target tape, typically the market data shared by all the trades:
+ * the unified inputs are not copied and the entries using them refer to the target inputs.
+ * <p>
+ * The source tapes are not modified. Their values are read: they should not have been released.
+ */
+public class TapeMerge {
+
+  /**
+   * Appends the entries of a tape at the end of a target tape.
+   * <p>
+   * The source INPUT entries are numbered in the order of their tape indices. The input with number i is unified
+   * with the target entry of index {@code inputIndicesInTarget[i]}, which should be an INPUT entry, or copied as
+   * a new input of the target tape if this index is -1. The NOP entries are not copied.
+   * @param target The target tape. It should not be frozen.
+   * @param source The source tape.
+   * @param inputIndicesInTarget The tape index in the target tape of each input of the source tape, -1 for the inputs
+   *   to be copied.
+   * @return The index in the target tape of each entry of the source tape, -1 for the NOP entries.
+   */
+  public static int[] merge(TapeAad target, TapeAad source, int[] inputIndicesInTarget) {
+    int nbInputs = source.getNbInputs();
+    ArgChecker.isTrue(inputIndicesInTarget.length == nbInputs,
+        "inputIndicesInTarget length {} should be equal to the number of inputs {}",
+        inputIndicesInTarget.length, nbInputs);
+    for (int inputIndex : inputIndicesInTarget) {
+      ArgChecker.isTrue(inputIndex == -1 || target.getOperationType(inputIndex) == OperationTypeAad.INPUT,
+          "target entry {} is not an INPUT entry", inputIndex);
+    }
+    int nbEntries = source.size();
+    int[] remap = new int[nbEntries];
+    int inputNumber = 0;
+    for (int loope = 0; loope < nbEntries; loope++) {
+      OperationTypeAad operationType = source.getOperationType(loope);
+      if (operationType == OperationTypeAad.NOP) {
+        remap[loope] = -1;
+        continue;
+      }
+      if (operationType == OperationTypeAad.INPUT && inputIndicesInTarget[inputNumber++] >= 0) {
+        remap[loope] = inputIndicesInTarget[inputNumber - 1];
+        continue;
+      }
+      if (operationType == OperationTypeAad.MANUAL_NARY) {
+        remap[loope] = target.copyManualEntry(source, loope, remap);
+        continue;
+      }
+      int indexArg1 = source.getIndexArg1(loope);
+      int indexArg2 = source.getIndexArg2(loope);
+      remap[loope] = target.copyEntry(source, loope,
+          (indexArg1 >= 0) ? remap[indexArg1] : -1, (indexArg2 >= 0) ? remap[indexArg2] : -1);
+    }
+    return remap;
+  }
+
+  /**
+   * Appends the entries of several tapes at the end of a target tape, the first inputs of each source tape being
+   * shared.
+   * <p>
+   * The first inputs of the target tape are the shared inputs; the first inputs of each source tape, in the same
+   * number and order, are unified with them. The other inputs of the source tapes are copied as new inputs of the
+   * target tape, source after source.
+   * @param target The target tape. It should not be frozen and its first inputs should be the shared inputs.
+   * @param sources The source tapes.
+   * @param nbSharedInputs The number of shared inputs.
+   * @return For each source tape, the index in the target tape of each of its entries.
+   */
+  public static int[][] merge(TapeAad target, TapeAad[] sources, int nbSharedInputs) {
+    ArgChecker.isTrue(target.getNbInputs() >= nbSharedInputs,
+        "target tape has {} inputs, less than the number of shared inputs {}", target.getNbInputs(), nbSharedInputs);
+    int[][] remaps = new int[sources.length][];
+    for (int loops = 0; loops < sources.length; loops++) {
+      int nbInputs = sources[loops].getNbInputs();
+      ArgChecker.isTrue(nbInputs >= nbSharedInputs,
+          "source tape {} has {} inputs, less than the number of shared inputs {}", loops, nbInputs, nbSharedInputs);
+      int[] inputIndicesInTarget = new int[nbInputs];
+      for (int loopi = 0; loopi < nbInputs; loopi++) {
+        inputIndicesInTarget[loopi] = (loopi < nbSharedInputs) ? target.getInputIndex(loopi) : -1;
+      }
+      remaps[loops] = merge(target, sources[loops], inputIndicesInTarget);
+    }
+    return remaps;
+  }
+
+}
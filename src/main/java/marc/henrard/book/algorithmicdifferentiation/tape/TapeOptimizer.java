@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import com.opengamma.strata.collect.ArgChecker;
+
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+/**
+ * Optimization passes on recorded {@link TapeAad}.
+ * <p>
+ * The passes create a new tape, the original tape is not modified. The derivatives obtained by interpreting the
+ * new tape for the given outputs are the same as the ones of the original tape.
+ */
+public class TapeOptimizer {
+
+  /**
+   * Removes the entries of a tape which do not contribute to any of the outputs.
+   * <p>
+   * The entries reachable backward from the outputs are kept, in their original order, with their argument indices
+   * remapped. The INPUT entries are always kept, so that the derivatives are returned in the same format.
+   * The GUARD entries recorded before the last output are also kept, with the entries they depend on, so that
+   * the new tape can be replayed.
+   * The new tape is frozen if the original one is.
+   * @param tape The tape.
+   * @param outputIndices The tape indices of the outputs. The array is modified by the method: on return,
+   *   it contains the indices of the outputs in the new tape.
+   * @return The new tape.
+   */
+  public static TapeAad eliminateDeadEntries(TapeAad tape, int[] outputIndices) {
+    int nbEntries = tape.size();
+    boolean[] live = new boolean[nbEntries];
+    int startIndex = -1;
+    for (int outputIndex : outputIndices) {
+      ArgChecker.inRange(outputIndex, 0, nbEntries, "outputIndex");
+      live[outputIndex] = true;
+      startIndex = Math.max(startIndex, outputIndex);
+    }
+    int nbLive = 0;
+    for (int loope = startIndex; loope >= 0; loope--) {
+      if (TapeUtils.isGuard(tape.getOperationType(loope))) {
+        live[loope] = true;
+      }
+      if (live[loope]) {
+        if (tape.getOperationType(loope) == OperationTypeAad.MANUAL_NARY) {
+          for (int loopa = 0; loopa < tape.getManualNbArgs(loope); loopa++) {
+            live[tape.getManualIndexArg(loope, loopa)] = true;
+          }
+          continue;
+        }
+        int indexArg1 = tape.getIndexArg1(loope);
+        if (indexArg1 >= 0) {
+          live[indexArg1] = true;
+        }
+        int indexArg2 = tape.getIndexArg2(loope);
+        if (indexArg2 >= 0) {
+          live[indexArg2] = true;
+        }
+      }
+    }
+    for (int loope = 0; loope < nbEntries; loope++) {
+      if (tape.getOperationType(loope) == OperationTypeAad.INPUT) {
+        live[loope] = true;
+      }
+      if (live[loope]) {
+        nbLive++;
+      }
+    }
+    TapeAad compacted = new TapeAad(nbLive, tape.isRecordingPartials());
+    int[] remap = new int[nbEntries];
+    for (int loope = 0; loope < nbEntries; loope++) {
+      if (live[loope] && tape.getOperationType(loope) == OperationTypeAad.MANUAL_NARY) {
+        remap[loope] = compacted.copyManualEntry(tape, loope, remap);
+      } else if (live[loope]) {
+        int indexArg1 = tape.getIndexArg1(loope);
+        int indexArg2 = tape.getIndexArg2(loope);
+        remap[loope] = compacted.copyEntry(tape, loope,
+            (indexArg1 >= 0) ? remap[indexArg1] : -1, (indexArg2 >= 0) ? remap[indexArg2] : -1);
+      } else {
+        remap[loope] = -1;
+      }
+    }
+    for (int loopo = 0; loopo < outputIndices.length; loopo++) {
+      outputIndices[loopo] = remap[outputIndices[loopo]];
+    }
+    if (tape.isFrozen()) {
+      compacted.freeze();
+    }
+    return compacted;
+  }
+
+  /**
+   * Shortens a tape by fusing chains of one argument operations.
+   * <p>
+   * The following peephole rules are applied:
+   * <ul>
+   * <li> The multiplications by 1.0 and additions of 0.0 are removed, the entries using them refer to their argument.
+   * <li> A chain of additions and multiplications with constants (ADDITION1, MULTIPLICATION1, AFFINE), where each
+   *   intermediary result is used only once by the next operation of the chain, is replaced by one AFFINE entry.
+   * <li> A chain of one argument operations, where each intermediary result is used only once by the next
+   *   operation of the chain, is replaced by one COMPOSITION entry storing the derivative of the composition.
+   * </ul>
+   * The outputs are never fused into a following operation and the GUARD entries are copied. The entries which are
+   * not modified are copied with their argument indices remapped. The new tape is frozen if the original one is.
+   * @param tape The tape.
+   * @param outputIndices The tape indices of the outputs. The array is modified by the method: on return,
+   *   it contains the indices of the outputs in the new tape.
+   * @return The new tape.
+   */
+  public static TapeAad fuseChains(TapeAad tape, int[] outputIndices) {
+    int nbEntries = tape.size();
+    // Uses of each entry and its consumer if it has only one
+    int[] nbUses = new int[nbEntries];
+    int[] consumer = new int[nbEntries];
+    for (int loope = 0; loope < nbEntries; loope++) {
+      if (tape.getOperationType(loope) == OperationTypeAad.MANUAL_NARY) {
+        for (int loopa = 0; loopa < tape.getManualNbArgs(loope); loopa++) {
+          nbUses[tape.getManualIndexArg(loope, loopa)]++;
+          consumer[tape.getManualIndexArg(loope, loopa)] = loope;
+        }
+        continue;
+      }
+      int indexArg1 = tape.getIndexArg1(loope);
+      if (indexArg1 >= 0) {
+        nbUses[indexArg1]++;
+        consumer[indexArg1] = loope;
+      }
+      int indexArg2 = tape.getIndexArg2(loope);
+      if (indexArg2 >= 0) {
+        nbUses[indexArg2]++;
+        consumer[indexArg2] = loope;
+      }
+    }
+    boolean[] isOutput = new boolean[nbEntries];
+    for (int outputIndex : outputIndices) {
+      ArgChecker.inRange(outputIndex, 0, nbEntries, "outputIndex");
+      isOutput[outputIndex] = true;
+    }
+    // State of the chain ending at each entry
+    int[] chainRoot = new int[nbEntries]; // Index of the chain argument in the new tape
+    double[] chainPartial = new double[nbEntries]; // Derivative of the chain
+    boolean[] chainAffine = new boolean[nbEntries]; // Whether all operations in the chain are affine
+    double[] chainConstant = new double[nbEntries]; // Constant of the chain, if affine
+    int[] chainLength = new int[nbEntries]; // Number of operations in the chain, identities excluded
+    int[] chainLast = new int[nbEntries]; // Last operation in the chain, identities excluded
+    boolean[] pending = new boolean[nbEntries]; // Whether the entry is fused in the next operation
+    int[] remap = new int[nbEntries];
+    double[] partials = new double[2];
+    TapeAad fused = new TapeAad(nbEntries, tape.isRecordingPartials());
+    for (int loope = 0; loope < nbEntries; loope++) {
+      if (tape.getOperationType(loope) == OperationTypeAad.MANUAL_NARY) {
+        remap[loope] = fused.copyManualEntry(tape, loope, remap);
+        continue;
+      }
+      int indexArg1 = tape.getIndexArg1(loope);
+      int indexArg2 = tape.getIndexArg2(loope);
+      if (indexArg1 < 0 || indexArg2 >= 0 || TapeUtils.isGuard(tape.getOperationType(loope))) { // Copy
+        remap[loope] = fused.copyEntry(tape, loope,
+            (indexArg1 >= 0) ? remap[indexArg1] : -1, (indexArg2 >= 0) ? remap[indexArg2] : -1);
+        continue;
+      }
+      // One argument: extend the chain ending at the argument
+      if (pending[indexArg1]) {
+        chainRoot[loope] = chainRoot[indexArg1];
+        chainPartial[loope] = chainPartial[indexArg1];
+        chainAffine[loope] = chainAffine[indexArg1];
+        chainConstant[loope] = chainConstant[indexArg1];
+        chainLength[loope] = chainLength[indexArg1];
+        chainLast[loope] = chainLast[indexArg1];
+      } else {
+        chainRoot[loope] = remap[indexArg1];
+        chainPartial[loope] = 1.0d;
+        chainAffine[loope] = true;
+        chainConstant[loope] = 0.0d;
+        chainLength[loope] = 0;
+        chainLast[loope] = -1;
+      }
+      if (!isIdentity(tape, loope)) {
+        if (tape.isRecordingPartials()) {
+          partials[0] = tape.getPartialArg1(loope);
+        } else {
+          TapeUtils.localPartials(tape, loope, partials);
+        }
+        chainPartial[loope] *= partials[0];
+        chainAffine[loope] &= isAffine(tape.getOperationType(loope));
+        if (chainAffine[loope]) {
+          chainConstant[loope] = affineConstant(tape, loope, chainConstant[loope]);
+        }
+        chainLength[loope]++;
+        chainLast[loope] = loope;
+      }
+      if (!isOutput[loope] && nbUses[loope] == 1 && tape.getIndexArg2(consumer[loope]) < 0 &&
+          !TapeUtils.isGuard(tape.getOperationType(consumer[loope]))) {
+        pending[loope] = true; // Fused in the consumer
+        continue;
+      }
+      if (chainLength[loope] == 0) { // Only identities
+        remap[loope] = chainRoot[loope];
+      } else if (chainLength[loope] == 1) {
+        remap[loope] = fused.copyEntry(tape, chainLast[loope], chainRoot[loope], -1);
+      } else {
+        if (chainAffine[loope]) {
+          remap[loope] = fused.addAffineEntry(chainRoot[loope], tape.getValue(loope), chainPartial[loope],
+              chainConstant[loope]);
+        } else {
+          remap[loope] = fused.addEntry(OperationTypeAad.COMPOSITION, chainRoot[loope], -1, tape.getValue(loope),
+              chainPartial[loope], chainPartial[loope], 0.0d);
+        }
+      }
+    }
+    for (int loopo = 0; loopo < outputIndices.length; loopo++) {
+      outputIndices[loopo] = remap[outputIndices[loopo]];
+    }
+    if (tape.isFrozen()) {
+      fused.freeze();
+    }
+    return fused;
+  }
+
+  /**
+   * Returns whether an entry is an identity: multiplication by 1.0 or addition of 0.0.
+   * @param tape The tape.
+   * @param index The entry index.
+   * @return The flag.
+   */
+  private static boolean isIdentity(TapeAad tape, int index) {
+    OperationTypeAad type = tape.getOperationType(index);
+    return (type == OperationTypeAad.MULTIPLICATION1 && tape.getExtraValue(index) == 1.0d) ||
+        (type == OperationTypeAad.ADDITION1 && tape.getExtraValue(index) == 0.0d);
+  }
+
+  /**
+   * Returns the constant of an affine chain extended by one affine entry.
+   * <p>
+   * The chain a * x + b composed with the entry c * y + d is the chain (c * a) * x + (c * b + d). The factors are
+   * accumulated separately, as the derivative of the chain.
+   * @param tape The tape.
+   * @param index The index of the affine entry.
+   * @param constant The constant b of the chain before the entry.
+   * @return The constant of the extended chain.
+   */
+  private static double affineConstant(TapeAad tape, int index, double constant) {
+    switch (tape.getOperationType(index)) {
+      case ADDITION1:
+        return constant + tape.getExtraValue(index);
+      case MULTIPLICATION1:
+        return constant * tape.getExtraValue(index);
+      default: // AFFINE
+        return tape.getExtraValue(index) * constant + tape.getAffineConstant(index);
+    }
+  }
+
+  /**
+   * Returns whether an operation type is an affine function of its argument.
+   * @param type The operation type.
+   * @return The flag.
+   */
+  private static boolean isAffine(OperationTypeAad type) {
+    return type == OperationTypeAad.ADDITION1 || type == OperationTypeAad.MULTIPLICATION1 ||
+        type == OperationTypeAad.AFFINE;
+  }
+
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.util.Arrays;
+
+import com.opengamma.strata.collect.ArgChecker;
+
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+/**
+ * Compact encoding of a frozen {@link TapeAad} for the backward sweep.
+ * <p>
+ * The entries are stored in reverse order in two streams read sequentially by the sweep. The code stream holds,
+ * for each entry, one byte describing the form of its local derivatives followed by its arguments, each one encoded
+ * as the distance from the entry to the argument in a variable length integer (7 bits per byte). As the arguments
+ * are usually recent entries, most distances are stored in one byte. The partial stream holds the local partial
+ * derivatives of the entries, computed once when the tape is packed, only for the entries which require them:
+ * the additions and subtractions have partial derivatives of 1 or -1 which are implied by their form.
+ * The values and extra values are not stored.
+ * <p>
+ * The instances are immutable and can be interpreted by several threads at the same time, each with its own
+ * workspace.
+ */
+public final class TapePacked {
+
+  /** No propagation: INPUT, GUARD and GUARD_ABS entries. */
+  private static final byte NONE = 0;
+  /** One argument, with a partial derivative of 1. */
+  private static final byte UNIT = 1;
+  /** One argument, with a partial derivative stored. */
+  private static final byte SCALED = 2;
+  /** Two arguments, with partial derivatives of 1 and 1. */
+  private static final byte SUM = 3;
+  /** Two arguments, with partial derivatives of 1 and -1. */
+  private static final byte DIFFERENCE = 4;
+  /** Two arguments, with the two partial derivatives stored. */
+  private static final byte BINARY = 5;
+  /** Any number of arguments, the number stored after the code, each argument with its partial derivative stored. */
+  private static final byte NARY = 6;
+
+  /** The number of entries. */
+  private final int size;
+  /** The codes and argument distances, the last entry first. */
+  private final byte[] codes;
+  /** The partial derivatives, the last entry first. */
+  private final double[] partials;
+  /** The tape indices of the INPUT entries, in increasing order. */
+  private final int[] inputIndices;
+
+  /**
+   * Creates a packed tape.
+   * @param size The number of entries.
+   * @param codes The codes and argument distances.
+   * @param partials The partial derivatives.
+   * @param inputIndices The tape indices of the INPUT entries.
+   */
+  private TapePacked(int size, byte[] codes, double[] partials, int[] inputIndices) {
+    this.size = size;
+    this.codes = codes;
+    this.partials = partials;
+    this.inputIndices = inputIndices;
+  }
+
+  /**
+   * Packs a frozen tape.
+   * @param tape The tape. It should be frozen.
+   * @return The packed tape.
+   */
+  public static TapePacked of(TapeAad tape) {
+    if (!tape.isFrozen()) {
+      throw new IllegalStateException("The tape should be frozen to be packed");
+    }
+    int size = tape.size();
+    byte[] codes = new byte[Math.max(2 * size, 16)];
+    double[] partials = new double[Math.max(size, 16)];
+    int nbCodes = 0;
+    int nbPartials = 0;
+    double[] localPartials = new double[2];
+    for (int loope = size - 1; loope >= 0; loope--) {
+      // Room for the largest non-NARY entry: one code and two integers of five bytes, two partial derivatives
+      if (codes.length - nbCodes < 11) {
+        codes = Arrays.copyOf(codes, 2 * codes.length);
+      }
+      if (partials.length - nbPartials < 2) {
+        partials = Arrays.copyOf(partials, 2 * partials.length);
+      }
+      OperationTypeAad operationType = tape.getOperationType(loope);
+      int indexArg1 = tape.getIndexArg1(loope);
+      int indexArg2 = tape.getIndexArg2(loope);
+      if (operationType == OperationTypeAad.MANUAL_NARY) {
+        int nbArgs = tape.getManualNbArgs(loope);
+        if (codes.length - nbCodes < 6 + 5 * nbArgs) {
+          codes = Arrays.copyOf(codes, Math.max(2 * codes.length, nbCodes + 6 + 5 * nbArgs));
+        }
+        if (partials.length - nbPartials < nbArgs) {
+          partials = Arrays.copyOf(partials, Math.max(2 * partials.length, nbPartials + nbArgs));
+        }
+        codes[nbCodes++] = NARY;
+        nbCodes = writeVarInt(codes, nbCodes, nbArgs);
+        for (int loopa = 0; loopa < nbArgs; loopa++) {
+          nbCodes = writeVarInt(codes, nbCodes, loope - tape.getManualIndexArg(loope, loopa));
+          partials[nbPartials++] = tape.getManualDerivative(loope, loopa);
+        }
+        continue;
+      }
+      if (indexArg1 < 0 || TapeUtils.isGuard(operationType)) {
+        codes[nbCodes++] = NONE;
+        continue;
+      }
+      if (tape.isRecordingPartials()) {
+        localPartials[0] = tape.getPartialArg1(loope);
+        localPartials[1] = tape.getPartialArg2(loope);
+      } else {
+        TapeUtils.localPartials(tape, loope, localPartials);
+      }
+      if (indexArg2 < 0) {
+        if (localPartials[0] == 1.0d) {
+          codes[nbCodes++] = UNIT;
+        } else {
+          codes[nbCodes++] = SCALED;
+          partials[nbPartials++] = localPartials[0];
+        }
+        nbCodes = writeVarInt(codes, nbCodes, loope - indexArg1);
+        continue;
+      }
+      if (localPartials[0] == 1.0d && localPartials[1] == 1.0d) {
+        codes[nbCodes++] = SUM;
+      } else if (localPartials[0] == 1.0d && localPartials[1] == -1.0d) {
+        codes[nbCodes++] = DIFFERENCE;
+      } else {
+        codes[nbCodes++] = BINARY;
+        partials[nbPartials++] = localPartials[0];
+        partials[nbPartials++] = localPartials[1];
+      }
+      nbCodes = writeVarInt(codes, nbCodes, loope - indexArg1);
+      nbCodes = writeVarInt(codes, nbCodes, loope - indexArg2);
+    }
+    int[] inputIndices = new int[tape.getNbInputs()];
+    for (int loopi = 0; loopi < inputIndices.length; loopi++) {
+      inputIndices[loopi] = tape.getInputIndex(loopi);
+    }
+    return new TapePacked(size, Arrays.copyOf(codes, nbCodes), Arrays.copyOf(partials, nbPartials), inputIndices);
+  }
+
+  /**
+   * Returns the number of entries.
+   * @return The size.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of INPUT entries.
+   * @return The number of inputs.
+   */
+  public int getNbInputs() {
+    return inputIndices.length;
+  }
+
+  /**
+   * Returns the number of bytes used by the encoding of the entries: the codes, the partial derivatives and
+   * the input indices.
+   * @return The number of bytes.
+   */
+  public long memorySize() {
+    return codes.length + 8L * partials.length + 4L * inputIndices.length;
+  }
+
+  /**
+   * Interprets the packed tape with the value bars stored in a caller-supplied workspace and returns
+   * the derivatives.
+   * @param outputIndex The tape index of the output for which the derivatives are computed.
+   * @param valueBar The workspace where the value bars are stored. Its length should be at least the tape size.
+   * @return The derivatives of the output with respect to the input as recorded in the tape.
+   */
+  public double[] interpret(int outputIndex, double[] valueBar) {
+    double[] derivatives = new double[inputIndices.length];
+    interpret(outputIndex, valueBar, derivatives);
+    return derivatives;
+  }
+
+  /**
+   * Interprets the packed tape with the value bars stored in a caller-supplied workspace and the derivatives
+   * written in a caller-supplied array. No memory is allocated.
+   * <p>
+   * The workspace is reset by the method. The entries after the output are skipped without propagation.
+   * @param outputIndex The tape index of the output for which the derivatives are computed.
+   * @param valueBar The workspace where the value bars are stored. Its length should be at least the tape size.
+   * @param derivatives The array where the derivatives with respect to the inputs are written,
+   *   in the order of the inputs. Its length should be at least the number of inputs.
+   */
+  public void interpret(int outputIndex, double[] valueBar, double[] derivatives) {
+    ArgChecker.inRange(outputIndex, 0, size, "outputIndex");
+    ArgChecker.isTrue(valueBar.length >= size,
+        "workspace length {} should be at least the tape size {}", valueBar.length, size);
+    ArgChecker.isTrue(derivatives.length >= inputIndices.length,
+        "derivatives length {} should be at least the number of inputs {}", derivatives.length, inputIndices.length);
+    Arrays.fill(valueBar, 0, size, 0.0d);
+    valueBar[outputIndex] = 1.0d;
+    int c = 0; // Position in the codes
+    int p = 0; // Position in the partial derivatives
+    for (int loope = size - 1; loope > outputIndex; loope--) { // Skip the entries after the output
+      byte code = codes[c++];
+      int nbArgs = (code == NONE) ? 0 : (code <= SCALED) ? 1 : (code <= BINARY) ? 2 : -1;
+      if (nbArgs < 0) { // NARY
+        nbArgs = readVarInt(codes, c);
+        c += varIntLength(nbArgs);
+        p += nbArgs;
+      } else {
+        p += (code == SCALED) ? 1 : (code == BINARY) ? 2 : 0;
+      }
+      for (int loopa = 0; loopa < nbArgs; loopa++) {
+        c += varIntLength(readVarInt(codes, c));
+      }
+    }
+    for (int loope = outputIndex; loope >= 0; loope--) {
+      byte code = codes[c++];
+      if (code == NONE) {
+        continue;
+      }
+      double bar = valueBar[loope];
+      int distance1 = readVarInt(codes, c); // Number of arguments for NARY
+      c += varIntLength(distance1);
+      switch (code) {
+        case UNIT:
+          valueBar[loope - distance1] += bar;
+          break;
+        case SCALED:
+          valueBar[loope - distance1] += partials[p++] * bar;
+          break;
+        case NARY:
+          for (int loopa = 0; loopa < distance1; loopa++) {
+            int distance = readVarInt(codes, c);
+            c += varIntLength(distance);
+            valueBar[loope - distance] += partials[p++] * bar;
+          }
+          break;
+        default: { // Two arguments
+          int distance2 = readVarInt(codes, c);
+          c += varIntLength(distance2);
+          if (code == SUM) {
+            valueBar[loope - distance1] += bar;
+            valueBar[loope - distance2] += bar;
+          } else if (code == DIFFERENCE) {
+            valueBar[loope - distance1] += bar;
+            valueBar[loope - distance2] -= bar;
+          } else { // BINARY
+            valueBar[loope - distance1] += partials[p++] * bar;
+            valueBar[loope - distance2] += partials[p++] * bar;
+          }
+        }
+      }
+    }
+    for (int loopi = 0; loopi < inputIndices.length; loopi++) {
+      derivatives[loopi] = valueBar[inputIndices[loopi]];
+    }
+  }
+
+  /**
+   * Writes a non-negative integer in a variable length encoding: 7 bits per byte, the least significant first,
+   * the highest bit set on all the bytes except the last one.
+   * @param codes The array where the integer is written.
+   * @param position The position of the first byte.
+   * @param value The integer.
+   * @return The position after the last byte.
+   */
+  private static int writeVarInt(byte[] codes, int position, int value) {
+    int remaining = value;
+    while ((remaining & ~0x7F) != 0) {
+      codes[position++] = (byte) ((remaining & 0x7F) | 0x80);
+      remaining >>>= 7;
+    }
+    codes[position++] = (byte) remaining;
+    return position;
+  }
+
+  /**
+   * Reads a non-negative integer written by {@link #writeVarInt(byte[], int, int)}.
+   * @param codes The array where the integer is written.
+   * @param position The position of the first byte.
+   * @return The integer.
+   */
+  private static int readVarInt(byte[] codes, int position) {
+    byte b = codes[position];
+    if (b >= 0) { // One byte, the most frequent case
+      return b;
+    }
+    int value = b & 0x7F;
+    int shift = 7;
+    do {
+      b = codes[++position];
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  /**
+   * Returns the number of bytes used by the variable length encoding of a non-negative integer.
+   * @param value The integer.
+   * @return The number of bytes.
+   */
+  private static int varIntLength(int value) {
+    int length = 1;
+    for (int remaining = value >>> 7; remaining != 0; remaining >>>= 7) {
+      length++;
+    }
+    return length;
+  }
+
+}
@@ -0,0 +1,429 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.opengamma.strata.collect.ArgChecker;
+
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+/**
+ * Parallel interpretation of a frozen {@link TapeAad}, scheduled by dependency levels.
+ * <p>
+ * The level of an entry is 0 for the entries without argument and one more than the largest level of its arguments
+ * otherwise. The entries of the same level do not depend on each other. The levels are computed once, when the
+ * instance is created. The backward sweep processes the levels in decreasing order; when a level is processed,
+ * the value bars of its entries are final, as all the entries using them have a higher level. The entries of a level
+ * are propagated in parallel with a fork/join pool, by tasks of at least the grain size; the small levels are
+ * propagated by the calling thread. As several entries of a level can share an argument, the value bars are
+ * accumulated atomically. The order of the additions on a shared argument then depends on the scheduling of the
+ * tasks and the derivatives may differ in the last bits from one run to the other.
+ * <p>
+ * In the reproducible mode, each level is divided in a fixed number of partitions, independent of the pool.
+ * Each partition accumulates the contributions of its entries, in increasing index order, in its own adjoint buffer.
+ * The value bar of an entry is the sum of the buffers, reduced in a fixed order by a pairwise tree. The derivatives
+ * are then the same for all the runs, whatever the number of threads, the grain and the scheduling. The buffers
+ * require the number of partitions times the tape size in memory.
+ * <p>
+ * The parallel sweep is efficient for wide tapes, as the ones of vectorized computations (strike ladders,
+ * curve nodes, Monte Carlo paths), where the levels have many entries. The storage of the tape should allow
+ * concurrent reads: the spilled tapes can not be interpreted in parallel. The instances are immutable and can be
+ * used by several threads at the same time.
+ */
+public class TapeParallel {
+
+  /** The default minimal number of entries propagated by a task. */
+  public static final int DEFAULT_GRAIN = 1024;
+  /** The default number of partitions of the reproducible mode. */
+  public static final int DEFAULT_NB_PARTITIONS = 8;
+
+  /** The tape. */
+  private final TapeAad tape;
+  /** The pool executing the tasks. */
+  private final ForkJoinPool pool;
+  /** The minimal number of entries propagated by a task. */
+  private final int grain;
+  /** The number of partitions of the levels in the reproducible mode, 0 in the atomic mode. */
+  private final int nbPartitions;
+  /** The entries sorted by level, in increasing index order in each level. */
+  private final int[] entries;
+  /** The position in the sorted entries of the first entry of each level, the number of entries at the end. */
+  private final int[] levelStart;
+
+  /**
+   * Creates a parallel interpretation with the common pool and the default grain.
+   * @param tape The tape. It should be frozen.
+   */
+  public TapeParallel(TapeAad tape) {
+    this(tape, ForkJoinPool.commonPool(), DEFAULT_GRAIN);
+  }
+
+  /**
+   * Creates a parallel interpretation with atomic accumulation.
+   * @param tape The tape. It should be frozen.
+   * @param pool The pool executing the tasks.
+   * @param grain The minimal number of entries propagated by a task.
+   */
+  public TapeParallel(TapeAad tape, ForkJoinPool pool, int grain) {
+    this(tape, pool, grain, 0);
+  }
+
+  /**
+   * Creates a parallel interpretation, in the reproducible mode if a number of partitions is given.
+   * @param tape The tape. It should be frozen.
+   * @param pool The pool executing the tasks.
+   * @param grain The minimal number of entries propagated by a task in the atomic mode. In the reproducible mode,
+   *   the levels smaller than the grain are propagated by the calling thread.
+   * @param nbPartitions The number of partitions of each level and adjoint buffers in the reproducible mode,
+   *   0 for the atomic mode.
+   */
+  public TapeParallel(TapeAad tape, ForkJoinPool pool, int grain, int nbPartitions) {
+    if (!tape.isFrozen()) {
+      throw new IllegalStateException("The tape should be frozen to be interpreted in parallel");
+    }
+    ArgChecker.isTrue(grain > 0, "grain should be strictly positive");
+    ArgChecker.notNegative(nbPartitions, "nbPartitions");
+    this.tape = tape;
+    this.pool = pool;
+    this.grain = grain;
+    this.nbPartitions = nbPartitions;
+    int nbEntries = tape.size();
+    int[] level = new int[nbEntries];
+    int nbLevels = (nbEntries == 0) ? 0 : 1;
+    for (int loope = 0; loope < nbEntries; loope++) {
+      int entryLevel = 0;
+      int indexArg1 = tape.getIndexArg1(loope);
+      int indexArg2 = tape.getIndexArg2(loope);
+      if (tape.getOperationType(loope) == OperationTypeAad.MANUAL_NARY) {
+        int[] manualIndexArgs = tape.manualIndexArgs();
+        for (int loopa = indexArg1; loopa < indexArg1 + indexArg2; loopa++) {
+          entryLevel = Math.max(entryLevel, level[manualIndexArgs[loopa]] + 1);
+        }
+      } else {
+        if (indexArg1 >= 0) {
+          entryLevel = level[indexArg1] + 1;
+        }
+        if (indexArg2 >= 0) {
+          entryLevel = Math.max(entryLevel, level[indexArg2] + 1);
+        }
+      }
+      level[loope] = entryLevel;
+      nbLevels = Math.max(nbLevels, entryLevel + 1);
+    }
+    // Counting sort of the entries by level
+    levelStart = new int[nbLevels + 1];
+    for (int loope = 0; loope < nbEntries; loope++) {
+      levelStart[level[loope] + 1]++;
+    }
+    for (int loopl = 0; loopl < nbLevels; loopl++) {
+      levelStart[loopl + 1] += levelStart[loopl];
+    }
+    entries = new int[nbEntries];
+    int[] position = levelStart.clone();
+    for (int loope = 0; loope < nbEntries; loope++) {
+      entries[position[level[loope]]++] = loope;
+    }
+  }
+
+  /**
+   * Returns whether the interpretation is in the reproducible mode.
+   * @return The flag.
+   */
+  public boolean isReproducible() {
+    return nbPartitions > 0;
+  }
+
+  /**
+   * Returns the number of dependency levels of the tape.
+   * @return The number of levels.
+   */
+  public int getNbLevels() {
+    return levelStart.length - 1;
+  }
+
+  /**
+   * Returns the number of entries of a level.
+   * @param level The level.
+   * @return The number of entries.
+   */
+  public int getLevelSize(int level) {
+    return levelStart[level + 1] - levelStart[level];
+  }
+
+  /**
+   * Interprets the tape in parallel and returns the derivatives of an output.
+   * <p>
+   * The entries after the output are not propagated. The derivatives are equal to the ones of the sequential
+   * interpretation, up to the order of the floating point additions on the shared arguments.
+   * @param outputIndex The tape index of the output.
+   * @return The derivatives of the output with respect to the inputs as recorded in the tape.
+   */
+  public double[] interpret(int outputIndex) {
+    ArgChecker.inRange(outputIndex, 0, tape.size(), "outputIndex");
+    if (nbPartitions > 0) {
+      return interpretReproducible(outputIndex);
+    }
+    AtomicLongArray valueBar = new AtomicLongArray(tape.size());
+    valueBar.set(outputIndex, Double.doubleToRawLongBits(1.0d));
+    for (int loopl = getNbLevels() - 1; loopl > 0; loopl--) { // Level 0 entries have no argument
+      int start = levelStart[loopl];
+      int end = levelStart[loopl + 1];
+      if (end - start <= grain) {
+        propagate(valueBar, start, end, outputIndex);
+      } else {
+        pool.invoke(new LevelSweep(valueBar, start, end, outputIndex));
+      }
+    }
+    double[] derivatives = new double[tape.getNbInputs()];
+    for (int loopi = 0; loopi < derivatives.length; loopi++) {
+      derivatives[loopi] = Double.longBitsToDouble(valueBar.get(tape.getInputIndex(loopi)));
+    }
+    return derivatives;
+  }
+
+  /**
+   * Interprets the tape in the reproducible mode, with one adjoint buffer for each partition of the levels.
+   * @param outputIndex The tape index of the output.
+   * @return The derivatives of the output with respect to the inputs as recorded in the tape.
+   */
+  private double[] interpretReproducible(int outputIndex) {
+    double[][] buffers = new double[nbPartitions][tape.size()];
+    buffers[0][outputIndex] = 1.0d;
+    for (int loopl = getNbLevels() - 1; loopl > 0; loopl--) {
+      int start = levelStart[loopl];
+      int end = levelStart[loopl + 1];
+      if (end - start <= grain) {
+        for (int loopp = 0; loopp < nbPartitions; loopp++) {
+          propagatePartition(buffers, start, end, loopp, outputIndex);
+        }
+      } else {
+        pool.invoke(new PartitionSweep(buffers, start, end, 0, nbPartitions, outputIndex));
+      }
+    }
+    double[] derivatives = new double[tape.getNbInputs()];
+    for (int loopi = 0; loopi < derivatives.length; loopi++) {
+      derivatives[loopi] = treeSum(buffers, 0, nbPartitions, tape.getInputIndex(loopi));
+    }
+    return derivatives;
+  }
+
+  /**
+   * Propagates the entries of one partition of a level to the adjoint buffer of the partition.
+   * <p>
+   * The partition is the same for all the runs: the entries of the level are divided in ranges of equal size.
+   * @param buffers The adjoint buffers of the partitions.
+   * @param start The position of the first entry of the level in the sorted entries.
+   * @param end The position after the last entry of the level.
+   * @param partition The partition number.
+   * @param outputIndex The tape index of the output. The entries after it are not propagated.
+   */
+  private void propagatePartition(double[][] buffers, int start, int end, int partition, int outputIndex) {
+    long length = end - start;
+    int partitionStart = start + (int) (length * partition / nbPartitions);
+    int partitionEnd = start + (int) (length * (partition + 1) / nbPartitions);
+    double[] buffer = buffers[partition];
+    double[] partials = new double[2];
+    boolean recordedPartials = tape.isRecordingPartials();
+    for (int loopp = partitionStart; loopp < partitionEnd; loopp++) {
+      int index = entries[loopp];
+      if (index > outputIndex) {
+        return;
+      }
+      double bar = treeSum(buffers, 0, nbPartitions, index);
+      int indexArg1 = tape.getIndexArg1(index);
+      int indexArg2 = tape.getIndexArg2(index);
+      if (tape.getOperationType(index) == OperationTypeAad.MANUAL_NARY) {
+        int[] manualIndexArgs = tape.manualIndexArgs();
+        double[] manualDerivatives = tape.manualDerivatives();
+        for (int loopa = indexArg1; loopa < indexArg1 + indexArg2; loopa++) {
+          buffer[manualIndexArgs[loopa]] += manualDerivatives[loopa] * bar;
+        }
+        continue;
+      }
+      if (recordedPartials) {
+        partials[0] = tape.getPartialArg1(index);
+        partials[1] = tape.getPartialArg2(index);
+      } else {
+        TapeUtils.localPartials(tape, index, partials);
+      }
+      buffer[indexArg1] += partials[0] * bar;
+      if (indexArg2 >= 0) {
+        buffer[indexArg2] += partials[1] * bar;
+      }
+    }
+  }
+
+  /**
+   * Sums the elements of a range of buffers at a given index, in a fixed order: the two halves of the range are
+   * summed recursively and then added.
+   * @param buffers The buffers.
+   * @param from The first buffer of the range.
+   * @param to The buffer after the last one of the range, strictly after the first one.
+   * @param index The index of the elements.
+   * @return The sum.
+   */
+  static double treeSum(double[][] buffers, int from, int to, int index) {
+    if (to - from == 1) {
+      return buffers[from][index];
+    }
+    int middle = (from + to) >>> 1;
+    return treeSum(buffers, from, middle, index) + treeSum(buffers, middle, to, index);
+  }
+
+  /**
+   * Propagates the value bars of a range of sorted entries to their arguments.
+   * @param valueBar The value bars, as the bits of doubles.
+   * @param start The position of the first entry in the sorted entries.
+   * @param end The position after the last entry.
+   * @param outputIndex The tape index of the output. The entries after it are not propagated.
+   */
+  private void propagate(AtomicLongArray valueBar, int start, int end, int outputIndex) {
+    double[] partials = new double[2];
+    boolean recordedPartials = tape.isRecordingPartials();
+    for (int loopp = start; loopp < end; loopp++) {
+      int index = entries[loopp];
+      if (index > outputIndex) { // The entries are sorted by index in a level
+        return;
+      }
+      double bar = Double.longBitsToDouble(valueBar.get(index));
+      int indexArg1 = tape.getIndexArg1(index);
+      int indexArg2 = tape.getIndexArg2(index);
+      if (tape.getOperationType(index) == OperationTypeAad.MANUAL_NARY) {
+        int[] manualIndexArgs = tape.manualIndexArgs();
+        double[] manualDerivatives = tape.manualDerivatives();
+        for (int loopa = indexArg1; loopa < indexArg1 + indexArg2; loopa++) {
+          add(valueBar, manualIndexArgs[loopa], manualDerivatives[loopa] * bar);
+        }
+        continue;
+      }
+      if (recordedPartials) {
+        partials[0] = tape.getPartialArg1(index);
+        partials[1] = tape.getPartialArg2(index);
+      } else {
+        TapeUtils.localPartials(tape, index, partials);
+      }
+      add(valueBar, indexArg1, partials[0] * bar);
+      if (indexArg2 >= 0) {
+        add(valueBar, indexArg2, partials[1] * bar);
+      }
+    }
+  }
+
+  /**
+   * Adds a value atomically to a value bar.
+   * @param valueBar The value bars, as the bits of doubles.
+   * @param index The entry index.
+   * @param value The value to add.
+   */
+  private static void add(AtomicLongArray valueBar, int index, double value) {
+    long current;
+    long updated;
+    do {
+      current = valueBar.get(index);
+      updated = Double.doubleToRawLongBits(Double.longBitsToDouble(current) + value);
+    } while (!valueBar.compareAndSet(index, current, updated));
+  }
+
+  /**
+   * The propagation of a range of partitions of one level, split in halves until one partition.
+   */
+  private final class PartitionSweep extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The adjoint buffers of the partitions. */
+    private final double[][] buffers;
+    /** The position of the first entry of the level in the sorted entries. */
+    private final int start;
+    /** The position after the last entry of the level. */
+    private final int end;
+    /** The first partition of the range. */
+    private final int fromPartition;
+    /** The partition after the last one of the range. */
+    private final int toPartition;
+    /** The tape index of the output. */
+    private final int outputIndex;
+
+    /**
+     * Creates a task.
+     * @param buffers The adjoint buffers of the partitions.
+     * @param start The position of the first entry of the level in the sorted entries.
+     * @param end The position after the last entry of the level.
+     * @param fromPartition The first partition of the range.
+     * @param toPartition The partition after the last one of the range.
+     * @param outputIndex The tape index of the output.
+     */
+    private PartitionSweep(
+        double[][] buffers,
+        int start,
+        int end,
+        int fromPartition,
+        int toPartition,
+        int outputIndex) {
+      this.buffers = buffers;
+      this.start = start;
+      this.end = end;
+      this.fromPartition = fromPartition;
+      this.toPartition = toPartition;
+      this.outputIndex = outputIndex;
+    }
+
+    @Override
+    protected void compute() {
+      if (toPartition - fromPartition == 1) {
+        propagatePartition(buffers, start, end, fromPartition, outputIndex);
+        return;
+      }
+      int middle = (fromPartition + toPartition) >>> 1;
+      invokeAll(new PartitionSweep(buffers, start, end, fromPartition, middle, outputIndex),
+          new PartitionSweep(buffers, start, end, middle, toPartition, outputIndex));
+    }
+  }
+
+  /**
+   * The propagation of a range of entries of one level, split in halves until the grain size.
+   */
+  private final class LevelSweep extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The value bars, as the bits of doubles. */
+    private final AtomicLongArray valueBar;
+    /** The position of the first entry in the sorted entries. */
+    private final int start;
+    /** The position after the last entry. */
+    private final int end;
+    /** The tape index of the output. */
+    private final int outputIndex;
+
+    /**
+     * Creates a task.
+     * @param valueBar The value bars, as the bits of doubles.
+     * @param start The position of the first entry in the sorted entries.
+     * @param end The position after the last entry.
+     * @param outputIndex The tape index of the output.
+     */
+    private LevelSweep(AtomicLongArray valueBar, int start, int end, int outputIndex) {
+      this.valueBar = valueBar;
+      this.start = start;
+      this.end = end;
+      this.outputIndex = outputIndex;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= grain) {
+        propagate(valueBar, start, end, outputIndex);
+        return;
+      }
+      int middle = (start + end) >>> 1;
+      invokeAll(new LevelSweep(valueBar, start, middle, outputIndex),
+          new LevelSweep(valueBar, middle, end, outputIndex));
+    }
+  }
+
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.util.Arrays;
+
+import com.opengamma.strata.collect.ArgChecker;
+
+/**
+ * A frozen tape shared as the prefix of many branch tapes.
+ * <p>
+ * The computations common to many valuations, as the construction of the curves and smiles from the market data,
+ * are recorded once in a tape which is frozen. Each valuation records its own operations in a branch, created by
+ * {@link #branch()}: a {@link TapeAad} whose first entries are the entries of the prefix, with the same indices,
+ * followed by the entries of the branch. The entries of the prefix are shared by all the branches and never
+ * copied; the {@link marc.henrard.book.algorithmicdifferentiation.type.DoubleAad} recorded in the prefix can be used
+ * directly in the branches. The branches can be recorded by several threads at the same time, each branch by one
+ * thread. The backward sweep of a branch reads the values of the prefix entries from the storage of the prefix.
+ * The values of the prefix should not be released.
+ * <p>
+ * The derivatives are computed in two steps. Each branch is swept with {@link #interpretBranch(TapeAad, int, double[])}
+ * down to the end of the prefix: the derivatives with respect to the inputs of the branch are returned and the
+ * adjoints flowing into the prefix entries are accumulated in the first part of the workspace, which is a buffer
+ * owned by the caller, typically one per thread. The buffers are then reduced and the prefix is swept once by
+ * {@link #interpretPrefix(double[][])}, giving the derivatives of the sum of the branch outputs with respect to
+ * the inputs of the prefix.
+ */
+public class TapePrefix {
+
+  /** The initial capacity of the branches. */
+  private static final int BRANCH_INITIAL_CAPACITY = 256;
+
+  /** The prefix tape. */
+  private final TapeAad prefix;
+
+  /**
+   * Creates a prefix.
+   * @param prefix The prefix tape. It should be frozen and its values should not be released: the branches may read
+   *   the value of any prefix entry.
+   */
+  public TapePrefix(TapeAad prefix) {
+    if (!prefix.isFrozen()) {
+      throw new IllegalStateException("The prefix tape should be frozen");
+    }
+    this.prefix = prefix;
+    checkValuesNotReleased();
+  }
+
+  /**
+   * Returns the prefix tape.
+   * @return The tape.
+   */
+  public TapeAad getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * Returns the number of entries of the prefix.
+   * @return The size.
+   */
+  public int size() {
+    return prefix.size();
+  }
+
+  /**
+   * Creates a new branch on top of the prefix.
+   * <p>
+   * The branch is an empty tape, except for the entries of the prefix: its inputs are the inputs of the prefix
+   * followed by the ones it records. It records the local partial derivatives if the prefix does.
+   * The branch can be reused for another valuation after a {@link TapeAad#reset()}, which keeps the prefix.
+   * @return The branch.
+   */
+  public TapeAad branch() {
+    checkValuesNotReleased();
+    return new TapeAad(prefix, BRANCH_INITIAL_CAPACITY);
+  }
+
+  /**
+   * Interprets a branch down to the end of the prefix and accumulates the adjoints of the prefix entries.
+   * <p>
+   * The first elements of the workspace, up to the prefix size, are the adjoint buffer of the prefix: the adjoints
+   * of the prefix entries used by the branch are added to them, they are not reset. The other elements
+   * are reset by the method. The branch is not modified.
+   * @param branch The branch, created by this prefix.
+   * @param outputIndex The tape index of the output, recorded in the branch.
+   * @param workspace The workspace. Its length should be at least the branch size.
+   * @return The derivatives of the output with respect to the inputs recorded in the branch (the inputs of the prefix
+   *   excluded), in the order in which they have been recorded.
+   */
+  public double[] interpretBranch(TapeAad branch, int outputIndex, double[] workspace) {
+    ArgChecker.isTrue(branch.storage() instanceof BranchTapeStorage &&
+        ((BranchTapeStorage) branch.storage()).prefix() == prefix.storage(), "tape is not a branch of this prefix");
+    int prefixSize = prefix.size();
+    ArgChecker.inRange(outputIndex, prefixSize, branch.size(), "outputIndex");
+    ArgChecker.isTrue(workspace.length >= branch.size(),
+        "workspace length {} should be at least the branch size {}", workspace.length, branch.size());
+    Arrays.fill(workspace, prefixSize, branch.size(), 0.0d);
+    workspace[outputIndex] = 1.0d;
+    TapeUtils.sweep(branch, workspace, outputIndex, prefixSize);
+    int nbPrefixInputs = prefix.getNbInputs();
+    double[] derivatives = new double[branch.getNbInputs() - nbPrefixInputs];
+    for (int loopi = 0; loopi < derivatives.length; loopi++) {
+      derivatives[loopi] = workspace[branch.getInputIndex(nbPrefixInputs + loopi)];
+    }
+    return derivatives;
+  }
+
+  /**
+   * Reduces the adjoint buffers of the branches and interprets the prefix.
+   * <p>
+   * The buffers are summed in a fixed order, by a pairwise tree on their position in the array, and the sum is
+   * propagated backward through the prefix in one sweep. The buffers are not modified. The result is reproducible
+   * when the branches are assigned to the buffers in a fixed way, as one buffer per branch or per fixed group of
+   * branches; with one buffer per thread, it depends on the scheduling in the last bits.
+   * @param adjointBuffers The adjoint buffers, as filled by {@link #interpretBranch(TapeAad, int, double[])}.
+   *   Their length should be at least the prefix size.
+   * @return The derivatives of the sum of the branch outputs with respect to the inputs of the prefix, in the order
+   *   in which they have been recorded.
+   */
+  public double[] interpretPrefix(double[][] adjointBuffers) {
+    int prefixSize = prefix.size();
+    double[] valueBar = new double[prefixSize];
+    for (double[] buffer : adjointBuffers) {
+      ArgChecker.isTrue(buffer.length >= prefixSize,
+          "buffer length {} should be at least the prefix size {}", buffer.length, prefixSize);
+    }
+    if (adjointBuffers.length > 0) {
+      for (int loope = 0; loope < prefixSize; loope++) {
+        valueBar[loope] = TapeParallel.treeSum(adjointBuffers, 0, adjointBuffers.length, loope);
+      }
+    }
+    TapeUtils.sweep(prefix, valueBar, prefixSize - 1, 0);
+    double[] derivatives = new double[prefix.getNbInputs()];
+    for (int loopi = 0; loopi < derivatives.length; loopi++) {
+      derivatives[loopi] = valueBar[prefix.getInputIndex(loopi)];
+    }
+    return derivatives;
+  }
+
+  /**
+   * Checks that the values of the prefix have not been released, see {@link TapeAad#releaseValues()}.
+   */
+  private void checkValuesNotReleased() {
+    if (prefix.storage().hasReleasedValues()) {
+      throw new IllegalStateException("The values of the prefix tape should not be released");
+    }
+  }
+
+}
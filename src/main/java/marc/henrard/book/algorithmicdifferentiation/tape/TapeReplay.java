@@ -0,0 +1,275 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.util.Arrays;
+import java.util.function.BiFunction;
+
+import com.opengamma.strata.collect.ArgChecker;
+
+import cern.jet.random.Normal;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+/**
+ * Replay of a recorded {@link TapeAad} with new input values.
+ * <p>
+ * The operations recorded in a frozen tape are evaluated again with new values of the inputs, without running the
+ * code which created the tape, and the derivatives are then computed by a backward sweep. The values and value bars
+ * are stored in caller-supplied buffers; the tape is not modified.
+ * <p>
+ * A tape records the operations of one branch of the code. The data-dependent branches should be recorded with
+ * guard entries, see {@link MathAad#compare(DoubleAad, double, TapeAad)}. When the result of a comparison differs
+ * from the recorded one, the replay fails and the tape has to be recorded again for the new inputs.
+ * The instances of this class hold a recorder of the function and do this automatically. They keep the tapes
+ * of all the branches recorded, the most recently used first.
+ * <p>
+ * The MANUAL, MANUAL_NARY and COMPOSITION entries can not be replayed: their derivatives depend on the inputs in a
+ * way which is not stored in the tape.
+ */
+public class TapeReplay {
+
+  /** The normal distribution implementation. */
+  private static final Normal NORMAL = new Normal(0.0d, 1.0d, null);
+
+  /** The function recording the operations in a tape, from the inputs. */
+  private final BiFunction<DoubleAad[], TapeAad, DoubleAad> recorder;
+  /** The number of inputs of the function. */
+  private final int nbInputs;
+  /** The recorded tapes, one for each branch, the most recently used first. Frozen. */
+  private TapeAad[] tapes;
+  /** The index of the output in each tape. */
+  private int[] outputIndices;
+  /** The buffer for the values of the entries. */
+  private double[] value;
+  /** The buffer for the value bars of the entries. */
+  private double[] valueBar;
+  /** The number of times the function has been recorded. */
+  private int nbRecords;
+
+  /**
+   * Creates a replay by recording a function for initial values of the inputs.
+   * @param recorder The function recording the operations in a tape, from the inputs.
+   * @param inputs The initial values of the inputs.
+   */
+  public TapeReplay(BiFunction<DoubleAad[], TapeAad, DoubleAad> recorder, double[] inputs) {
+    this.recorder = recorder;
+    this.nbInputs = inputs.length;
+    this.tapes = new TapeAad[0];
+    this.outputIndices = new int[0];
+    record(inputs);
+  }
+
+  /**
+   * Computes the value of the function and its derivatives for new values of the inputs.
+   * <p>
+   * The recorded tapes are replayed in turn, until one of them is on the branch of the new inputs. If none is,
+   * the function is recorded again for the new inputs.
+   * @param inputs The values of the inputs.
+   * @param derivatives The array where the derivatives with respect to the inputs are written.
+   * @return The value of the function.
+   */
+  public double evaluate(double[] inputs, double[] derivatives) {
+    ArgChecker.isTrue(inputs.length == nbInputs,
+        "inputs length {} should be equal to the number of inputs {}", inputs.length, nbInputs);
+    for (int loopt = 0; loopt < tapes.length; loopt++) {
+      if (replay(tapes[loopt], outputIndices[loopt], inputs, value, valueBar, derivatives)) {
+        moveFirst(loopt);
+        return value[outputIndices[0]];
+      }
+    }
+    record(inputs);
+    TapeUtils.interpret(tapes[0], outputIndices[0], valueBar, derivatives);
+    return tapes[0].getValue(outputIndices[0]);
+  }
+
+  /**
+   * Returns the tape most recently used.
+   * @return The tape.
+   */
+  public TapeAad getTape() {
+    return tapes[0];
+  }
+
+  /**
+   * Returns the number of tapes kept, one for each branch recorded.
+   * @return The number of tapes.
+   */
+  public int getNbTapes() {
+    return tapes.length;
+  }
+
+  /**
+   * Returns the number of times the function has been recorded, including the initial recording.
+   * @return The number of recordings.
+   */
+  public int getNbRecords() {
+    return nbRecords;
+  }
+
+  /**
+   * Records the function for given inputs, in a tape put first, and allocates the buffers.
+   * @param inputs The values of the inputs.
+   */
+  private void record(double[] inputs) {
+    TapeAad newTape = new TapeAad();
+    DoubleAad[] inputsAad = new DoubleAad[nbInputs];
+    for (int loopi = 0; loopi < nbInputs; loopi++) {
+      inputsAad[loopi] = DoubleAad.input(inputs[loopi], newTape);
+    }
+    DoubleAad output = recorder.apply(inputsAad, newTape);
+    newTape.freeze();
+    tapes = Arrays.copyOf(tapes, tapes.length + 1);
+    outputIndices = Arrays.copyOf(outputIndices, tapes.length);
+    tapes[tapes.length - 1] = newTape;
+    outputIndices[tapes.length - 1] = output.tapeIndex();
+    moveFirst(tapes.length - 1);
+    if (value == null || value.length < newTape.size()) {
+      value = new double[newTape.size()];
+      valueBar = new double[newTape.size()];
+    }
+    nbRecords++;
+  }
+
+  /**
+   * Moves a tape to the first position, shifting the ones before it.
+   * @param position The position of the tape.
+   */
+  private void moveFirst(int position) {
+    TapeAad tape = tapes[position];
+    int outputIndex = outputIndices[position];
+    System.arraycopy(tapes, 0, tapes, 1, position);
+    System.arraycopy(outputIndices, 0, outputIndices, 1, position);
+    tapes[0] = tape;
+    outputIndices[0] = outputIndex;
+  }
+
+  /**
+   * Replays a frozen tape with new values of the inputs and computes the derivatives of an output.
+   * <p>
+   * The values are evaluated forward up to the output, then the value bars are propagated backward.
+   * No memory is allocated.
+   * @param tape The tape. It should be frozen.
+   * @param outputIndex The tape index of the output.
+   * @param inputs The values of the inputs, in the order in which they have been recorded.
+   * @param value The buffer for the values of the entries. Its length should be at least the tape size.
+   * @param valueBar The buffer for the value bars of the entries. Its length should be at least the tape size.
+   * @param derivatives The array where the derivatives with respect to the inputs are written.
+   * @return True if the replay succeeded, false if a guard indicates that another branch would be taken.
+   *   In the latter case the content of the buffers is not meaningful.
+   */
+  public static boolean replay(
+      TapeAad tape,
+      int outputIndex,
+      double[] inputs,
+      double[] value,
+      double[] valueBar,
+      double[] derivatives) {
+    if (!forward(tape, outputIndex, inputs, value)) {
+      return false;
+    }
+    ArgChecker.isTrue(valueBar.length >= tape.size(),
+        "workspace length {} should be at least the tape size {}", valueBar.length, tape.size());
+    Arrays.fill(valueBar, 0, outputIndex + 1, 0.0d);
+    valueBar[outputIndex] = 1.0d;
+    TapeUtils.sweepValues(tape, value, valueBar, outputIndex, 0);
+    TapeUtils.extractDerivatives(tape, valueBar, derivatives);
+    return true;
+  }
+
+  /**
+   * Evaluates the values of the entries of a frozen tape up to an output, for new values of the inputs.
+   * @param tape The tape. It should be frozen.
+   * @param outputIndex The tape index of the output.
+   * @param inputs The values of the inputs, in the order in which they have been recorded.
+   * @param value The buffer for the values of the entries. Its length should be at least the tape size.
+   * @return True if the evaluation succeeded, false if a guard indicates that another branch would be taken.
+   */
+  public static boolean forward(TapeAad tape, int outputIndex, double[] inputs, double[] value) {
+    if (!tape.isFrozen()) {
+      throw new IllegalStateException("The tape should be frozen to be replayed");
+    }
+    ArgChecker.inRange(outputIndex, 0, tape.size(), "outputIndex");
+    ArgChecker.isTrue(inputs.length == tape.getNbInputs(),
+        "inputs length {} should be equal to the number of inputs {}", inputs.length, tape.getNbInputs());
+    ArgChecker.isTrue(value.length >= tape.size(),
+        "workspace length {} should be at least the tape size {}", value.length, tape.size());
+    int loopi = 0;
+    for (int loope = 0; loope <= outputIndex; loope++) {
+      int indexArg1 = tape.getIndexArg1(loope);
+      int indexArg2 = tape.getIndexArg2(loope);
+      switch (tape.getOperationType(loope)) {
+        case INPUT:
+          value[loope] = inputs[loopi++];
+          break;
+        case ADDITION:
+          value[loope] = value[indexArg1] + value[indexArg2];
+          break;
+        case ADDITION1:
+          value[loope] = value[indexArg1] + tape.getExtraValue(loope);
+          break;
+        case SUBTRACTION:
+          value[loope] = value[indexArg1] - value[indexArg2];
+          break;
+        case MULTIPLICATION:
+          value[loope] = value[indexArg1] * value[indexArg2];
+          break;
+        case MULTIPLICATION1:
+          value[loope] = value[indexArg1] * tape.getExtraValue(loope);
+          break;
+        case AFFINE:
+          value[loope] = tape.getExtraValue(loope) * value[indexArg1] + tape.getAffineConstant(loope);
+          break;
+        case DIVISION:
+          value[loope] = value[indexArg1] / value[indexArg2];
+          break;
+        case SIN:
+          value[loope] = Math.sin(value[indexArg1]);
+          break;
+        case COS:
+          value[loope] = Math.cos(value[indexArg1]);
+          break;
+        case EXP:
+          value[loope] = Math.exp(value[indexArg1]);
+          break;
+        case LOG:
+          value[loope] = Math.log(value[indexArg1]);
+          break;
+        case SQRT:
+          value[loope] = Math.sqrt(value[indexArg1]);
+          break;
+        case POW:
+          value[loope] = Math.pow(value[indexArg1], value[indexArg2]);
+          break;
+        case POW1:
+          value[loope] = Math.pow(value[indexArg1], tape.getExtraValue(loope));
+          break;
+        case NORMALCDF:
+          value[loope] = NORMAL.cdf(value[indexArg1]);
+          break;
+        case GUARD:
+        case GUARD_ABS: {
+          double x = (tape.getOperationType(loope) == OperationTypeAad.GUARD_ABS) ?
+              Math.abs(value[indexArg1]) : value[indexArg1];
+          double bound = tape.getExtraValue(loope);
+          double sign = (x < bound) ? -1.0d : ((x > bound) ? 1.0d : 0.0d);
+          if (sign != tape.getValue(loope)) {
+            return false;
+          }
+          value[loope] = sign;
+          break;
+        }
+        case NOP:
+          value[loope] = 0.0d;
+          break;
+        default: // MANUAL, MANUAL_NARY, COMPOSITION
+          throw new IllegalArgumentException(
+              "Entry " + loope + " of type " + tape.getOperationType(loope) + " can not be replayed");
+      }
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+/**
+ * Storage of the entries of a {@link TapeAad}.
+ * <p>
+ * Each entry is described by its operation type ordinal, the indices of its two arguments, its value, its extra value
+ * and, if recorded, its partial derivatives with respect to its two arguments. The value bars and the side arrays 
+ * of the MANUAL_NARY entries are not part of the storage.
+ */
+abstract class TapeStorage {
+
+  /** The minimal number of entries by which the storage grows when it is full. */
+  static final int CHUNK_SIZE = 1024;
+
+  /**
+   * Returns the number of entries the storage can hold.
+   * @return The capacity.
+   */
+  abstract int capacity();
+
+  /**
+   * Increases the capacity of the storage. The entries stored are kept.
+   * @param capacity The new capacity, larger than the current one.
+   */
+  abstract void grow(int capacity);
+
+  /**
+   * Reserves the index of a new entry, growing the storage if it is full.
+   * <p>
+   * The entries are stored one after the other: the index reserved is the current size of the tape. The storages
+   * shared by several tapes may reserve an index further in the storage, always after all the arguments.
+   * @param size The current size of the tape recording the entry.
+   * @param maxIndexArg The largest tape index of the arguments of the entry, -1 if there is no argument.
+   * @return The index of the new entry.
+   */
+  int reserve(int size, int maxIndexArg) {
+    if (size == capacity()) {
+      grow(size + Math.max(size, CHUNK_SIZE));
+    }
+    return size;
+  }
+
+  /**
+   * Returns the index of the first entry which can be recorded or removed. The entries before it belong to
+   * a prefix shared with other tapes.
+   * @return The index.
+   */
+  int firstIndex() {
+    return 0;
+  }
+
+  /**
+   * Returns whether the storage is shared by several tapes recording concurrently. The entries of a shared storage
+   * can not be removed.
+   * @return The flag.
+   */
+  boolean isShared() {
+    return false;
+  }
+
+  /**
+   * Stores an entry.
+   * @param index The entry index, below the capacity.
+   * @param operationType The operation type ordinal.
+   * @param indexArg1 The tape index of the first argument.
+   * @param indexArg2 The tape index of the second argument.
+   * @param value The value.
+   * @param extraValue The extra value.
+   */
+  abstract void set(int index, byte operationType, int indexArg1, int indexArg2, double value, double extraValue);
+
+  /**
+   * Stores the partial derivatives of an entry. Only applicable if the storage records the partial derivatives.
+   * @param index The entry index.
+   * @param partialArg1 The partial derivative with respect to the first argument.
+   * @param partialArg2 The partial derivative with respect to the second argument.
+   */
+  abstract void setPartials(int index, double partialArg1, double partialArg2);
+
+  /**
+   * Returns the operation type ordinal of an entry.
+   * @param index The entry index.
+   * @return The operation type ordinal.
+   */
+  abstract byte getOperationType(int index);
+
+  /**
+   * Returns the tape index of the first argument of an entry.
+   * @param index The entry index.
+   * @return The argument index.
+   */
+  abstract int getIndexArg1(int index);
+
+  /**
+   * Returns the tape index of the second argument of an entry.
+   * @param index The entry index.
+   * @return The argument index.
+   */
+  abstract int getIndexArg2(int index);
+
+  /**
+   * Returns the value of an entry.
+   * @param index The entry index.
+   * @return The value.
+   */
+  abstract double getValue(int index);
+
+  /**
+   * Returns the extra value of an entry.
+   * @param index The entry index.
+   * @return The extra value.
+   */
+  abstract double getExtraValue(int index);
+
+  /**
+   * Returns the partial derivative of an entry with respect to its first argument.
+   * @param index The entry index.
+   * @return The partial derivative.
+   */
+  abstract double getPartialArg1(int index);
+
+  /**
+   * Returns the partial derivative of an entry with respect to its second argument.
+   * @param index The entry index.
+   * @return The partial derivative.
+   */
+  abstract double getPartialArg2(int index);
+
+  /**
+   * Returns the array holding the values, if the values are stored in an array on the heap.
+   * @return The array, null if the values are not stored in an array.
+   */
+  double[] values() {
+    return null;
+  }
+
+  /**
+   * Releases the values of the entries which are not retained. Only the storages on the heap release the values,
+   * the other ones ignore this method.
+   * @param retained The entries whose value is retained, as a bit set.
+   */
+  void releaseValues(long[] retained) {
+  }
+
+  /**
+   * Returns whether some values have been released by {@link #releaseValues(long[])}.
+   * @return The flag.
+   */
+  boolean hasReleasedValues() {
+    return false;
+  }
+
+  /**
+   * Returns whether the value of an entry is available.
+   * @param index The entry index.
+   * @return The flag.
+   */
+  boolean isValueRetained(int index) {
+    return true;
+  }
+
+  /**
+   * Makes all the values available again, after {@link #releaseValues(long[])}. The values are not restored.
+   */
+  void restoreValues() {
+  }
+
+  /**
+   * Releases the resources held by the storage. The entries can not be accessed anymore.
+   */
+  void close() {
+  }
+
+}
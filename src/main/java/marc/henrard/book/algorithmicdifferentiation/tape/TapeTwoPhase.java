@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import java.util.Arrays;
+
+import com.opengamma.strata.collect.ArgChecker;
+
+/**
+ * Two-phase interpretation of a tape recording a market section followed by several trades.
+ * <p>
+ * The market section, as the curves and smiles built from the market data, is recorded first; its end is given
+ * by a mark of the tape, see {@link TapeAad#mark()}. Each trade is then recorded after its own mark and uses only
+ * the market entries and its own entries. Interpreting the full tape for each trade costs N &times; (market + trade).
+ * With two phases, each trade segment is swept from its output down to its mark only, the adjoints of the market
+ * entries being accumulated in a boundary buffer; the market section is then swept once for all the trades.
+ * The cost is N &times; trade + market. The trades can be grouped in buckets, as books or risk classes: the market
+ * section is then swept once in vector mode, with one lane for each bucket.
+ * <p>
+ * The tape should be frozen. The instances are immutable and can be used by several threads, each with its own
+ * workspace. See also {@link TapePrefix} for trades recorded in separate tapes.
+ */
+public class TapeTwoPhase {
+
+  /** The tape. */
+  private final TapeAad tape;
+  /** The mark at the end of the market section. */
+  private final int marketMark;
+  /** The number of inputs in the market section. */
+  private final int nbMarketInputs;
+
+  /**
+   * Creates a two-phase interpretation.
+   * @param tape The tape. It should be frozen.
+   * @param marketMark The mark at the end of the market section.
+   */
+  public TapeTwoPhase(TapeAad tape, int marketMark) {
+    if (!tape.isFrozen()) {
+      throw new IllegalStateException("The tape should be frozen");
+    }
+    ArgChecker.inRangeInclusive(marketMark, 0, tape.size(), "marketMark");
+    this.tape = tape;
+    this.marketMark = marketMark;
+    this.nbMarketInputs = firstInputAfter(marketMark);
+  }
+
+  /**
+   * Returns the number of inputs recorded in the market section.
+   * @return The number of inputs.
+   */
+  public int getNbMarketInputs() {
+    return nbMarketInputs;
+  }
+
+  /**
+   * Phase one: sweeps the segment of a trade and accumulates the adjoints of the market entries.
+   * <p>
+   * The entries from the output down to the trade mark are swept. The first elements of the workspace, up to the
+   * market mark, are the boundary buffer: the adjoints of the market entries used by the trade are added to them,
+   * they are not reset. The elements of the trade segment are reset by the method.
+   * @param tradeMark The mark recorded before the trade, after the market mark.
+   * @param outputIndex The tape index of the trade output, after the trade mark.
+   * @param workspace The workspace. Its length should be at least the tape size.
+   * @return The derivatives of the output with respect to the inputs recorded in the trade segment, in the order
+   *   in which they have been recorded.
+   */
+  public double[] interpretTrade(int tradeMark, int outputIndex, double[] workspace) {
+    ArgChecker.inRange(tradeMark, marketMark, tape.size(), "tradeMark");
+    ArgChecker.inRange(outputIndex, tradeMark, tape.size(), "outputIndex");
+    ArgChecker.isTrue(workspace.length >= tape.size(),
+        "workspace length {} should be at least the tape size {}", workspace.length, tape.size());
+    Arrays.fill(workspace, tradeMark, outputIndex + 1, 0.0d);
+    workspace[outputIndex] = 1.0d;
+    TapeUtils.sweep(tape, workspace, outputIndex, tradeMark);
+    int firstInput = firstInputAfter(tradeMark);
+    int lastInput = firstInputAfter(outputIndex + 1);
+    double[] derivatives = new double[lastInput - firstInput];
+    for (int loopi = 0; loopi < derivatives.length; loopi++) {
+      derivatives[loopi] = workspace[tape.getInputIndex(firstInput + loopi)];
+    }
+    return derivatives;
+  }
+
+  /**
+   * Phase two: sweeps the market section once for the boundary buffers of all the buckets.
+   * <p>
+   * The market section is swept in vector mode, with one lane for each buffer. The buffers are not modified.
+   * @param boundaryAdjoints The boundary buffer of each bucket, as filled by
+   *   {@link #interpretTrade(int, int, double[])}. Their length should be at least the market mark.
+   * @return For each bucket, the derivatives of the sum of its trade outputs with respect to the market inputs.
+   */
+  public double[][] interpretMarket(double[][] boundaryAdjoints) {
+    int width = boundaryAdjoints.length;
+    double[][] derivatives = new double[width][nbMarketInputs];
+    if (width == 0) {
+      return derivatives;
+    }
+    double[] valueBar = new double[marketMark * width];
+    for (int loopb = 0; loopb < width; loopb++) {
+      ArgChecker.isTrue(boundaryAdjoints[loopb].length >= marketMark,
+          "buffer length {} should be at least the market mark {}", boundaryAdjoints[loopb].length, marketMark);
+      for (int loope = 0; loope < marketMark; loope++) {
+        valueBar[loope * width + loopb] = boundaryAdjoints[loopb][loope];
+      }
+    }
+    TapeUtils.sweepVector(tape, valueBar, width, marketMark - 1, 0);
+    for (int loopb = 0; loopb < width; loopb++) {
+      for (int loopi = 0; loopi < nbMarketInputs; loopi++) {
+        derivatives[loopb][loopi] = valueBar[tape.getInputIndex(loopi) * width + loopb];
+      }
+    }
+    return derivatives;
+  }
+
+  /**
+   * Computes, with the two phases, the derivatives of the sum of the trade outputs of each bucket with respect to
+   * the market inputs.
+   * <p>
+   * The trades are swept bucket by bucket with one workspace; the boundary buffer is copied once for each bucket.
+   * @param tradeMarks The mark recorded before each trade.
+   * @param outputIndices The tape index of the output of each trade.
+   * @param buckets The bucket of each trade, between 0 (included) and the number of buckets (excluded).
+   * @param nbBuckets The number of buckets.
+   * @return For each bucket, the derivatives with respect to the market inputs.
+   */
+  public double[][] interpret(int[] tradeMarks, int[] outputIndices, int[] buckets, int nbBuckets) {
+    int nbTrades = tradeMarks.length;
+    ArgChecker.isTrue(outputIndices.length == nbTrades && buckets.length == nbTrades,
+        "tradeMarks, outputIndices and buckets should have the same length");
+    int[] nbTradesBucket = new int[nbBuckets + 1];
+    for (int bucket : buckets) {
+      ArgChecker.inRange(bucket, 0, nbBuckets, "bucket");
+      nbTradesBucket[bucket + 1]++;
+    }
+    for (int loopb = 0; loopb < nbBuckets; loopb++) {
+      nbTradesBucket[loopb + 1] += nbTradesBucket[loopb];
+    }
+    int[] tradesByBucket = new int[nbTrades]; // Trades sorted by bucket, in their order in each bucket
+    int[] position = Arrays.copyOf(nbTradesBucket, nbBuckets);
+    for (int loopt = 0; loopt < nbTrades; loopt++) {
+      tradesByBucket[position[buckets[loopt]]++] = loopt;
+    }
+    double[] workspace = new double[tape.size()];
+    double[][] boundaryAdjoints = new double[nbBuckets][];
+    for (int loopb = 0; loopb < nbBuckets; loopb++) {
+      Arrays.fill(workspace, 0, marketMark, 0.0d);
+      for (int loopt = nbTradesBucket[loopb]; loopt < nbTradesBucket[loopb + 1]; loopt++) {
+        int trade = tradesByBucket[loopt];
+        interpretTrade(tradeMarks[trade], outputIndices[trade], workspace);
+      }
+      boundaryAdjoints[loopb] = Arrays.copyOf(workspace, marketMark);
+    }
+    return interpretMarket(boundaryAdjoints);
+  }
+
+  /**
+   * Returns the number of the first input recorded at or after a tape index. The inputs are in increasing index order.
+   * @param index The tape index.
+   * @return The input number, the number of inputs if there is no input after the index.
+   */
+  private int firstInputAfter(int index) {
+    int low = 0;
+    int high = tape.getNbInputs();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (tape.getInputIndex(middle) < index) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+}
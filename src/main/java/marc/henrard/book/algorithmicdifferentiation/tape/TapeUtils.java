@@ -3,22 +3,28 @@
  */
 package marc.henrard.book.algorithmicdifferentiation.tape;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+
+import com.opengamma.strata.collect.ArgChecker;
 
 import cern.jet.random.Normal;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
 import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
 
 /**
  * Utilities functions to manipulate {@link TapeAad}.
  */
 public class TapeUtils {
-  
+
   /** The normal distribution implementation. */
   private static final Normal NORMAL = new Normal(0.0d, 1.0d, null);
-  
+  /** The default number of outputs propagated together in vector mode. */
+  public static final int DEFAULT_LANE_WIDTH = 8;
+
   /**
-   * Interpret a tape. 
+   * Interpret a tape.
+   * <p>
+   * The last entry of the tape is used as output. The value bars are stored in the tape, which can not be frozen.
    * <p>
    * The exact description of the interpretation can be found in the book
    * M. Henrard, Algorithmic Differentiation in Finance Explained, to appear. Section 4.2.
@@ -26,116 +32,565 @@ public class TapeUtils {
    * @return The derivatives with respect to the input as recorded in the tape.
    */
   public static double[] interpret(TapeAad tape) {
+    if (tape.isFrozen()) {
+      throw new IllegalStateException("A frozen tape should be interpreted with a workspace");
+    }
     int nbEntries = tape.size();
-    tape.getEntry(nbEntries-1).addValueBar(1.0d);
-    List<Double> derivativesList = new ArrayList<Double>();
-    for(int loope = nbEntries-1; loope>=0; loope--  ) {
-      TapeEntryAad entry = tape.getEntry(loope);
-      switch (entry.getOperationType()) {
+    double[] valueBar = tape.valueBars();
+    valueBar[nbEntries - 1] += 1.0d;
+    sweep(tape, valueBar, nbEntries - 1, 0);
+    return extractDerivatives(tape, valueBar);
+  }
+
+  /**
+   * Interpret a tape with the value bars stored in a caller-supplied workspace. The tape is not modified.
+   * <p>
+   * The workspace is reset by the method before the interpretation. As the tape is only read, a frozen tape can be
+   * interpreted several times and by several threads at the same time, each with its own workspace.
+   * @param tape The tape.
+   * @param outputIndex The tape index of the output for which the derivatives are computed.
+   * @param valueBar The workspace where the value bars are stored. Its length should be at least the tape size.
+   * @return The derivatives of the output with respect to the input as recorded in the tape.
+   */
+  public static double[] interpret(TapeAad tape, int outputIndex, double[] valueBar) {
+    double[] derivatives = new double[tape.getNbInputs()];
+    interpret(tape, outputIndex, valueBar, derivatives);
+    return derivatives;
+  }
+
+  /**
+   * Interpret a tape with the value bars stored in a caller-supplied workspace and the derivatives written in
+   * a caller-supplied array. The tape is not modified and no memory is allocated.
+   * <p>
+   * See {@link #interpret(TapeAad, int, double[])}.
+   * @param tape The tape.
+   * @param outputIndex The tape index of the output for which the derivatives are computed.
+   * @param valueBar The workspace where the value bars are stored. Its length should be at least the tape size.
+   * @param derivatives The array where the derivatives with respect to the inputs are written, 
+   *   in the order of the inputs. Its length should be at least the number of inputs.
+   */
+  public static void interpret(TapeAad tape, int outputIndex, double[] valueBar, double[] derivatives) {
+    checkWorkspace(tape, valueBar);
+    Arrays.fill(valueBar, 0, tape.size(), 0.0d);
+    valueBar[outputIndex] = 1.0d;
+    sweep(tape, valueBar, outputIndex, 0);
+    extractDerivatives(tape, valueBar, derivatives);
+  }
+
+  /**
+   * Interpret a tape with the value bars stored in a caller-supplied workspace. The tape is not modified.
+   * <p>
+   * The last entry of the tape is used as output. See {@link #interpret(TapeAad, int, double[])}.
+   * @param tape The tape.
+   * @param valueBar The workspace where the value bars are stored. Its length should be at least the tape size.
+   * @return The derivatives with respect to the input as recorded in the tape.
+   */
+  public static double[] interpret(TapeAad tape, double[] valueBar) {
+    return interpret(tape, tape.size() - 1, valueBar);
+  }
+
+  /**
+   * Interpret a tape for a weighted sum of outputs. The tape is not modified.
+   * <p>
+   * Each output is seeded with its weight and the tape is swept backward once. The derivatives returned are the ones 
+   * of the weighted sum of outputs, without requiring the sum to be recorded in the tape.
+   * @param tape The tape.
+   * @param outputs The outputs.
+   * @param weights The weight of each output.
+   * @return The derivatives of the weighted sum of outputs with respect to the input as recorded in the tape.
+   */
+  public static double[] interpret(TapeAad tape, DoubleAad[] outputs, double[] weights) {
+    return interpret(tape, outputs, weights, new double[tape.size()]);
+  }
+
+  /**
+   * Interpret a tape for a weighted sum of outputs with the value bars stored in a caller-supplied workspace. 
+   * The tape is not modified.
+   * <p>
+   * Each output is seeded with its weight and the tape is swept backward once. The derivatives returned are the ones 
+   * of the weighted sum of outputs, without requiring the sum to be recorded in the tape.
+   * The workspace is reset by the method before the interpretation.
+   * @param tape The tape.
+   * @param outputs The outputs.
+   * @param weights The weight of each output.
+   * @param valueBar The workspace where the value bars are stored. Its length should be at least the tape size.
+   * @return The derivatives of the weighted sum of outputs with respect to the input as recorded in the tape.
+   */
+  public static double[] interpret(TapeAad tape, DoubleAad[] outputs, double[] weights, double[] valueBar) {
+    ArgChecker.isTrue(outputs.length == weights.length, "outputs and weights should have the same length");
+    checkWorkspace(tape, valueBar);
+    Arrays.fill(valueBar, 0, tape.size(), 0.0d);
+    int startIndex = -1;
+    for (int loopo = 0; loopo < outputs.length; loopo++) {
+      int outputIndex = outputs[loopo].tapeIndex();
+      valueBar[outputIndex] += weights[loopo];
+      startIndex = Math.max(startIndex, outputIndex);
+    }
+    sweep(tape, valueBar, startIndex, 0);
+    return extractDerivatives(tape, valueBar);
+  }
+
+  /**
+   * Propagates the value bars backward from one entry to another one. Only the value bars are modified.
+   * <p>
+   * The value bars of the entries from the start index are propagated to their arguments,
+   * in decreasing index order, down to the end index (included).
+   * @param tape The tape.
+   * @param valueBar The value bars.
+   * @param startIndex The index of the first entry to propagate.
+   * @param endIndex The index of the last entry to propagate.
+   */
+  static void sweep(TapeAad tape, double[] valueBar, int startIndex, int endIndex) {
+    if (tape.isRecordingPartials()) {
+      sweepPartials(tape, valueBar, startIndex, endIndex);
+      return;
+    }
+    if (tape.storage() instanceof BranchTapeStorage) {
+      BranchTapeStorage storage = (BranchTapeStorage) tape.storage();
+      double[] prefixValue = storage.prefix().values();
+      if (prefixValue != null) { // Values read from the prefix and the branch storages
+        sweepValues(tape, prefixValue, storage.firstIndex(), storage.branchValues(), valueBar, startIndex, endIndex);
+        return;
+      }
+    }
+    double[] value = tape.values();
+    if (value == null) { // Entries stored outside of the heap
+      sweepLocalPartials(tape, valueBar, startIndex, endIndex);
+      return;
+    }
+    sweepValues(tape, value, valueBar, startIndex, endIndex);
+  }
+
+  /**
+   * Propagates the value bars backward from one entry to another one, with the local derivatives computed from
+   * given values of the entries. Only the value bars are modified.
+   * <p>
+   * The recorded partial derivatives are not used. This is the sweep used when the values are not the ones
+   * recorded in the tape, see {@link TapeReplay}.
+   * @param tape The tape.
+   * @param value The values of the entries.
+   * @param valueBar The value bars.
+   * @param startIndex The index of the first entry to propagate.
+   * @param endIndex The index of the last entry to propagate.
+   */
+  static void sweepValues(TapeAad tape, double[] value, double[] valueBar, int startIndex, int endIndex) {
+    sweepValues(tape, value, 0, value, valueBar, startIndex, endIndex);
+  }
+
+  /**
+   * Propagates the value bars backward from one entry to another one, with the values of the entries split in
+   * two arrays. Only the value bars are modified.
+   * <p>
+   * The values of the entries before the split index are read from the first array, indexed as the tape, and the
+   * ones of the following entries from the second array, the entry at the split index at index 0. This is the sweep
+   * of the branches of a {@link TapePrefix}, which read the values of the prefix from its storage.
+   * @param tape The tape.
+   * @param prefixValue The values of the entries before the split index.
+   * @param splitIndex The index of the first entry whose value is in the second array.
+   * @param value The values of the entries from the split index.
+   * @param valueBar The value bars.
+   * @param startIndex The index of the first entry to propagate.
+   * @param endIndex The index of the last entry to propagate.
+   */
+  static void sweepValues(
+      TapeAad tape,
+      double[] prefixValue,
+      int splitIndex,
+      double[] value,
+      double[] valueBar,
+      int startIndex,
+      int endIndex) {
+    for (int loope = startIndex; loope >= endIndex; loope--) {
+      double bar = valueBar[loope];
+      int indexArg1 = tape.getIndexArg1(loope);
+      int indexArg2 = tape.getIndexArg2(loope);
+      switch (tape.getOperationType(loope)) {
         case INPUT:
-          derivativesList.add(entry.getValueBar());
           break;
         case MANUAL:
-          tape.getEntry(entry.getIndexArg1()).addValueBar(entry.getExtraValue() * entry.getValueBar());
-          if(entry.getIndexArg2() != -1) {
-            tape.getEntry(entry.getIndexArg2()).addValueBar(entry.getValueBar());
+          valueBar[indexArg1] += tape.getExtraValue(loope) * bar;
+          if (indexArg2 >= 0) {
+            valueBar[indexArg2] += bar;
           }
           break;
+        case MANUAL_NARY:
+          sweepManual(tape, valueBar, indexArg1, indexArg2, bar);
+          break;
         case ADDITION: // Addition of two AAD doubles.
-          tape.getEntry(entry.getIndexArg1()).addValueBar(entry.getValueBar());
-          tape.getEntry(entry.getIndexArg2()).addValueBar(entry.getValueBar());
+          valueBar[indexArg1] += bar;
+          valueBar[indexArg2] += bar;
           break;
         case ADDITION1: // Addition with a simple double.
-          tape.getEntry(entry.getIndexArg1()).addValueBar(entry.getValueBar());
+          valueBar[indexArg1] += bar;
           break;
         case SUBTRACTION:
-          tape.getEntry(entry.getIndexArg1()).addValueBar(entry.getValueBar());
-          tape.getEntry(entry.getIndexArg2()).addValueBar(-entry.getValueBar());
+          valueBar[indexArg1] += bar;
+          valueBar[indexArg2] -= bar;
           break;
         case MULTIPLICATION: // Multiplication of two AAD doubles.
-          tape.getEntry(entry.getIndexArg1()).addValueBar(
-              tape.getEntry(entry.getIndexArg2()).getValue() * entry.getValueBar());
-          tape.getEntry(entry.getIndexArg2()).addValueBar(
-              tape.getEntry(entry.getIndexArg1()).getValue() * entry.getValueBar());
+          valueBar[indexArg1] += valueAt(prefixValue, splitIndex, value, indexArg2) * bar;
+          valueBar[indexArg2] += valueAt(prefixValue, splitIndex, value, indexArg1) * bar;
           break;
         case MULTIPLICATION1: // Multiplication by a simple double.
-          tape.getEntry(entry.getIndexArg1()).addValueBar(
-              entry.getExtraValue() * entry.getValueBar());
-          break;
-        case DIVISION:
-          tape.getEntry(entry.getIndexArg1()).addValueBar(
-              entry.getValueBar() / tape.getEntry(entry.getIndexArg2()).getValue());
-          tape.getEntry(entry.getIndexArg2()).addValueBar(
-              -tape.getEntry(entry.getIndexArg1()).getValue() /
-              (tape.getEntry(entry.getIndexArg2()).getValue() 
-                  * tape.getEntry(entry.getIndexArg2()).getValue() ) *
-              entry.getValueBar());
+        case AFFINE:
+        case COMPOSITION:
+          valueBar[indexArg1] += tape.getExtraValue(loope) * bar;
           break;
+        case DIVISION: {
+          double y = valueAt(prefixValue, splitIndex, value, indexArg2);
+          valueBar[indexArg1] += bar / y;
+          valueBar[indexArg2] -= valueAt(prefixValue, splitIndex, value, indexArg1) / (y * y) * bar;
+          break;
+        }
         case SIN:
-          tape.getEntry(entry.getIndexArg1()).addValueBar(
-              Math.cos(tape.getEntry(entry.getIndexArg1()).getValue()) * entry.getValueBar());
+          valueBar[indexArg1] += Math.cos(valueAt(prefixValue, splitIndex, value, indexArg1)) * bar;
           break;
         case COS:
-          tape.getEntry(entry.getIndexArg1()).addValueBar(
-              - Math.sin(tape.getEntry(entry.getIndexArg1()).getValue()) * entry.getValueBar());
+          valueBar[indexArg1] -= Math.sin(valueAt(prefixValue, splitIndex, value, indexArg1)) * bar;
           break;
         case EXP:
-          tape.getEntry(entry.getIndexArg1()).addValueBar(entry.getValue() * entry.getValueBar());
+          valueBar[indexArg1] += valueAt(prefixValue, splitIndex, value, loope) * bar;
           break;
         case LOG:
-          tape.getEntry(entry.getIndexArg1()).addValueBar(
-              entry.getValueBar() / tape.getEntry(entry.getIndexArg1()).getValue());
+          valueBar[indexArg1] += bar / valueAt(prefixValue, splitIndex, value, indexArg1);
           break;
         case SQRT:
-          tape.getEntry(entry.getIndexArg1()).addValueBar(0.5 / entry.getValue() * entry.getValueBar());
+          valueBar[indexArg1] += 0.5 / valueAt(prefixValue, splitIndex, value, loope) * bar;
           break;
-        case POW:
-          double x = tape.getEntry(entry.getIndexArg1()).getValue(); // x^y
-          double y = tape.getEntry(entry.getIndexArg2()).getValue();
-          tape.getEntry(entry.getIndexArg1()).addValueBar(y * entry.getValue() / x * entry.getValueBar());
-          tape.getEntry(entry.getIndexArg2()).addValueBar(entry.getValue() * Math.log(x) * entry.getValueBar());
+        case POW: {
+          double x = valueAt(prefixValue, splitIndex, value, indexArg1); // x^y
+          double y = valueAt(prefixValue, splitIndex, value, indexArg2);
+          valueBar[indexArg1] += y * valueAt(prefixValue, splitIndex, value, loope) / x * bar;
+          valueBar[indexArg2] += valueAt(prefixValue, splitIndex, value, loope) * Math.log(x) * bar;
           break;
+        }
         case POW1:
-          tape.getEntry(entry.getIndexArg1()).addValueBar(
-              entry.getExtraValue() * entry.getValue() / tape.getEntry(entry.getIndexArg1()).getValue() * 
-              entry.getValueBar());
+          valueBar[indexArg1] += tape.getExtraValue(loope) * valueAt(prefixValue, splitIndex, value, loope) /
+              valueAt(prefixValue, splitIndex, value, indexArg1) * bar;
           break;
         case NORMALCDF:
-          tape.getEntry(entry.getIndexArg1()).addValueBar(
-              NORMAL.pdf(tape.getEntry(entry.getIndexArg1()).getValue()) * entry.getValueBar());
+          valueBar[indexArg1] += NORMAL.pdf(valueAt(prefixValue, splitIndex, value, indexArg1)) * bar;
           break;
-        default:
+        default: // GUARD, GUARD_ABS, NOP
           break;
       }
     }
-    int nbDerivatives = derivativesList.size();
-    double[] derivatives = new double[nbDerivatives];
-    for (int loopd = 0; loopd < nbDerivatives; loopd++) {
-      derivatives[loopd] = derivativesList.get(nbDerivatives - 1 - loopd);
+  }
+
+  /* The value of an entry, with the values split in two arrays at the split index. */
+  private static double valueAt(double[] prefixValue, int splitIndex, double[] value, int index) {
+    return (index < splitIndex) ? prefixValue[index] : value[index - splitIndex];
+  }
+
+
+  /**
+   * Interpret a tape for several outputs in vector mode and returns the Jacobian of the outputs with respect to 
+   * the inputs. The tape is not modified.
+   * <p>
+   * The outputs are processed by blocks of {@link #DEFAULT_LANE_WIDTH} outputs, 
+   * see {@link #interpretVector(TapeAad, int[], int)}.
+   * @param tape The tape.
+   * @param outputIndices The tape indices of the outputs.
+   * @return The Jacobian, with the outputs as rows and the inputs (as recorded in the tape) as columns.
+   */
+  public static double[][] interpretVector(TapeAad tape, int[] outputIndices) {
+    return interpretVector(tape, outputIndices, DEFAULT_LANE_WIDTH);
+  }
+
+  /**
+   * Interpret a tape for several outputs in vector mode and returns the Jacobian of the outputs with respect to 
+   * the inputs. The tape is not modified.
+   * <p>
+   * Each entry carries one value bar for each output of a block (lane). The outputs are processed by blocks
+   * of the lane width, each block in one backward sweep of the tape. The local derivatives of an entry are computed
+   * once and applied to all the lanes in a tight inner loop.
+   * @param tape The tape.
+   * @param outputIndices The tape indices of the outputs.
+   * @param laneWidth The maximal number of outputs propagated in each sweep.
+   * @return The Jacobian, with the outputs as rows and the inputs (as recorded in the tape) as columns.
+   */
+  public static double[][] interpretVector(TapeAad tape, int[] outputIndices, int laneWidth) {
+    ArgChecker.isTrue(laneWidth > 0, "lane width should be strictly positive");
+    int nbOutputs = outputIndices.length;
+    int nbInputs = tape.getNbInputs();
+    int width = Math.min(laneWidth, Math.max(nbOutputs, 1));
+    double[] valueBar = new double[tape.size() * width];
+    double[][] jacobian = new double[nbOutputs][nbInputs];
+    for (int loopb = 0; loopb < nbOutputs; loopb += width) {
+      int nbLanes = Math.min(width, nbOutputs - loopb);
+      int startIndex = 0;
+      for (int loopl = 0; loopl < nbLanes; loopl++) {
+        int outputIndex = outputIndices[loopb + loopl];
+        startIndex = Math.max(startIndex, outputIndex);
+        valueBar[outputIndex * width + loopl] += 1.0d;
+      }
+      sweepVector(tape, valueBar, width, startIndex, 0);
+      for (int loopl = 0; loopl < nbLanes; loopl++) {
+        for (int loopi = 0; loopi < nbInputs; loopi++) {
+          jacobian[loopb + loopl][loopi] = valueBar[tape.getInputIndex(loopi) * width + loopl];
+        }
+      }
+      Arrays.fill(valueBar, 0, (startIndex + 1) * width, 0.0d);
+    }
+    return jacobian;
+  }
+
+  /**
+   * Propagates the vector value bars backward from one entry to another one. Only the value bars are modified.
+   * <p>
+   * The value bars are stored entry by entry, each entry with the given number of lanes.
+   * @param tape The tape.
+   * @param valueBar The value bars, of length at least the tape size times the lane width.
+   * @param width The lane width.
+   * @param startIndex The index of the first entry to propagate.
+   * @param endIndex The index of the last entry to propagate.
+   */
+  static void sweepVector(TapeAad tape, double[] valueBar, int width, int startIndex, int endIndex) {
+    boolean recordedPartials = tape.isRecordingPartials();
+    double[] partials = new double[2];
+    for (int loope = startIndex; loope >= endIndex; loope--) {
+      int indexArg1 = tape.getIndexArg1(loope);
+      if (indexArg1 == -1) { // INPUT
+        continue;
+      }
+      int indexArg2 = tape.getIndexArg2(loope);
+      int offset = loope * width;
+      if (tape.getOperationType(loope) == OperationTypeAad.MANUAL_NARY) {
+        int[] manualIndexArgs = tape.manualIndexArgs();
+        double[] manualDerivatives = tape.manualDerivatives();
+        for (int loopa = indexArg1; loopa < indexArg1 + indexArg2; loopa++) {
+          int offsetArg = manualIndexArgs[loopa] * width;
+          double derivative = manualDerivatives[loopa];
+          for (int loopl = 0; loopl < width; loopl++) {
+            valueBar[offsetArg + loopl] += derivative * valueBar[offset + loopl];
+          }
+        }
+        continue;
+      }
+      if (recordedPartials) {
+        partials[0] = tape.getPartialArg1(loope);
+        partials[1] = tape.getPartialArg2(loope);
+      } else {
+        localPartials(tape, loope, partials);
+      }
+      int offset1 = indexArg1 * width;
+      for (int loopl = 0; loopl < width; loopl++) {
+        valueBar[offset1 + loopl] += partials[0] * valueBar[offset + loopl];
+      }
+      if (indexArg2 >= 0) {
+        int offset2 = indexArg2 * width;
+        for (int loopl = 0; loopl < width; loopl++) {
+          valueBar[offset2 + loopl] += partials[1] * valueBar[offset + loopl];
+        }
+      }
     }
-    return derivatives;
   }
-  
+
   /**
-   * Extract the derivative of the final value with respect to the inputs in a {@link TapeAad}.
+   * Propagates the value bars backward using the local partial derivatives recorded in the tape.
+   * <p>
+   * There is no dispatch on the operation type and no function evaluation: each entry contributes 
+   * its value bar multiplied by the recorded partial derivatives to its arguments.
+   * @param tape The tape, recording the partial derivatives.
+   * @param valueBar The value bars.
+   * @param startIndex The index of the first entry to propagate.
+   * @param endIndex The index of the last entry to propagate.
+   */
+  static void sweepPartials(TapeAad tape, double[] valueBar, int startIndex, int endIndex) {
+    for (int loope = startIndex; loope >= endIndex; loope--) {
+      double bar = valueBar[loope];
+      int indexArg1 = tape.getIndexArg1(loope);
+      if (tape.getOperationType(loope) == OperationTypeAad.MANUAL_NARY) {
+        sweepManual(tape, valueBar, indexArg1, tape.getIndexArg2(loope), bar);
+      } else if (indexArg1 >= 0) {
+        valueBar[indexArg1] += tape.getPartialArg1(loope) * bar;
+        int indexArg2 = tape.getIndexArg2(loope);
+        if (indexArg2 >= 0) {
+          valueBar[indexArg2] += tape.getPartialArg2(loope) * bar;
+        }
+      }
+    }
+  }
+
+  /**
+   * Propagates the value bars backward using the local partial derivatives computed from the values in the tape.
+   * <p>
+   * The values are read through the tape accessors, entry by entry. This is the sweep used when the values of 
+   * the tape are not available as an array, see {@link TapeAad#offHeap(int, boolean)}.
    * @param tape The tape.
-   * @return The derivatives.
+   * @param valueBar The value bars.
+   * @param startIndex The index of the first entry to propagate.
+   * @param endIndex The index of the last entry to propagate.
    */
-  public static double[] extractDerivatives(TapeAad tape) {
-    int nbEntries = tape.size();
-    List<Double> derivativesList = new ArrayList<Double>();
-    for (int loope = 0; loope < nbEntries; loope++) {
-      TapeEntryAad entry = tape.getEntry(loope);
-      if (entry.getOperationType() == OperationTypeAad.INPUT) {
-        derivativesList.add(entry.getValueBar());
+  static void sweepLocalPartials(TapeAad tape, double[] valueBar, int startIndex, int endIndex) {
+    double[] partials = new double[2];
+    for (int loope = startIndex; loope >= endIndex; loope--) {
+      double bar = valueBar[loope];
+      int indexArg1 = tape.getIndexArg1(loope);
+      if (tape.getOperationType(loope) == OperationTypeAad.MANUAL_NARY) {
+        sweepManual(tape, valueBar, indexArg1, tape.getIndexArg2(loope), bar);
+      } else if (indexArg1 >= 0) {
+        localPartials(tape, loope, partials);
+        valueBar[indexArg1] += partials[0] * bar;
+        int indexArg2 = tape.getIndexArg2(loope);
+        if (indexArg2 >= 0) {
+          valueBar[indexArg2] += partials[1] * bar;
+        }
       }
     }
-    int nbDerivatives = derivativesList.size();
-    double[] derivatives = new double[nbDerivatives];
-    for (int loopd = 0; loopd < nbDerivatives; loopd++) {
-      derivatives[loopd] = derivativesList.get(loopd);
+  }
+
+  /**
+   * Propagates the value bar of a MANUAL_NARY entry to its arguments.
+   * @param tape The tape.
+   * @param valueBar The value bars.
+   * @param offset The offset of the entry arguments in the side arrays of the tape.
+   * @param nbArgs The number of arguments of the entry.
+   * @param bar The value bar of the entry.
+   */
+  private static void sweepManual(TapeAad tape, double[] valueBar, int offset, int nbArgs, double bar) {
+    int[] manualIndexArgs = tape.manualIndexArgs();
+    double[] manualDerivatives = tape.manualDerivatives();
+    for (int loopa = offset; loopa < offset + nbArgs; loopa++) {
+      valueBar[manualIndexArgs[loopa]] += manualDerivatives[loopa] * bar;
+    }
+  }
+
+  /**
+   * Computes the local partial derivatives of an entry with respect to its arguments from the values in the tape.
+   * @param tape The tape.
+   * @param index The entry index.
+   * @param partials The array where the partial derivatives with respect to the first and second arguments
+   *   are written. The partial derivatives for missing arguments are set to 0.
+   *   Not applicable to MANUAL_NARY entries, which store their derivatives in the tape.
+   */
+  static void localPartials(TapeAad tape, int index, double[] partials) {
+    int indexArg1 = tape.getIndexArg1(index);
+    int indexArg2 = tape.getIndexArg2(index);
+    double partial1 = 0.0d;
+    double partial2 = 0.0d;
+    switch (tape.getOperationType(index)) {
+      case MANUAL:
+        partial1 = tape.getExtraValue(index);
+        partial2 = (indexArg2 < 0) ? 0.0d : 1.0d;
+        break;
+      case ADDITION:
+        partial1 = 1.0d;
+        partial2 = 1.0d;
+        break;
+      case ADDITION1:
+        partial1 = 1.0d;
+        break;
+      case SUBTRACTION:
+        partial1 = 1.0d;
+        partial2 = -1.0d;
+        break;
+      case MULTIPLICATION:
+        partial1 = tape.getValue(indexArg2);
+        partial2 = tape.getValue(indexArg1);
+        break;
+      case MULTIPLICATION1:
+      case AFFINE:
+      case COMPOSITION:
+        partial1 = tape.getExtraValue(index);
+        break;
+      case DIVISION: {
+        double y = tape.getValue(indexArg2);
+        partial1 = 1.0d / y;
+        partial2 = -tape.getValue(indexArg1) / (y * y);
+        break;
+      }
+      case SIN:
+        partial1 = Math.cos(tape.getValue(indexArg1));
+        break;
+      case COS:
+        partial1 = -Math.sin(tape.getValue(indexArg1));
+        break;
+      case EXP:
+        partial1 = tape.getValue(index);
+        break;
+      case LOG:
+        partial1 = 1.0d / tape.getValue(indexArg1);
+        break;
+      case SQRT:
+        partial1 = 0.5 / tape.getValue(index);
+        break;
+      case POW: {
+        double x = tape.getValue(indexArg1); // x^y
+        partial1 = tape.getValue(indexArg2) * tape.getValue(index) / x;
+        partial2 = tape.getValue(index) * Math.log(x);
+        break;
+      }
+      case POW1:
+        partial1 = tape.getExtraValue(index) * tape.getValue(index) / tape.getValue(indexArg1);
+        break;
+      case NORMALCDF:
+        partial1 = NORMAL.pdf(tape.getValue(indexArg1));
+        break;
+      case MANUAL_NARY:
+        throw new IllegalArgumentException("MANUAL_NARY entries have no local partial derivatives with two arguments");
+      default: // INPUT, GUARD, GUARD_ABS, NOP
+        break;
     }
+    partials[0] = partial1;
+    partials[1] = partial2;
+  }
+
+  /**
+   * Returns whether an operation type is a guard: a comparison without derivative, checked when the tape is replayed.
+   * @param type The operation type.
+   * @return The flag.
+   */
+  static boolean isGuard(OperationTypeAad type) {
+    return type == OperationTypeAad.GUARD || type == OperationTypeAad.GUARD_ABS;
+  }
+
+  /**
+   * Extract the derivative of the final value with respect to the inputs in a {@link TapeAad}.
+   * @param tape The tape.
+   * @return The derivatives.
+   */
+  public static double[] extractDerivatives(TapeAad tape) {
+    return extractDerivatives(tape, tape.valueBars());
+  }
+
+  /**
+   * Extract the derivative with respect to the inputs of a {@link TapeAad} from a workspace of value bars.
+   * @param tape The tape.
+   * @param valueBar The value bars, as computed by {@link #interpret(TapeAad, int, double[])}.
+   * @return The derivatives.
+   */
+  public static double[] extractDerivatives(TapeAad tape, double[] valueBar) {
+    double[] derivatives = new double[tape.getNbInputs()];
+    extractDerivatives(tape, valueBar, derivatives);
     return derivatives;
   }
 
+  /**
+   * Extract the derivative with respect to the inputs of a {@link TapeAad} from a workspace of value bars
+   * into a caller-supplied array. No memory is allocated.
+   * @param tape The tape.
+   * @param valueBar The value bars, as computed by {@link #interpret(TapeAad, int, double[])}.
+   * @param derivatives The array where the derivatives are written, in the order of the inputs. 
+   *   Its length should be at least the number of inputs.
+   */
+  public static void extractDerivatives(TapeAad tape, double[] valueBar, double[] derivatives) {
+    int nbInputs = tape.getNbInputs();
+    ArgChecker.isTrue(derivatives.length >= nbInputs, 
+        "derivatives length {} should be at least the number of inputs {}", derivatives.length, nbInputs);
+    for (int loopi = 0; loopi < nbInputs; loopi++) {
+      derivatives[loopi] = valueBar[tape.getInputIndex(loopi)];
+    }
+  }
+
+  /**
+   * Checks that a workspace is large enough for a tape.
+   * @param tape The tape.
+   * @param valueBar The workspace.
+   */
+  private static void checkWorkspace(TapeAad tape, double[] valueBar) {
+    ArgChecker.isTrue(valueBar.length >= tape.size(), 
+        "workspace length {} should be at least the tape size {}", valueBar.length, tape.size());
+  }
+
 }
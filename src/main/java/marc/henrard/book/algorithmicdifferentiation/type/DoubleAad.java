@@ -4,7 +4,6 @@
 package marc.henrard.book.algorithmicdifferentiation.type;
 
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeAad;
-import marc.henrard.book.algorithmicdifferentiation.tape.TapeEntryAad;
 
 /**
  * Class describing a augmented double for Adjoint (or Reverse) Algorithmic Differentiation.
@@ -50,7 +49,7 @@ public class DoubleAad {
    * @return The input DoubleAad.
    */
   public static DoubleAad input(double value, TapeAad tape){
-    return new DoubleAad(value, tape.addEntry(new TapeEntryAad(OperationTypeAad.INPUT, value)));
+    return new DoubleAad(value, tape.addEntry(OperationTypeAad.INPUT, value));
   }
 
 }
@@ -39,6 +39,25 @@ public enum OperationTypeAad {
   /** Power of a AAD double with a standard double. */
   POW1,
   /** Normal cumulative density function of a AAD double. */
-  NORMALCDF
+  NORMALCDF,
+  /** Affine function of a AAD double, a * x + b, with the factor a as extra value and the constant b in a side
+   *  array of the tape, referred to by the second index. Produced by tape optimization. */
+  AFFINE,
+  /** Composition of one argument operations on a AAD double, with the derivative of the composition as extra value.
+   *  Produced by tape optimization. */
+  COMPOSITION,
+  /** Used for manual code providing the derivatives with respect to any number of AAD doubles. The argument indices
+   *  and derivatives are stored in side arrays of the tape; the first index is the offset in those arrays and
+   *  the second index the number of arguments. */
+  MANUAL_NARY,
+  /** Comparison of a AAD double with a constant double, stored as extra value. The value is the sign of the
+   *  difference. Used to detect a change of branch when a tape is replayed; there is no derivative. */
+  GUARD,
+  /** Comparison of the absolute value of a AAD double with a constant double, stored as extra value. The value is
+   *  the sign of the difference. Used as GUARD for the tests on a range symmetric around 0. */
+  GUARD_ABS,
+  /** Empty entry, without argument, value or derivative. Used to fill the unused part of the blocks of entries 
+   *  reserved by the threads recording in a concurrent tape. */
+  NOP
 
 }
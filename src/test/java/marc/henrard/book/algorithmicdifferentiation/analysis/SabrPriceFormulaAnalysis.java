@@ -3,8 +3,11 @@
  */
 package marc.henrard.book.algorithmicdifferentiation.analysis;
 
+import java.util.stream.IntStream;
+
 import marc.henrard.book.algorithmicdifferentiation.finance.formula.SabrPriceFormula;
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeAad;
+import marc.henrard.book.algorithmicdifferentiation.tape.TapeContext;
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeEntryAad;
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeUtils;
 import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
@@ -181,6 +184,42 @@ public class SabrPriceFormulaAnalysis {
       System.out.println("  |--> " + nbTest + " SABR price (AAD Mixed A 2): " + (endTime - startTime) + " ms ... " + hotspot);
       // Performance note: price Mixed3 AAD (no interpret/interpret): 25-Dec-2014: 
       //   On Mac Book Pro 2.6 GHz Intel Core i7: XXX/1185 ms for 5x2x100,000 functions.
+
+      startTime = System.currentTimeMillis();
+      hotspot = 0;
+      for (int loopperf = 0; loopperf < nbTest; loopperf++) {
+        for (int looptest = 0; looptest < NB_TESTS; looptest++) {
+          for (int looppc = 0; looppc < 2; looppc++) {
+            TapeAad tape = new TapeAad();
+            DoubleAad[] dataAad = new DoubleAad[NB_INPUT];
+            for (int loopi = 0; loopi < NB_INPUT; loopi++) {
+              dataAad[loopi] = DoubleAad.input(DATA[looptest][loopi], tape);
+            }
+            DoubleAad price = SabrPriceFormula.price_Aad_Automatic_Scope(dataAad[0], dataAad[1],
+                dataAad[2], dataAad[3], dataAad[4], dataAad[5], dataAad[6], dataAad[7], callPut[looppc], tape);
+            double[] d = TapeUtils.interpret(tape);
+            hotspot += d.length;
+          }
+        }
+      }
+      endTime = System.currentTimeMillis();
+      System.out.println("  |--> " + nbTest + " SABR price (AAD Automatic with scope): " + (endTime - startTime) 
+          + " ms ... " + hotspot);
+
+      for (boolean parallel : new boolean[] {false, true}) {
+        startTime = System.currentTimeMillis();
+        IntStream batch = IntStream.range(0, nbTest * NB_TESTS * 2);
+        hotspot = (parallel ? batch.parallel() : batch).mapToLong(loopb -> {
+          int looptest = (loopb / 2) % NB_TESTS;
+          boolean isCall = callPut[loopb % 2];
+          return TapeContext.valueAndDerivatives(DATA[looptest], (d, tape) -> SabrPriceFormula.price_Aad_Automatic(
+              d[0], d[1], d[2], d[3], d[4], d[5], d[6], d[7], isCall, tape)).derivatives().length;
+        }).sum();
+        endTime = System.currentTimeMillis();
+        System.out.println("  |--> " + nbTest + " SABR price (AAD Automatic with tape context, "
+            + (parallel ? "parallel on " + Runtime.getRuntime().availableProcessors() + " cores): " : "sequential): ")
+            + (endTime - startTime) + " ms ... " + hotspot);
+      }
     }
   }
 
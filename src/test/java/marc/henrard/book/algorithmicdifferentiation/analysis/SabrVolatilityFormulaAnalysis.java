@@ -7,7 +7,12 @@ import java.util.function.Function;
 
 import marc.henrard.book.algorithmicdifferentiation.finance.formula.SabrVolatilityFormula;
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeAad;
+import marc.henrard.book.algorithmicdifferentiation.tape.TapeCompiler;
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeEntryAad;
+import marc.henrard.book.algorithmicdifferentiation.tape.TapeKernel;
+import marc.henrard.book.algorithmicdifferentiation.tape.TapeOptimizer;
+import marc.henrard.book.algorithmicdifferentiation.tape.TapePacked;
+import marc.henrard.book.algorithmicdifferentiation.tape.TapeReplay;
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeUtils;
 import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
 import marc.henrard.book.algorithmicdifferentiation.type.DoubleDerivatives;
@@ -106,6 +111,112 @@ public class SabrVolatilityFormulaAnalysis {
       // Performance note: volatility AAD Automatic (no interpret/interpret): 
       //   24-Dec-2014: On Mac Book Pro 2.6 GHz Intel Core i7: xxx/615 ms for 5x100,000 functions.
 
+      startTime = System.currentTimeMillis();
+      hotspot = 0;
+      for (int loopperf = 0; loopperf < nbTest; loopperf++) {
+        for (int looptest = 0; looptest < NB_TESTS; looptest++) {
+          TapeAad tape = new TapeAad(256, true);
+          DoubleAad[] dataAad = new DoubleAad[7];
+          for (int loopi = 0; loopi < 7; loopi++) {
+            dataAad[loopi] = DoubleAad.input(DATA[looptest][loopi], tape);
+          }
+          DoubleAad volatility = SabrVolatilityFormula.volatility_Aad_Automatic(dataAad[0], dataAad[1],
+              dataAad[2], dataAad[3], dataAad[4], dataAad[5], dataAad[6], tape);
+          double[] d = TapeUtils.interpret(tape);
+          hotspot += d.length;
+        }
+      }
+      endTime = System.currentTimeMillis();
+      System.out.println("  |--> " + 5 * nbTest + " SABR volatility (AAD Automatic - recorded partials): " 
+          + (endTime - startTime) + " ms ..." + hotspot);
+
+      TapeReplay replay = new TapeReplay((d, tape) -> SabrVolatilityFormula.volatility_Aad_Automatic(
+          d[0], d[1], d[2], d[3], d[4], d[5], d[6], tape), DATA[0]);
+      double[] derivativesReplay = new double[7];
+      startTime = System.currentTimeMillis();
+      hotspot = 0;
+      for (int loopperf = 0; loopperf < nbTest; loopperf++) {
+        for (int looptest = 0; looptest < NB_TESTS; looptest++) {
+          double volatility = replay.evaluate(DATA[looptest], derivativesReplay);
+          hotspot += (int) (volatility * 10);
+        }
+      }
+      endTime = System.currentTimeMillis();
+      System.out.println("  |--> " + 5 * nbTest + " SABR volatility (AAD Automatic - replay, "
+          + replay.getNbRecords() + " recordings): " + (endTime - startTime) + " ms ..." + hotspot);
+
+      TapeAad tapeKernel = new TapeAad();
+      DoubleAad[] dataKernel = new DoubleAad[7];
+      for (int loopi = 0; loopi < 7; loopi++) {
+        dataKernel[loopi] = DoubleAad.input(DATA[0][loopi], tapeKernel);
+      }
+      DoubleAad volatilityKernel = SabrVolatilityFormula.volatility_Aad_Automatic(dataKernel[0], dataKernel[1],
+          dataKernel[2], dataKernel[3], dataKernel[4], dataKernel[5], dataKernel[6], tapeKernel);
+      tapeKernel.freeze();
+      TapeKernel kernel = TapeCompiler.compile(tapeKernel, volatilityKernel.tapeIndex());
+      startTime = System.currentTimeMillis();
+      hotspot = 0;
+      for (int loopperf = 0; loopperf < nbTest; loopperf++) {
+        for (int looptest = 0; looptest < NB_TESTS; looptest++) {
+          if (looptest != 1) { // Data set 1 is at-the-money, on another branch
+            double volatility = kernel.valueAndGradient(DATA[looptest], derivativesReplay);
+            hotspot += (int) (volatility * 10);
+          }
+        }
+      }
+      endTime = System.currentTimeMillis();
+      System.out.println("  |--> " + 4 * nbTest + " SABR volatility (AAD Automatic - compiled tape): " 
+          + (endTime - startTime) + " ms ..." + hotspot);
+
+      TapeAad[] tapes = new TapeAad[NB_TESTS];
+      TapeAad[] tapesFused = new TapeAad[NB_TESTS];
+      int[][] outputIndices = new int[NB_TESTS][1];
+      for (int looptest = 0; looptest < NB_TESTS; looptest++) {
+        tapes[looptest] = new TapeAad();
+        DoubleAad[] dataAad = new DoubleAad[7];
+        for (int loopi = 0; loopi < 7; loopi++) {
+          dataAad[loopi] = DoubleAad.input(DATA[looptest][loopi], tapes[looptest]);
+        }
+        DoubleAad volatility = SabrVolatilityFormula.volatility_Aad_Automatic(dataAad[0], dataAad[1],
+            dataAad[2], dataAad[3], dataAad[4], dataAad[5], dataAad[6], tapes[looptest]);
+        tapes[looptest].freeze();
+        outputIndices[looptest][0] = volatility.tapeIndex();
+        tapesFused[looptest] = TapeOptimizer.fuseChains(tapes[looptest], outputIndices[looptest]);
+      }
+      double[] valueBar = new double[tapes[0].size()];
+      double[] derivatives = new double[7];
+      for (TapeAad[] tapesSweep : new TapeAad[][] {tapes, tapesFused}) {
+        startTime = System.currentTimeMillis();
+        hotspot = 0;
+        for (int loopperf = 0; loopperf < nbTest; loopperf++) {
+          for (int looptest = 0; looptest < NB_TESTS; looptest++) {
+            TapeAad tape = tapesSweep[looptest];
+            int outputIndex = (tapesSweep == tapes) ? tape.size() - 1 : outputIndices[looptest][0];
+            TapeUtils.interpret(tape, outputIndex, valueBar, derivatives);
+            hotspot += derivatives.length;
+          }
+        }
+        endTime = System.currentTimeMillis();
+        System.out.println("  |--> " + 5 * nbTest + " SABR volatility (sweep only - "
+            + ((tapesSweep == tapes) ? "recorded tape, " : "fused tape, ") + tapesSweep[0].size() + " entries): "
+            + (endTime - startTime) + " ms ..." + hotspot);
+      }
+      TapePacked[] packed = new TapePacked[NB_TESTS];
+      for (int looptest = 0; looptest < NB_TESTS; looptest++) {
+        packed[looptest] = TapePacked.of(tapes[looptest]);
+      }
+      startTime = System.currentTimeMillis();
+      hotspot = 0;
+      for (int loopperf = 0; loopperf < nbTest; loopperf++) {
+        for (int looptest = 0; looptest < NB_TESTS; looptest++) {
+          packed[looptest].interpret(packed[looptest].size() - 1, valueBar, derivatives);
+          hotspot += derivatives.length;
+        }
+      }
+      endTime = System.currentTimeMillis();
+      System.out.println("  |--> " + 5 * nbTest + " SABR volatility (sweep only - packed tape, " 
+          + packed[0].memorySize() + " bytes): " + (endTime - startTime) + " ms ..." + hotspot);
+
       startTime = System.currentTimeMillis();
       hotspot = 0;
       for (int loopperf = 0; loopperf < nbTest; loopperf++) {
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.analysis;
+
+import java.util.concurrent.ForkJoinPool;
+
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.BlackFormula;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.tape.TapeAad;
+import marc.henrard.book.algorithmicdifferentiation.tape.TapeParallel;
+import marc.henrard.book.algorithmicdifferentiation.tape.TapeUtils;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+
+import org.testng.annotations.Test;
+
+/**
+ * Analyzes the parallel interpretation of a wide tape, in the atomic and in the reproducible modes.
+ * <p>
+ * The tape records a ladder of Black prices, summed pairwise. The overhead of the reproducible mode is the reduction
+ * of the adjoint buffers of the partitions for each value bar read and the allocation of the buffers.
+ */
+public class TapeParallelAnalysis {
+
+  static private final int NB_STRIKES = 20_000;
+
+  @SuppressWarnings("unused")
+  @Test(enabled = true)
+  public void derivativesPerformance() {
+
+    long startTime, endTime;
+    final int nbTest = 100;
+    int nbRep = 3;
+
+    TapeAad tape = new TapeAad();
+    DoubleAad sum = recordLadder(tape, NB_STRIKES);
+    tape.freeze();
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    TapeParallel atomic = new TapeParallel(tape, pool, TapeParallel.DEFAULT_GRAIN);
+    TapeParallel reproducible =
+        new TapeParallel(tape, pool, TapeParallel.DEFAULT_GRAIN, TapeParallel.DEFAULT_NB_PARTITIONS);
+    double[] workspace = new double[tape.size()];
+
+    for (int looprep = 0; looprep < nbRep; looprep++) { // Start repetitions
+      System.out.println("Tape parallel interpretation - performance review: run " + looprep + " - "
+          + tape.size() + " entries, parallelism " + pool.getParallelism());
+
+      startTime = System.currentTimeMillis();
+      for (int loopperf = 0; loopperf < nbTest; loopperf++) {
+        double[] derivatives = TapeUtils.interpret(tape, sum.tapeIndex(), workspace);
+      }
+      endTime = System.currentTimeMillis();
+      System.out.println("  |--> " + nbTest + " sequential: " + (endTime - startTime) + " ms");
+      // Performance note: sequential: 16-Oct-2026: On 1 core: 350 ms for 100x380,000 entries.
+
+      startTime = System.currentTimeMillis();
+      for (int loopperf = 0; loopperf < nbTest; loopperf++) {
+        double[] derivatives = atomic.interpret(sum.tapeIndex());
+      }
+      endTime = System.currentTimeMillis();
+      System.out.println("  |--> " + nbTest + " parallel atomic: " + (endTime - startTime) + " ms");
+      // Performance note: atomic: 16-Oct-2026: On 1 core: 1250 ms for 100x380,000 entries.
+
+      startTime = System.currentTimeMillis();
+      for (int loopperf = 0; loopperf < nbTest; loopperf++) {
+        double[] derivatives = reproducible.interpret(sum.tapeIndex());
+      }
+      endTime = System.currentTimeMillis();
+      System.out.println("  |--> " + nbTest + " parallel reproducible (" + TapeParallel.DEFAULT_NB_PARTITIONS
+          + " partitions): " + (endTime - startTime) + " ms");
+      // Performance note: reproducible: 16-Oct-2026: On 1 core: 4550 ms for 100x380,000 entries.
+    }
+  }
+
+  /* Records a ladder of Black prices, with a strike input for each price, and returns their pairwise sum. */
+  private static DoubleAad recordLadder(TapeAad tape, int nbStrikes) {
+    DoubleAad forward = DoubleAad.input(0.05d, tape);
+    DoubleAad volatility = DoubleAad.input(0.20d, tape);
+    DoubleAad numeraire = DoubleAad.input(0.95d, tape);
+    DoubleAad expiry = DoubleAad.input(2.5d, tape);
+    DoubleAad[] level = new DoubleAad[nbStrikes];
+    for (int loops = 0; loops < nbStrikes; loops++) {
+      DoubleAad strike = DoubleAad.input(0.02d + 0.000002d * loops, tape);
+      level[loops] = BlackFormula.price_Aad_Automatic(forward, volatility, numeraire, strike, expiry, true, tape);
+    }
+    for (int width = nbStrikes; width > 1; width = (width + 1) / 2) {
+      for (int loops = 0; loops < width / 2; loops++) {
+        level[loops] = MathAad.plus(level[2 * loops], level[2 * loops + 1], tape);
+      }
+      if (width % 2 == 1) {
+        level[width / 2] = level[width - 1];
+      }
+    }
+    return level[0];
+  }
+
+}
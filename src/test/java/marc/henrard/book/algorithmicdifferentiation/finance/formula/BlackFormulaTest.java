@@ -121,6 +121,40 @@ public class BlackFormulaTest {
     }
   }
   
+  /** Tests the derivatives of a weighted portfolio of options recorded on one tape. */
+  @Test
+  public void derivativesCorrectnessPortfolioTape() {
+    double[] strikes = {0.80, 0.90, 1.00, 1.10, 1.25 };
+    double[] notionals = {1.0E6, -2.5E5, 3.0E6, -1.0E6, 5.0E5 };
+    boolean[] callPut = {true, false, true, true, false };
+    int nbTrades = strikes.length;
+    TapeAad tape = new TapeAad();
+    DoubleAad forward = DoubleAad.input(DATA[0][0], tape);
+    DoubleAad volatility = DoubleAad.input(DATA[0][1], tape);
+    DoubleAad numeraire = DoubleAad.input(DATA[0][2], tape);
+    DoubleAad expiry = DoubleAad.input(DATA[0][4], tape);
+    DoubleAad[] prices = new DoubleAad[nbTrades];
+    for (int loopt = 0; loopt < nbTrades; loopt++) {
+      DoubleAad strike = DoubleAad.input(strikes[loopt], tape);
+      prices[loopt] = BlackFormula.price_Aad_Automatic(forward, volatility, numeraire, strike, expiry, 
+          callPut[loopt], tape);
+    }
+    int tapeSize = tape.size();
+    double[] d = TapeUtils.interpret(tape, prices, notionals);
+    assertEquals("BlackFormula AAD portfolio", tapeSize, tape.size());
+    double[] expected = new double[4 + nbTrades];
+    for (int loopt = 0; loopt < nbTrades; loopt++) {
+      double[] dTrade = BlackFormula.price_Aad_Optimized(DATA[0][0], DATA[0][1], DATA[0][2], strikes[loopt], 
+          DATA[0][4], callPut[loopt]).derivatives();
+      expected[0] += notionals[loopt] * dTrade[0];
+      expected[1] += notionals[loopt] * dTrade[1];
+      expected[2] += notionals[loopt] * dTrade[2];
+      expected[3] += notionals[loopt] * dTrade[4];
+      expected[4 + loopt] = notionals[loopt] * dTrade[3];
+    }
+    ArrayAsserts.assertArrayEquals("BlackFormula AAD portfolio", expected, d, TOLERANCE_DELTA * 1.0E6);
+  }
+  
 }
 
 /** Inner class to write Black call price as a Function. */
@@ -93,6 +93,59 @@ public class SabrVolatilityFormulaTest {
     }
   }
   
+  /** Tests the derivatives computed with a tape recording the local partial derivatives. */
+  @Test
+  public void derivativesCorrectnessTapePartials() {
+    for (int looptest = 0; looptest < NB_TESTS; looptest++) {
+      TapeAad tape = new TapeAad(256, true);
+      DoubleAad[] dataAad = new DoubleAad[7];
+      for (int loopi = 0; loopi < 7; loopi++) {
+        dataAad[loopi] = DoubleAad.input(DATA[looptest][loopi], tape);
+      }
+      DoubleDerivatives priceAad = SabrVolatilityFormula.volatility_Aad(DATA[looptest][0], DATA[looptest][1],
+          DATA[looptest][2], DATA[looptest][3], DATA[looptest][4], DATA[looptest][5], DATA[looptest][6]);
+      SabrVolatilityFormula.volatility_Aad_Automatic(
+          dataAad[0], dataAad[1], dataAad[2], dataAad[3], dataAad[4], dataAad[5], dataAad[6], tape);
+      double[] dAadAutomatic = TapeUtils.interpret(tape);
+      ArrayAsserts.assertArrayEquals("SabrVolatilityFormula AAD partials " + looptest,
+          priceAad.derivatives(), dAadAutomatic, TOLERANCE_DELTA);
+    }
+  }
+  
+  /** Tests the Jacobian of the volatilities for a strike grid computed with a single tape in vector mode. */
+  @Test
+  public void derivativesCorrectnessTapeVector() {
+    double[] strikes = {0.012, 0.017, 0.023, 0.028, 0.033, 0.038, 0.045, 0.055, 0.065, 0.085, 0.11 };
+    int nbStrikes = strikes.length;
+    for (int looptest = 0; looptest < NB_TESTS; looptest++) {
+      TapeAad tape = new TapeAad();
+      DoubleAad[] parametersAad = new DoubleAad[5]; // forward, alpha, beta, rho, nu
+      for (int loopi = 0; loopi < 5; loopi++) {
+        parametersAad[loopi] = DoubleAad.input(DATA[looptest][loopi], tape);
+      }
+      DoubleAad expiryAad = DoubleAad.input(DATA[looptest][6], tape);
+      int[] outputIndices = new int[nbStrikes];
+      for (int loopk = 0; loopk < nbStrikes; loopk++) {
+        DoubleAad strikeAad = DoubleAad.input(strikes[loopk], tape);
+        outputIndices[loopk] = SabrVolatilityFormula.volatility_Aad_Automatic(parametersAad[0], parametersAad[1], 
+            parametersAad[2], parametersAad[3], parametersAad[4], strikeAad, expiryAad, tape).tapeIndex();
+      }
+      tape.freeze();
+      double[][] jacobian = TapeUtils.interpretVector(tape, outputIndices, 4);
+      assertEquals("SabrVolatilityFormula AAD vector " + looptest, nbStrikes, jacobian.length);
+      for (int loopk = 0; loopk < nbStrikes; loopk++) {
+        DoubleDerivatives volAad = SabrVolatilityFormula.volatility_Aad(DATA[looptest][0], DATA[looptest][1],
+            DATA[looptest][2], DATA[looptest][3], DATA[looptest][4], strikes[loopk], DATA[looptest][6]);
+        double[] expected = new double[6 + nbStrikes];
+        System.arraycopy(volAad.derivatives(), 0, expected, 0, 5);
+        expected[5] = volAad.derivatives()[6];
+        expected[6 + loopk] = volAad.derivatives()[5];
+        ArrayAsserts.assertArrayEquals("SabrVolatilityFormula AAD vector " + looptest,
+            expected, jacobian[loopk], TOLERANCE_DELTA);
+      }
+    }
+  }
+  
 }
 
 /** Inner class to write SABR volatility as a Function1D. */
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertSame;
+
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests related to {@link TapeAadPool}.
+ */
+public class TapeAadPoolTest {
+
+  @Test
+  public void borrowRelease() {
+    TapeAadPool pool = new TapeAadPool(16);
+    TapeAad tape1 = pool.borrow();
+    TapeAad tape2 = pool.borrow();
+    assertNotSame("TapeAadPool: borrow", tape1, tape2);
+    assertEquals("TapeAadPool: borrow", 16, tape1.capacity());
+    MathAad.sin(DoubleAad.input(1.0d, tape1), tape1);
+    pool.release(tape1);
+    assertEquals("TapeAadPool: release", 1, pool.available());
+    assertEquals("TapeAadPool: release", 0, tape1.size());
+    assertSame("TapeAadPool: reuse", tape1, pool.borrow());
+    assertEquals("TapeAadPool: reuse", 0, pool.available());
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void releasedTwice() {
+    TapeAadPool pool = new TapeAadPool(16);
+    TapeAad tape = pool.borrow();
+    pool.release(tape);
+    pool.release(tape);
+  }
+
+  @Test
+  public void threadConfined() throws InterruptedException {
+    TapeAadPool pool = new TapeAadPool(16);
+    pool.release(pool.borrow());
+    int[] availableOther = new int[1];
+    Thread other = new Thread(() -> availableOther[0] = pool.available());
+    other.start();
+    other.join();
+    assertEquals("TapeAadPool: thread", 1, pool.available());
+    assertEquals("TapeAadPool: thread", 0, availableOther[0]);
+  }
+
+}
@@ -0,0 +1,481 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.SabrPriceFormula;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
+
+/**
+ * Tests related to {@link TapeAad}.
+ */
+public class TapeAadTest {
+
+  /* The tolerance for the comparison of operations on doubles. */
+  static private final double TOLERANCE_DOUBLE = 1.0E-10;
+
+  @Test
+  public void growth() {
+    TapeAad tape = new TapeAad(2);
+    int nbEntries = 5000;
+    DoubleAad x = DoubleAad.input(1.0d, tape);
+    DoubleAad sum = x;
+    for (int loopi = 1; loopi < nbEntries; loopi++) {
+      sum = MathAad.plus(sum, x, tape);
+    }
+    assertEquals("TapeAad: growth", nbEntries, tape.size());
+    assertTrue("TapeAad: growth", tape.capacity() >= nbEntries);
+    assertEquals("TapeAad: growth", nbEntries, sum.value(), TOLERANCE_DOUBLE);
+    double[] d = TapeUtils.interpret(tape);
+    assertEquals("TapeAad: growth", 1, d.length);
+    assertEquals("TapeAad: growth", nbEntries, d[0], TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void entryCopy() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(2.0d, tape);
+    MathAad.multipliedBy(x, 3.0d, tape);
+    TapeUtils.interpret(tape);
+    TapeEntryAad entry = tape.getEntry(1);
+    assertTrue("TapeAad: entry", entry.getOperationType() == OperationTypeAad.MULTIPLICATION1);
+    assertEquals("TapeAad: entry", 0, entry.getIndexArg1());
+    assertEquals("TapeAad: entry", -1, entry.getIndexArg2());
+    assertEquals("TapeAad: entry", 6.0d, entry.getValue(), TOLERANCE_DOUBLE);
+    assertEquals("TapeAad: entry", 3.0d, entry.getExtraValue(), TOLERANCE_DOUBLE);
+    assertEquals("TapeAad: entry", 1.0d, entry.getValueBar(), TOLERANCE_DOUBLE);
+    entry.addValueBar(1.0d);
+    assertEquals("TapeAad: entry", 1.0d, tape.getValueBar(1), TOLERANCE_DOUBLE);
+    assertEquals("TapeAad: entry", 3.0d, tape.getValueBar(0), TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void resetReuse() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(2.0d, tape);
+    MathAad.multipliedBy(x, x, tape);
+    TapeUtils.interpret(tape);
+    int capacity = tape.capacity();
+    tape.reset();
+    assertEquals("TapeAad: reset", 0, tape.size());
+    assertEquals("TapeAad: reset", capacity, tape.capacity());
+    DoubleAad y = DoubleAad.input(3.0d, tape);
+    MathAad.multipliedBy(y, y, tape);
+    double[] d = TapeUtils.interpret(tape);
+    assertEquals("TapeAad: reset", 6.0d, d[0], TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void rewind() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(2.0d, tape);
+    int mark = tape.mark();
+    MathAad.sin(x, tape);
+    MathAad.exp(x, tape);
+    tape.rewindTo(mark);
+    assertEquals("TapeAad: rewind", 1, tape.size());
+    MathAad.multipliedBy(x, 5.0d, tape);
+    double[] d = TapeUtils.interpret(tape);
+    assertEquals("TapeAad: rewind", 2, tape.size());
+    assertEquals("TapeAad: rewind", 5.0d, d[0], TOLERANCE_DOUBLE);
+  }
+
+  @Test(expectedExceptions = IndexOutOfBoundsException.class)
+  public void rewindAfterEnd() {
+    TapeAad tape = new TapeAad();
+    DoubleAad.input(2.0d, tape);
+    tape.rewindTo(2);
+  }
+
+  @Test
+  public void inputRegistry() {
+    TapeAad tape = new TapeAad(4);
+    DoubleAad x = DoubleAad.input(2.0d, tape);
+    MathAad.sin(x, tape);
+    int mark = tape.mark();
+    for (int loopi = 0; loopi < 40; loopi++) {
+      DoubleAad.input(loopi, tape);
+    }
+    assertEquals("TapeAad: inputs", 41, tape.getNbInputs());
+    assertEquals("TapeAad: inputs", 0, tape.getInputIndex(0));
+    assertEquals("TapeAad: inputs", 2, tape.getInputIndex(1));
+    assertEquals("TapeAad: inputs", 41, tape.getInputIndex(40));
+    tape.rewindTo(mark);
+    assertEquals("TapeAad: inputs", 1, tape.getNbInputs());
+    DoubleAad y = DoubleAad.input(3.0d, tape);
+    MathAad.multipliedBy(x, y, tape);
+    double[] derivatives = new double[2];
+    TapeUtils.interpret(tape, tape.size() - 1, new double[tape.size()], derivatives);
+    assertEquals("TapeAad: inputs", 3.0d, derivatives[0], TOLERANCE_DOUBLE);
+    assertEquals("TapeAad: inputs", 2.0d, derivatives[1], TOLERANCE_DOUBLE);
+    tape.reset();
+    assertEquals("TapeAad: inputs", 0, tape.getNbInputs());
+  }
+
+  @Test(expectedExceptions = IndexOutOfBoundsException.class)
+  public void entryOutOfBounds() {
+    TapeAad tape = new TapeAad();
+    DoubleAad.input(2.0d, tape);
+    tape.getEntry(1);
+  }
+
+  @Test
+  public void manualEntry() {
+    for (boolean partials : new boolean[] {false, true}) {
+      TapeAad tape = new TapeAad(16, partials);
+      DoubleAad x = DoubleAad.input(2.0d, tape);
+      DoubleAad y = DoubleAad.input(3.0d, tape);
+      DoubleAad z = DoubleAad.input(5.0d, tape);
+      DoubleAad xy = MathAad.multipliedBy(x, y, tape);
+      // f(x, y, z) = x * y * z, manual derivatives with respect to xy and z
+      int index = tape.addManualEntry(30.0d, new int[] {xy.tapeIndex(), z.tapeIndex()}, new double[] {5.0d, 6.0d});
+      assertEquals("TapeAad: manual entry", 5, tape.size());
+      assertEquals("TapeAad: manual entry", 2, tape.getManualNbArgs(index));
+      assertEquals("TapeAad: manual entry", z.tapeIndex(), tape.getManualIndexArg(index, 1));
+      assertEquals("TapeAad: manual entry", 6.0d, tape.getManualDerivative(index, 1), TOLERANCE_DOUBLE);
+      double[] expected = {15.0d, 10.0d, 6.0d};
+      double[] d = TapeUtils.interpret(tape, index, new double[tape.size()]);
+      ArrayAsserts.assertArrayEquals("TapeAad: manual entry", expected, d, TOLERANCE_DOUBLE);
+      double[][] jacobian = TapeUtils.interpretVector(tape, new int[] {index, xy.tapeIndex()});
+      ArrayAsserts.assertArrayEquals("TapeAad: manual entry", expected, jacobian[0], TOLERANCE_DOUBLE);
+      ArrayAsserts.assertArrayEquals("TapeAad: manual entry", new double[] {3.0d, 2.0d, 0.0d}, jacobian[1],
+          TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test
+  public void manualEntryRewind() {
+    TapeAad tape = new TapeAad(4);
+    DoubleAad x = DoubleAad.input(2.0d, tape);
+    int mark = tape.mark();
+    for (int loopi = 0; loopi < 100; loopi++) {
+      tape.addManualEntry(1.0d, new int[] {0, 0}, new double[] {1.0d, 1.0d});
+    }
+    tape.rewindTo(mark);
+    int index = tape.addManualEntry(8.0d, new int[] {x.tapeIndex()}, new double[] {12.0d});
+    assertEquals("TapeAad: manual entry", 0, tape.getIndexArg1(index)); // Offset in the side arrays
+    double[] d = TapeUtils.interpret(tape);
+    assertEquals("TapeAad: manual entry", 12.0d, d[0], TOLERANCE_DOUBLE);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void manualEntryWrongLength() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(2.0d, tape);
+    tape.addManualEntry(1.0d, new int[] {x.tapeIndex()}, new double[] {1.0d, 2.0d});
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void manualEntryPrimitive() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(2.0d, tape);
+    tape.addEntry(OperationTypeAad.MANUAL_NARY, x.tapeIndex(), 1, 1.0d, 0.0d);
+  }
+
+  @Test
+  public void scope() {
+    for (boolean partials : new boolean[] {false, true}) {
+      TapeAad tape = new TapeAad(16, partials);
+      DoubleAad x = DoubleAad.input(0.5d, tape);
+      DoubleAad y = DoubleAad.input(2.0d, tape);
+      DoubleAad z = DoubleAad.input(3.0d, tape);
+      tape.openScope();
+      DoubleAad[] output = TapeUtilsTest.recordFunction(tape, x, y);
+      DoubleAad f = tape.closeScope(output[0]);
+      assertEquals("TapeAad: scope", 4, tape.size());
+      assertEquals("TapeAad: scope", 0, tape.getNbScopes());
+      assertEquals("TapeAad: scope", output[0].value(), f.value(), TOLERANCE_DOUBLE);
+      assertEquals("TapeAad: scope", 2, tape.getManualNbArgs(f.tapeIndex()));
+      DoubleAad g = MathAad.multipliedBy(f, z, tape);
+      double[] d = TapeUtils.interpret(tape, g.tapeIndex(), new double[tape.size()]);
+      double[] derivatives = TapeUtilsTest.functionDerivatives(0.5d, 2.0d);
+      assertEquals("TapeAad: scope", 3.0d * derivatives[0], d[0], TOLERANCE_DOUBLE);
+      assertEquals("TapeAad: scope", 3.0d * derivatives[1], d[1], TOLERANCE_DOUBLE);
+      assertEquals("TapeAad: scope", f.value(), d[2], TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test
+  public void scopeNested() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = DoubleAad.input(2.0d, tape);
+    tape.openScope();
+    DoubleAad a = MathAad.multipliedBy(x, x, tape); // x^2
+    tape.openScope();
+    DoubleAad b = tape.closeScope(MathAad.exp(MathAad.multipliedBy(a, y, tape), tape)); // exp(x^2 y)
+    assertEquals("TapeAad: scope", 1, tape.getNbScopes());
+    DoubleAad c = tape.closeScope(MathAad.plus(MathAad.multipliedBy(b, 2.0d, tape), a, tape));
+    assertEquals("TapeAad: scope", 3, tape.size());
+    double[] d = TapeUtils.interpret(tape);
+    assertEquals("TapeAad: scope", 2.0d * b.value() * 2.0d * 0.5d * 2.0d + 2.0d * 0.5d, d[0], TOLERANCE_DOUBLE);
+    assertEquals("TapeAad: scope", 2.0d * b.value() * 0.25d, d[1], TOLERANCE_DOUBLE);
+    assertEquals("TapeAad: scope", 2.0d * b.value() + 0.25d, c.value(), TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void scopeSabr() {
+    double[] data = {0.05, 0.05, 0.30, -0.25, 0.60, 0.95, 0.03, 5.50};
+    for (boolean isCall : new boolean[] {true, false}) {
+      TapeAad tape = new TapeAad();
+      TapeAad tapeScope = new TapeAad();
+      DoubleAad[] dataAad = new DoubleAad[8];
+      DoubleAad[] dataScope = new DoubleAad[8];
+      for (int loopi = 0; loopi < 8; loopi++) {
+        dataAad[loopi] = DoubleAad.input(data[loopi], tape);
+        dataScope[loopi] = DoubleAad.input(data[loopi], tapeScope);
+      }
+      DoubleAad price = SabrPriceFormula.price_Aad_Automatic(dataAad[0], dataAad[1], dataAad[2], dataAad[3],
+          dataAad[4], dataAad[5], dataAad[6], dataAad[7], isCall, tape);
+      DoubleAad priceScope = SabrPriceFormula.price_Aad_Automatic_Scope(dataScope[0], dataScope[1], dataScope[2],
+          dataScope[3], dataScope[4], dataScope[5], dataScope[6], dataScope[7], isCall, tapeScope);
+      assertEquals("TapeAad: scope", price.value(), priceScope.value(), TOLERANCE_DOUBLE);
+      assertTrue("TapeAad: scope", tapeScope.size() < tape.size() / 2);
+      double[] expected = TapeUtils.interpret(tape);
+      double[] d = TapeUtils.interpret(tapeScope);
+      ArrayAsserts.assertArrayEquals("TapeAad: scope", expected, d, TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void scopeInput() {
+    TapeAad tape = new TapeAad();
+    tape.openScope();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    tape.closeScope(MathAad.sin(x, tape));
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void scopeNotOpen() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    tape.closeScope(MathAad.sin(x, tape));
+  }
+
+  @Test
+  public void offHeapSabr() {
+    double[] data = {0.05, 0.05, 0.30, -0.25, 0.60, 0.95, 0.03, 5.50};
+    for (boolean partials : new boolean[] {false, true}) {
+      TapeAad tape = new TapeAad();
+      TapeAad tapeOffHeap = TapeAad.offHeap(16, partials);
+      DoubleAad[] dataAad = new DoubleAad[8];
+      DoubleAad[] dataOffHeap = new DoubleAad[8];
+      for (int loopi = 0; loopi < 8; loopi++) {
+        dataAad[loopi] = DoubleAad.input(data[loopi], tape);
+        dataOffHeap[loopi] = DoubleAad.input(data[loopi], tapeOffHeap);
+      }
+      DoubleAad price = SabrPriceFormula.price_Aad_Automatic(dataAad[0], dataAad[1], dataAad[2], dataAad[3],
+          dataAad[4], dataAad[5], dataAad[6], dataAad[7], true, tape);
+      DoubleAad priceOffHeap = SabrPriceFormula.price_Aad_Automatic_Scope(dataOffHeap[0], dataOffHeap[1], 
+          dataOffHeap[2], dataOffHeap[3], dataOffHeap[4], dataOffHeap[5], dataOffHeap[6], dataOffHeap[7], 
+          true, tapeOffHeap);
+      assertEquals("TapeAad: off-heap", price.value(), priceOffHeap.value(), TOLERANCE_DOUBLE);
+      double[] expected = TapeUtils.interpret(tape);
+      tapeOffHeap.freeze();
+      double[] d = TapeUtils.interpret(tapeOffHeap, new double[tapeOffHeap.size()]);
+      ArrayAsserts.assertArrayEquals("TapeAad: off-heap", expected, d, TOLERANCE_DOUBLE);
+      double[][] jacobian = TapeUtils.interpretVector(tapeOffHeap, new int[] {priceOffHeap.tapeIndex()});
+      ArrayAsserts.assertArrayEquals("TapeAad: off-heap", expected, jacobian[0], TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test
+  public void offHeapGrowth() {
+    TapeAad tape = TapeAad.offHeap(2, false);
+    int nbEntries = 3 * BlockTapeStorage.BLOCK_SIZE;
+    DoubleAad x = DoubleAad.input(1.0d, tape);
+    DoubleAad sum = x;
+    for (int loopi = 1; loopi < nbEntries; loopi++) {
+      sum = MathAad.plus(sum, x, tape);
+    }
+    assertEquals("TapeAad: off-heap", nbEntries, tape.size());
+    assertTrue("TapeAad: off-heap", tape.capacity() >= nbEntries);
+    assertEquals("TapeAad: off-heap", nbEntries, tape.getValue(nbEntries - 1), TOLERANCE_DOUBLE);
+    double[] d = TapeUtils.interpret(tape);
+    assertEquals("TapeAad: off-heap", nbEntries, d[0], TOLERANCE_DOUBLE);
+    int mark = 2 * BlockTapeStorage.BLOCK_SIZE;
+    tape.rewindTo(mark);
+    DoubleAad y = MathAad.multipliedBy(new DoubleAad(tape.getValue(mark - 1), mark - 1), 2.0d, tape);
+    assertEquals("TapeAad: off-heap", 2.0d * mark, y.value(), TOLERANCE_DOUBLE);
+    assertEquals("TapeAad: off-heap", 0.0d, tape.getValueBar(y.tapeIndex()), TOLERANCE_DOUBLE);
+    d = TapeUtils.interpret(tape, new double[tape.size()]);
+    assertEquals("TapeAad: off-heap", 2.0d * mark, d[0], TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void spilled() throws IOException {
+    File directory = Files.createTempDirectory("tape").toFile();
+    for (boolean partials : new boolean[] {false, true}) {
+      TapeAad tape = new TapeAad();
+      TapeAad tapeSpilled = TapeAad.spilled(directory, 2, partials);
+      DoubleAad output = recordLong(tape);
+      DoubleAad outputSpilled = recordLong(tapeSpilled);
+      assertTrue("TapeAad: spilled", tapeSpilled.size() > 4 * BlockTapeStorage.BLOCK_SIZE);
+      assertEquals("TapeAad: spilled", output.value(), outputSpilled.value(), TOLERANCE_DOUBLE);
+      assertEquals("TapeAad: spilled", tape.getValue(10), tapeSpilled.getValue(10), TOLERANCE_DOUBLE);
+      double[] expected = TapeUtils.interpret(tape);
+      tapeSpilled.freeze();
+      double[] valueBar = new double[tapeSpilled.size()];
+      ArrayAsserts.assertArrayEquals("TapeAad: spilled", expected, TapeUtils.interpret(tapeSpilled, valueBar),
+          TOLERANCE_DOUBLE);
+      ArrayAsserts.assertArrayEquals("TapeAad: spilled", expected, TapeUtils.interpret(tapeSpilled, valueBar),
+          TOLERANCE_DOUBLE);
+      tapeSpilled.close();
+      assertEquals("TapeAad: spilled", 0, directory.list().length);
+    }
+    directory.delete();
+  }
+
+  /* Records a computation with a long tape, using the two inputs throughout the tape. */
+  private static DoubleAad recordLong(TapeAad tape) {
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = DoubleAad.input(2.0d, tape);
+    DoubleAad s = x;
+    for (int loopi = 0; loopi < 100_000; loopi++) {
+      s = MathAad.plus(MathAad.multipliedBy(s, 0.99999d, tape), 
+          MathAad.multipliedBy(MathAad.sin(x, tape), MathAad.multipliedBy(y, 1.0E-6d, tape), tape), tape);
+    }
+    return s;
+  }
+
+  @Test
+  public void releaseValues() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = DoubleAad.input(2.0d, tape);
+    DoubleAad sum = MathAad.multipliedBy(x, 0.0d, tape);
+    for (int loopi = 0; loopi < 200; loopi++) { // Aggregation, mostly additions
+      sum = MathAad.plus(sum, MathAad.plus(MathAad.multipliedBy(x, loopi, tape), y, tape), tape);
+    }
+    DoubleAad output = MathAad.plus(MathAad.multipliedBy(sum, y, tape), MathAad.exp(x, tape), tape);
+    tape.freeze();
+    double[] valueBar = new double[tape.size()];
+    double[] expected = TapeUtils.interpret(tape, output.tapeIndex(), valueBar);
+    double[][] expectedJacobian = TapeUtils.interpretVector(tape, new int[] {output.tapeIndex(), sum.tapeIndex()});
+    tape.releaseValues();
+    int nbRetained = 0;
+    for (int loope = 0; loope < tape.size(); loope++) {
+      nbRetained += tape.isValueRetained(loope) ? 1 : 0;
+      assertEquals("TapeAad: release values", tape.isValueRead(loope), tape.isValueRetained(loope));
+    }
+    assertEquals("TapeAad: release values", 3, nbRetained); // sum and y for the multiplication, exp
+    assertEquals("TapeAad: release values", output.value() - Math.exp(0.5d), 
+        tape.getValue(sum.tapeIndex()) * 2.0d, TOLERANCE_DOUBLE);
+    ArrayAsserts.assertArrayEquals("TapeAad: release values", expected,
+        TapeUtils.interpret(tape, output.tapeIndex(), valueBar), TOLERANCE_DOUBLE);
+    double[][] jacobian = TapeUtils.interpretVector(tape, new int[] {output.tapeIndex(), sum.tapeIndex()});
+    for (int loopo = 0; loopo < 2; loopo++) {
+      ArrayAsserts.assertArrayEquals("TapeAad: release values", expectedJacobian[loopo], jacobian[loopo],
+          TOLERANCE_DOUBLE);
+    }
+    tape.reset();
+    DoubleAad z = DoubleAad.input(3.0d, tape);
+    MathAad.plus(z, 1.0d, tape);
+    assertEquals("TapeAad: release values", 4.0d, tape.getValue(1), TOLERANCE_DOUBLE);
+    assertTrue("TapeAad: release values", !tape.isValueRead(1));
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void releasedValue() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = MathAad.plus(x, 1.0d, tape);
+    tape.freeze();
+    tape.releaseValues();
+    tape.getValue(y.tapeIndex());
+  }
+
+  @Test
+  public void releaseValuesRewind() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = DoubleAad.input(2.0d, tape);
+    DoubleAad w = MathAad.sin(y, tape);
+    int mark = tape.mark();
+    MathAad.multipliedBy(x, y, tape);
+    tape.rewindTo(mark);
+    assertTrue("TapeAad: release values", !tape.isValueRead(x.tapeIndex()));
+    assertTrue("TapeAad: release values", tape.isValueRead(y.tapeIndex())); // Still read by the sine
+    tape.openScope();
+    DoubleAad s = MathAad.exp(MathAad.multipliedBy(x, w, tape), tape);
+    s = tape.closeScope(s);
+    MathAad.plus(s, 1.0d, tape);
+    tape.freeze();
+    tape.releaseValues();
+    assertTrue("TapeAad: release values", !tape.isValueRetained(x.tapeIndex()));
+    assertTrue("TapeAad: release values", !tape.isValueRetained(w.tapeIndex()));
+    assertTrue("TapeAad: release values", tape.isValueRetained(y.tapeIndex()));
+  }
+
+  @Test
+  public void releaseValuesPartials() {
+    TapeAad tape = new TapeAad(16, true);
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = DoubleAad.input(2.0d, tape);
+    DoubleAad[] output = TapeUtilsTest.recordFunction(tape, x, y);
+    tape.freeze();
+    tape.releaseValues();
+    for (int loope = 0; loope < tape.size(); loope++) {
+      assertTrue("TapeAad: release values", !tape.isValueRetained(loope));
+    }
+    ArrayAsserts.assertArrayEquals("TapeAad: release values", TapeUtilsTest.functionDerivatives(0.5d, 2.0d),
+        TapeUtils.interpret(tape, output[0].tapeIndex(), new double[tape.size()]), TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void partialsGrowth() {
+    TapeAad tape = new TapeAad(1, true);
+    int nbEntries = 200;
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad s = x;
+    for (int loopi = 0; loopi < nbEntries; loopi++) {
+      s = MathAad.sin(s, tape);
+    }
+    tape.rewindTo(1);
+    assertEquals("TapeAad: partials growth", 1, tape.size());
+    tape.openScope();
+    s = x;
+    double value = 0.5d;
+    double derivative = 1.0d;
+    for (int loopi = 0; loopi < nbEntries; loopi++) {
+      derivative *= Math.cos(value);
+      value = Math.sin(value);
+      s = MathAad.sin(s, tape);
+    }
+    s = tape.closeScope(s);
+    assertEquals("TapeAad: partials growth", 2, tape.size());
+    for (int loopi = 0; loopi < nbEntries; loopi++) {
+      s = MathAad.sin(s, tape);
+    }
+    for (int loope = 0; loope < tape.size(); loope++) {
+      assertTrue("TapeAad: partials growth", !tape.isValueRead(loope));
+    }
+    for (int loopi = 0; loopi < nbEntries; loopi++) {
+      derivative *= Math.cos(value);
+      value = Math.sin(value);
+    }
+    assertEquals("TapeAad: partials growth", value, s.value(), TOLERANCE_DOUBLE);
+    double[] d = TapeUtils.interpret(tape, s.tapeIndex(), new double[tape.size()]);
+    assertEquals("TapeAad: partials growth", derivative, d[0], TOLERANCE_DOUBLE);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void releaseValuesNotFrozen() {
+    TapeAad tape = new TapeAad();
+    DoubleAad.input(0.5d, tape);
+    tape.releaseValues();
+  }
+
+}
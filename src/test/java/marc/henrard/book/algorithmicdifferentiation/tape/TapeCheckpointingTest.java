@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleDerivatives;
+
+import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
+
+/**
+ * Tests related to {@link TapeCheckpointing}.
+ */
+public class TapeCheckpointingTest {
+
+  /* The tolerance for the comparison of operations on doubles. */
+  static private final double TOLERANCE_DOUBLE = 1.0E-10;
+  static private final int NB_STEPS = 100;
+  static private final double DT = 0.01d;
+  static private final double[] INITIAL_STATE = {1.0d, 0.0d};
+  // stiffness, damping
+  static private final double[] PARAMETERS = {4.0d, 0.3d};
+  static private final double[] WEIGHTS = {1.0d, 0.5d};
+  /* Explicit Euler step of a damped oscillator with a time-dependent forcing. */
+  static private final TapeCheckpointing.Step OSCILLATOR = (i, s, p, tape) -> {
+    DoubleAad force = MathAad.multipliedBy(MathAad.sin(MathAad.multipliedBy(s[0], p[0], tape), tape), 0.1d * i, tape);
+    DoubleAad acceleration = MathAad.minus(force,
+        MathAad.plus(MathAad.multipliedBy(p[0], s[0], tape), MathAad.multipliedBy(p[1], s[1], tape), tape), tape);
+    return new DoubleAad[] {
+      MathAad.plus(s[0], MathAad.multipliedBy(s[1], DT, tape), tape),
+      MathAad.plus(s[1], MathAad.multipliedBy(acceleration, DT, tape), tape) };
+  };
+
+  @Test
+  public void checkpointingVersusFullTape() {
+    TapeAad tape = new TapeAad();
+    DoubleAad[] state = {DoubleAad.input(INITIAL_STATE[0], tape), DoubleAad.input(INITIAL_STATE[1], tape)};
+    DoubleAad[] parameters = {DoubleAad.input(PARAMETERS[0], tape), DoubleAad.input(PARAMETERS[1], tape)};
+    for (int loops = 0; loops < NB_STEPS; loops++) {
+      state = OSCILLATOR.apply(loops, state, parameters, tape);
+    }
+    double expectedValue = WEIGHTS[0] * state[0].value() + WEIGHTS[1] * state[1].value();
+    double[] expectedDerivatives = TapeUtils.interpret(tape, state, WEIGHTS);
+    int[] intervals = {1, 7, 10, 100, 200};
+    for (int interval : intervals) {
+      TapeCheckpointing checkpointing = new TapeCheckpointing(OSCILLATOR, NB_STEPS, interval);
+      DoubleDerivatives computed = checkpointing.valueAndDerivatives(INITIAL_STATE, PARAMETERS, WEIGHTS);
+      assertEquals("TapeCheckpointing: value", expectedValue, computed.value(), TOLERANCE_DOUBLE);
+      ArrayAsserts.assertArrayEquals("TapeCheckpointing: derivatives",
+          expectedDerivatives, computed.derivatives(), TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test
+  public void boundedTape() {
+    TapeCheckpointing full = new TapeCheckpointing(OSCILLATOR, NB_STEPS, NB_STEPS);
+    TapeCheckpointing checkpointing = new TapeCheckpointing(OSCILLATOR, NB_STEPS);
+    assertEquals("TapeCheckpointing: default interval", 10, checkpointing.getInterval());
+    full.valueAndDerivatives(INITIAL_STATE, PARAMETERS, WEIGHTS);
+    checkpointing.valueAndDerivatives(INITIAL_STATE, PARAMETERS, WEIGHTS);
+    assertTrue("TapeCheckpointing: bounded", checkpointing.getMaxTapeSize() * 5 < full.getMaxTapeSize());
+  }
+
+  @Test
+  public void noStep() {
+    TapeCheckpointing checkpointing = new TapeCheckpointing(OSCILLATOR, 0);
+    DoubleDerivatives computed = checkpointing.valueAndDerivatives(INITIAL_STATE, PARAMETERS, WEIGHTS);
+    assertEquals("TapeCheckpointing: no step", WEIGHTS[0] * INITIAL_STATE[0], computed.value(), TOLERANCE_DOUBLE);
+    ArrayAsserts.assertArrayEquals("TapeCheckpointing: no step",
+        new double[] {WEIGHTS[0], WEIGHTS[1], 0.0d, 0.0d}, computed.derivatives(), TOLERANCE_DOUBLE);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void wrongWeights() {
+    new TapeCheckpointing(OSCILLATOR, NB_STEPS).valueAndDerivatives(INITIAL_STATE, PARAMETERS, new double[1]);
+  }
+
+}
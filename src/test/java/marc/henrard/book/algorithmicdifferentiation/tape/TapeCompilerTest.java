@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.BlackFormula;
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.SabrVolatilityFormula;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+
+import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
+
+/**
+ * Tests related to {@link TapeCompiler}.
+ */
+public class TapeCompilerTest {
+
+  /* The tolerance for the comparison of operations on doubles. */
+  static private final double TOLERANCE_DOUBLE = 1.0E-10;
+  // forward, alpha, beta, rho, nu, strike, expiry
+  static private final double[][] SABR_DATA = {
+    {0.02, 0.05, 0.50, -0.25, 0.50, 0.03, 1.00},
+    {0.05, 0.10, 0.40, 0.00, 0.40, 0.04, 2.00},
+    {0.10, 0.02, 0.60, 0.25, 0.30, 0.20, 0.10},
+    {0.05, 0.05, 0.30, -0.25, 0.60, 0.03, 5.50},
+    {0.06, 0.05, 0.30, -0.25, 0.60, 0.03, 10.00} };
+
+  @Test
+  public void compileFunction() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = DoubleAad.input(2.0d, tape);
+    DoubleAad[] output = TapeUtilsTest.recordFunction(tape, x, y);
+    MathAad.cos(output[0], tape); // After the output, not compiled
+    tape.freeze();
+    TapeKernel kernel = TapeCompiler.compile(tape, output[0].tapeIndex());
+    double[] gradient = new double[2];
+    double[][] inputs = { {0.5d, 2.0d}, {1.5d, 0.75d}, {-0.25d, 3.0d} };
+    for (double[] input : inputs) {
+      double value = kernel.valueAndGradient(input, gradient);
+      assertEquals("TapeCompiler: function", Math.sin(input[0]) * Math.exp(input[1]) + input[0] / input[1],
+          value, TOLERANCE_DOUBLE);
+      ArrayAsserts.assertArrayEquals("TapeCompiler: function",
+          TapeUtilsTest.functionDerivatives(input[0], input[1]), gradient, TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test
+  public void compileBlack() {
+    double[] data = {0.05, 0.20, 0.95, 0.045, 2.5};
+    double[] shifted = {0.055, 0.25, 0.90, 0.04, 3.0};
+    for (boolean isCall : new boolean[] {true, false}) {
+      TapeAad tape = new TapeAad();
+      DoubleAad[] dataAad = new DoubleAad[5];
+      for (int loopi = 0; loopi < 5; loopi++) {
+        dataAad[loopi] = DoubleAad.input(data[loopi], tape);
+      }
+      DoubleAad price = BlackFormula.price_Aad_Automatic(dataAad[0], dataAad[1], dataAad[2], dataAad[3],
+          dataAad[4], isCall, tape);
+      tape.freeze();
+      TapeKernel kernel = TapeCompiler.compile(tape, price.tapeIndex());
+      double[] gradient = new double[5];
+      double value = kernel.valueAndGradient(shifted, gradient);
+      double[] expected = new double[5];
+      double[] values = new double[tape.size()];
+      TapeReplay.replay(tape, price.tapeIndex(), shifted, values, new double[tape.size()], expected);
+      assertEquals("TapeCompiler: Black", values[price.tapeIndex()], value, TOLERANCE_DOUBLE);
+      ArrayAsserts.assertArrayEquals("TapeCompiler: Black", expected, gradient, TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test
+  public void compileSabr() {
+    TapeAad tape = recordSabr(SABR_DATA[0]);
+    TapeKernel kernel = TapeCompiler.compile(tape, tape.size() - 1);
+    double[] gradient = new double[7];
+    for (double[] data : SABR_DATA) {
+      TapeAad tapeExpected = recordSabr(data);
+      double[] expected = TapeUtils.interpret(tapeExpected, tapeExpected.size() - 1,
+          new double[tapeExpected.size()]);
+      double value = kernel.valueAndGradient(data, gradient);
+      assertEquals("TapeCompiler: SABR", tapeExpected.getValue(tapeExpected.size() - 1), value, TOLERANCE_DOUBLE);
+      ArrayAsserts.assertArrayEquals("TapeCompiler: SABR", expected, gradient, TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void compileSabrBranch() {
+    TapeAad tape = recordSabr(SABR_DATA[3]);
+    TapeKernel kernel = TapeCompiler.compile(tape, tape.size() - 1);
+    double[] atm = SABR_DATA[3].clone();
+    atm[5] = atm[0];
+    kernel.valueAndGradient(atm, new double[7]);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void compileManual() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    int index = tape.addManualEntry(1.0d, new int[] {x.tapeIndex()}, new double[] {2.0d});
+    tape.freeze();
+    TapeCompiler.compile(tape, index);
+  }
+
+  private static TapeAad recordSabr(double[] data) {
+    TapeAad tape = new TapeAad();
+    DoubleAad[] dataAad = new DoubleAad[7];
+    for (int loopi = 0; loopi < 7; loopi++) {
+      dataAad[loopi] = DoubleAad.input(data[loopi], tape);
+    }
+    SabrVolatilityFormula.volatility_Aad_Automatic(dataAad[0], dataAad[1], dataAad[2], dataAad[3], dataAad[4],
+        dataAad[5], dataAad[6], tape);
+    tape.freeze();
+    return tape;
+  }
+
+}
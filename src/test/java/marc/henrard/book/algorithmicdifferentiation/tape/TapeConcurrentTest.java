@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.BlackFormula;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
+
+/**
+ * Tests related to {@link TapeConcurrent}.
+ */
+public class TapeConcurrentTest {
+
+  /* The tolerance for the comparison of operations on doubles. */
+  static private final double TOLERANCE_DOUBLE = 1.0E-10;
+  static private final int NB_COMPONENTS = 40;
+  // forward, numeraire, expiry
+  static private final double[] MARKET = {0.05, 0.95, 2.5};
+
+  @Test
+  public void basketVersusSequential() throws InterruptedException, ExecutionException {
+    for (boolean partials : new boolean[] {false, true}) {
+      TapeAad sequential = new TapeAad(16, partials);
+      DoubleAad[] inputs = inputs(sequential);
+      DoubleAad expected = null;
+      for (int loopc = 0; loopc < NB_COMPONENTS; loopc++) {
+        DoubleAad price = component(loopc, inputs, sequential);
+        expected = (expected == null) ? price : MathAad.plus(expected, price, sequential);
+      }
+      sequential.freeze();
+      double[] expectedDerivatives =
+          TapeUtils.interpret(sequential, expected.tapeIndex(), new double[sequential.size()]);
+      TapeConcurrent concurrent = new TapeConcurrent(16, partials);
+      DoubleAad[] inputsConcurrent = inputs(concurrent.writer());
+      DoubleAad[] prices = new ForkJoinPool(4).submit(() -> IntStream.range(0, NB_COMPONENTS).parallel()
+          .mapToObj(c -> component(c, inputsConcurrent, concurrent.writer()))
+          .toArray(DoubleAad[]::new)).get();
+      DoubleAad computed = prices[0];
+      for (int loopc = 1; loopc < NB_COMPONENTS; loopc++) {
+        computed = MathAad.plus(computed, prices[loopc], concurrent.writer());
+      }
+      TapeAad tape = concurrent.freeze();
+      assertTrue("TapeConcurrent: frozen", tape.isFrozen());
+      assertEquals("TapeConcurrent: size", concurrent.getNbBlocks() * 16, tape.size());
+      assertEquals("TapeConcurrent: inputs", inputs.length, tape.getNbInputs());
+      assertEquals("TapeConcurrent: value", expected.value(), computed.value(), TOLERANCE_DOUBLE);
+      ArrayAsserts.assertArrayEquals("TapeConcurrent: derivatives", expectedDerivatives,
+          TapeUtils.interpret(tape, computed.tapeIndex(), new double[tape.size()]), TOLERANCE_DOUBLE);
+      ArrayAsserts.assertArrayEquals("TapeConcurrent: derivatives", expectedDerivatives,
+          TapeUtils.interpret(tape, new DoubleAad[] {computed}, new double[] {1.0d}), TOLERANCE_DOUBLE);
+      assertArgumentsBeforeResults(tape);
+    }
+  }
+
+  @Test
+  public void argumentInLaterBlock() throws InterruptedException {
+    TapeConcurrent concurrent = new TapeConcurrent(16, false);
+    DoubleAad x = DoubleAad.input(0.5d, concurrent.writer()); // Block 0
+    DoubleAad[] y = new DoubleAad[1];
+    Thread other = new Thread(() -> y[0] = DoubleAad.input(2.0d, concurrent.writer())); // Block 1
+    other.start();
+    other.join();
+    DoubleAad product = MathAad.multipliedBy(MathAad.sin(x, concurrent.writer()), y[0], concurrent.writer());
+    assertEquals("TapeConcurrent: blocks", 3, concurrent.getNbBlocks());
+    assertEquals("TapeConcurrent: writers", 2, concurrent.getNbWriters());
+    assertEquals("TapeConcurrent: new block", 32, product.tapeIndex());
+    TapeAad tape = concurrent.freeze();
+    assertEquals("TapeConcurrent: padding", OperationTypeAad.NOP, tape.getOperationType(2));
+    assertEquals("TapeConcurrent: padding", OperationTypeAad.NOP, tape.getOperationType(17));
+    assertArgumentsBeforeResults(tape);
+    ArrayAsserts.assertArrayEquals("TapeConcurrent: derivatives",
+        new double[] {Math.cos(0.5d) * 2.0d, Math.sin(0.5d)},
+        TapeUtils.interpret(tape, product.tapeIndex(), new double[tape.size()]), TOLERANCE_DOUBLE);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void noRewind() {
+    TapeConcurrent concurrent = new TapeConcurrent();
+    TapeAad writer = concurrent.writer();
+    DoubleAad.input(0.5d, writer);
+    writer.rewindTo(0);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void writerAfterFreeze() {
+    TapeConcurrent concurrent = new TapeConcurrent();
+    DoubleAad.input(0.5d, concurrent.writer());
+    concurrent.freeze();
+    concurrent.writer();
+  }
+
+  @Test
+  public void writersReleasedByThreads() throws InterruptedException {
+    WeakReference<TapeAad> writer = recordAndFreeze();
+    for (int loopgc = 0; loopgc < 20 && writer.get() != null; loopgc++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertTrue("TapeConcurrent: writer released", writer.get() == null);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void wrongBlockSize() {
+    new TapeConcurrent(100, false);
+  }
+
+  /* Records an input with the writer of the current thread and freezes the tape; returns the writer, weakly. */
+  private static WeakReference<TapeAad> recordAndFreeze() {
+    TapeConcurrent concurrent = new TapeConcurrent();
+    TapeAad writer = concurrent.writer();
+    DoubleAad.input(0.5d, writer);
+    concurrent.freeze();
+    return new WeakReference<>(writer);
+  }
+
+  /* Records the market data and the volatility and strike of each component. */
+  private static DoubleAad[] inputs(TapeAad tape) {
+    DoubleAad[] inputs = new DoubleAad[3 + 2 * NB_COMPONENTS];
+    for (int loopi = 0; loopi < 3; loopi++) {
+      inputs[loopi] = DoubleAad.input(MARKET[loopi], tape);
+    }
+    for (int loopc = 0; loopc < NB_COMPONENTS; loopc++) {
+      inputs[3 + 2 * loopc] = DoubleAad.input(0.20d + 0.002d * loopc, tape);
+      inputs[4 + 2 * loopc] = DoubleAad.input(0.03d + 0.001d * loopc, tape);
+    }
+    return inputs;
+  }
+
+  /* The price of one component of the basket; the odd components use the manual version of the formula. */
+  private static DoubleAad component(int componentNumber, DoubleAad[] inputs, TapeAad tape) {
+    DoubleAad volatility = inputs[3 + 2 * componentNumber];
+    DoubleAad strike = inputs[4 + 2 * componentNumber];
+    boolean isCall = componentNumber % 3 != 0;
+    if (componentNumber % 2 == 0) {
+      return BlackFormula.price_Aad_Automatic(inputs[0], volatility, inputs[1], strike, inputs[2], isCall, tape);
+    }
+    return BlackFormula.price_Aad_Automatic2(inputs[0], volatility, inputs[1], strike, inputs[2], isCall, tape);
+  }
+
+  /* Checks that the arguments of each entry, including the MANUAL_NARY ones, are recorded before the entry. */
+  private static void assertArgumentsBeforeResults(TapeAad tape) {
+    for (int loope = 0; loope < tape.size(); loope++) {
+      if (tape.getOperationType(loope) == OperationTypeAad.MANUAL_NARY) {
+        for (int loopa = 0; loopa < tape.getManualNbArgs(loope); loopa++) {
+          assertTrue("TapeConcurrent: order", tape.getManualIndexArg(loope, loopa) < loope);
+        }
+      } else {
+        assertTrue("TapeConcurrent: order", tape.getIndexArg1(loope) < loope);
+        assertTrue("TapeConcurrent: order", tape.getIndexArg2(loope) < loope);
+      }
+    }
+  }
+
+}
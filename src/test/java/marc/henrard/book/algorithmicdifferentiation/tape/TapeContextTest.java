@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertSame;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
+
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.SabrPriceFormula;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleDerivatives;
+
+import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
+
+/**
+ * Tests related to {@link TapeContext}.
+ */
+public class TapeContextTest {
+
+  /* The tolerance for the comparison of operations on doubles. */
+  static private final double TOLERANCE_DOUBLE = 1.0E-10;
+  // forward, alpha, beta, rho, nu, numeraire, strike, expiry
+  static private final double[][] DATA = {
+    {0.02, 0.05, 0.50, -0.25, 0.50, 1.00, 0.03, 1.00},
+    {0.05, 0.10, 0.40, 0.00, 0.40, 0.99, 0.05, 2.00},
+    {0.10, 0.02, 0.60, 0.25, 0.30, 10.00, 0.20, 0.10},
+    {0.05, 0.05, 0.30, -0.25, 0.60, 0.10, 0.03, 5.50} };
+  static private final BiFunction<DoubleAad[], TapeAad, DoubleAad> SABR = (d, tape) ->
+      SabrPriceFormula.price_Aad_Automatic(d[0], d[1], d[2], d[3], d[4], d[5], d[6], d[7], true, tape);
+
+  @Test
+  public void lifeCycle() {
+    TapeAad tape = TapeContext.begin();
+    assertSame("TapeContext: current", tape, TapeContext.current());
+    DoubleAad x = TapeContext.input(0.5d);
+    DoubleAad y = TapeContext.input(2.0d);
+    DoubleAad[] output = TapeUtilsTest.recordFunction(TapeContext.current(), x, y);
+    TapeAad nested = TapeContext.begin();
+    assertNotSame("TapeContext: nested", tape, nested);
+    assertEquals("TapeContext: nested", 2, TapeContext.depth());
+    MathAad.sin(TapeContext.input(1.0d), nested);
+    TapeContext.release();
+    assertSame("TapeContext: nested", tape, TapeContext.current());
+    TapeContext.freeze();
+    ArrayAsserts.assertArrayEquals("TapeContext: sweep", TapeUtilsTest.functionDerivatives(0.5d, 2.0d),
+        TapeContext.sweep(output[0]), TOLERANCE_DOUBLE);
+    TapeContext.release();
+    assertEquals("TapeContext: release", 0, TapeContext.depth());
+    assertEquals("TapeContext: release", 0, tape.size());
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void noContext() {
+    TapeContext.current();
+  }
+
+  @Test
+  public void releasedOnException() {
+    try {
+      TapeContext.valueAndDerivatives(new double[] {1.0d}, (d, tape) -> {
+        throw new IllegalArgumentException();
+      });
+    } catch (IllegalArgumentException e) {
+      assertEquals("TapeContext: exception", 0, TapeContext.depth());
+      return;
+    }
+    throw new AssertionError("Exception expected");
+  }
+
+  @Test
+  public void nestedLeftOpen() {
+    TapeAad outer = TapeContext.begin();
+    try {
+      TapeContext.valueAndDerivatives(new double[] {1.0d}, (d, tape) -> {
+        TapeContext.begin(); // Left open
+        TapeContext.begin();
+        throw new IllegalArgumentException();
+      });
+    } catch (IllegalArgumentException e) {
+      assertEquals("TapeContext: nested", 1, TapeContext.depth());
+      assertSame("TapeContext: nested", outer, TapeContext.current());
+      return;
+    } finally {
+      TapeContext.release(outer);
+    }
+    throw new AssertionError("Exception expected");
+  }
+
+  @Test
+  public void nestedLeftOpenValue() {
+    DoubleDerivatives result = TapeContext.valueAndDerivatives(new double[] {0.5d}, (d, tape) -> {
+      TapeContext.begin(); // Left open, not used
+      return MathAad.sin(d[0], tape);
+    });
+    assertEquals("TapeContext: nested", 0, TapeContext.depth());
+    assertEquals("TapeContext: nested", Math.cos(0.5d), result.derivatives()[0], TOLERANCE_DOUBLE);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void releaseNotOpen() {
+    TapeContext.release(new TapeAad());
+  }
+
+  @Test
+  public void parallelPricing() throws InterruptedException, ExecutionException {
+    int nbPrices = 400;
+    DoubleDerivatives[] expected = new DoubleDerivatives[nbPrices];
+    for (int loopp = 0; loopp < nbPrices; loopp++) {
+      expected[loopp] = TapeContext.valueAndDerivatives(data(loopp), SABR);
+    }
+    DoubleDerivatives[] computed = new ForkJoinPool(4).submit(() -> IntStream.range(0, nbPrices).parallel()
+        .mapToObj(p -> TapeContext.valueAndDerivatives(data(p), SABR))
+        .toArray(DoubleDerivatives[]::new)).get();
+    for (int loopp = 0; loopp < nbPrices; loopp++) {
+      assertEquals("TapeContext: parallel", expected[loopp].value(), computed[loopp].value(), TOLERANCE_DOUBLE);
+      ArrayAsserts.assertArrayEquals("TapeContext: parallel", expected[loopp].derivatives(), 
+          computed[loopp].derivatives(), TOLERANCE_DOUBLE);
+    }
+  }
+
+  /* The data of one price of the batch, with a strike depending on the price number. */
+  private static double[] data(int priceNumber) {
+    double[] data = DATA[priceNumber % DATA.length].clone();
+    data[6] *= 1.0d + 0.001d * priceNumber;
+    return data;
+  }
+
+}
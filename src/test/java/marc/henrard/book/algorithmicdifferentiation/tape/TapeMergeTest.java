@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.util.stream.IntStream;
+
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.BlackFormula;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
+
+/**
+ * Tests related to {@link TapeMerge}.
+ */
+public class TapeMergeTest {
+
+  /* The tolerance for the comparison of operations on doubles. */
+  static private final double TOLERANCE_DOUBLE = 1.0E-10;
+  static private final int NB_TRADES = 20;
+  // forward, numeraire, expiry
+  static private final double[] MARKET = {0.05, 0.95, 2.5};
+
+  @Test
+  public void portfolioVersusSequential() {
+    for (boolean partials : new boolean[] {false, true}) {
+      // One tape for the portfolio
+      TapeAad sequential = new TapeAad(16, partials);
+      DoubleAad[] market = market(sequential);
+      DoubleAad expected = null;
+      for (int loopt = 0; loopt < NB_TRADES; loopt++) {
+        DoubleAad price = trade(loopt, market, sequential);
+        expected = (expected == null) ? price : MathAad.plus(expected, price, sequential);
+      }
+      sequential.freeze();
+      double[] expectedDerivatives =
+          TapeUtils.interpret(sequential, expected.tapeIndex(), new double[sequential.size()]);
+      // One tape per trade, recorded in parallel
+      TapeAad[] tapes = new TapeAad[NB_TRADES];
+      int[] outputs = IntStream.range(0, NB_TRADES).parallel().map(t -> {
+        tapes[t] = new TapeAad(16, partials);
+        return trade(t, market(tapes[t]), tapes[t]).tapeIndex();
+      }).toArray();
+      TapeAad target = new TapeAad(16, partials);
+      market(target);
+      int[][] remaps = TapeMerge.merge(target, tapes, MARKET.length);
+      int portfolio = remaps[0][outputs[0]];
+      for (int loopt = 1; loopt < NB_TRADES; loopt++) {
+        portfolio = target.addEntry(OperationTypeAad.ADDITION, portfolio, remaps[loopt][outputs[loopt]],
+            target.getValue(portfolio) + target.getValue(remaps[loopt][outputs[loopt]]));
+      }
+      target.freeze();
+      assertEquals("TapeMerge: inputs", sequential.getNbInputs(), target.getNbInputs());
+      assertEquals("TapeMerge: size", sequential.size(), target.size());
+      assertEquals("TapeMerge: value", expected.value(), target.getValue(portfolio), TOLERANCE_DOUBLE);
+      ArrayAsserts.assertArrayEquals("TapeMerge: derivatives", expectedDerivatives,
+          TapeUtils.interpret(target, portfolio, new double[target.size()]), TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test
+  public void copiedInputs() {
+    TapeAad source = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, source);
+    DoubleAad y = DoubleAad.input(2.0d, source);
+    DoubleAad[] output = TapeUtilsTest.recordFunction(source, x, y);
+    source.freeze();
+    TapeAad target = new TapeAad();
+    DoubleAad z = DoubleAad.input(2.0d, target);
+    MathAad.exp(z, target);
+    int[] remap = TapeMerge.merge(target, source, new int[] {-1, z.tapeIndex()});
+    target.freeze();
+    assertEquals("TapeMerge: copied input", 2, target.getNbInputs());
+    assertEquals("TapeMerge: unified input", z.tapeIndex(), remap[y.tapeIndex()]);
+    double[] expected = TapeUtilsTest.functionDerivatives(0.5d, 2.0d);
+    ArrayAsserts.assertArrayEquals("TapeMerge: copied input", new double[] {expected[1], expected[0]},
+        TapeUtils.interpret(target, remap[output[0].tapeIndex()], new double[target.size()]), TOLERANCE_DOUBLE);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void wrongNumberOfInputs() {
+    TapeAad source = new TapeAad();
+    DoubleAad.input(0.5d, source);
+    TapeMerge.merge(new TapeAad(), source, new int[2]);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void notAnInput() {
+    TapeAad source = new TapeAad();
+    DoubleAad.input(0.5d, source);
+    TapeAad target = new TapeAad();
+    MathAad.sin(DoubleAad.input(0.5d, target), target);
+    TapeMerge.merge(target, source, new int[] {1});
+  }
+
+  /* Records the market data. */
+  private static DoubleAad[] market(TapeAad tape) {
+    DoubleAad[] market = new DoubleAad[MARKET.length];
+    for (int loopi = 0; loopi < MARKET.length; loopi++) {
+      market[loopi] = DoubleAad.input(MARKET[loopi], tape);
+    }
+    return market;
+  }
+
+  /* The price of one trade, with its volatility and strike as inputs; the odd trades use the manual formula. */
+  private static DoubleAad trade(int tradeNumber, DoubleAad[] market, TapeAad tape) {
+    DoubleAad volatility = DoubleAad.input(0.20d + 0.002d * tradeNumber, tape);
+    DoubleAad strike = DoubleAad.input(0.03d + 0.001d * tradeNumber, tape);
+    boolean isCall = tradeNumber % 3 != 0;
+    if (tradeNumber % 2 == 0) {
+      return BlackFormula.price_Aad_Automatic(market[0], volatility, market[1], strike, market[2], isCall, tape);
+    }
+    return BlackFormula.price_Aad_Automatic2(market[0], volatility, market[1], strike, market[2], isCall, tape);
+  }
+
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.BlackFormula;
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.SabrVolatilityFormula;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
+
+/**
+ * Tests related to {@link TapeOptimizer}.
+ */
+public class TapeOptimizerTest {
+
+  /* The tolerance for the comparison of operations on doubles. */
+  static private final double TOLERANCE_DOUBLE = 1.0E-10;
+  // forward, alpha, beta, rho, nu, strike, expiry
+  static private final double[] SABR_DATA = {0.05, 0.05, 0.30, -0.25, 0.60, 0.03, 5.50};
+
+  @Test
+  public void eliminateDeadEntries() {
+    for (boolean partials : new boolean[] {false, true}) {
+      TapeAad tape = new TapeAad(16, partials);
+      DoubleAad x = DoubleAad.input(0.5d, tape);
+      DoubleAad unused = DoubleAad.input(1.5d, tape);
+      MathAad.exp(MathAad.multipliedBy(x, unused, tape), tape); // Candidate not used
+      DoubleAad y = DoubleAad.input(2.0d, tape);
+      DoubleAad[] output = TapeUtilsTest.recordFunction(tape, x, y);
+      MathAad.sin(output[0], tape); // Candidate not used
+      int[] outputIndices = {output[0].tapeIndex()};
+      TapeAad compacted = TapeOptimizer.eliminateDeadEntries(tape, outputIndices);
+      assertEquals("TapeOptimizer: dead entries", tape.size() - 3, compacted.size());
+      assertEquals("TapeOptimizer: dead entries", 3, compacted.getNbInputs());
+      assertEquals("TapeOptimizer: dead entries", compacted.size() - 1, outputIndices[0]);
+      assertEquals("TapeOptimizer: dead entries", partials, compacted.isRecordingPartials());
+      double[] expected = TapeUtils.interpret(tape, output[0].tapeIndex(), new double[tape.size()]);
+      double[] d = TapeUtils.interpret(compacted, outputIndices[0], new double[compacted.size()]);
+      ArrayAsserts.assertArrayEquals("TapeOptimizer: dead entries", expected, d, TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test
+  public void eliminateDeadEntriesSabr() {
+    TapeAad tape = new TapeAad();
+    DoubleAad[] dataAad = new DoubleAad[7];
+    for (int loopi = 0; loopi < 7; loopi++) {
+      dataAad[loopi] = DoubleAad.input(SABR_DATA[loopi], tape);
+    }
+    DoubleAad volatility = SabrVolatilityFormula.volatility_Aad_Automatic(dataAad[0], dataAad[1], dataAad[2],
+        dataAad[3], dataAad[4], dataAad[5], dataAad[6], tape);
+    SabrVolatilityFormula.volatility_Aad_Automatic(dataAad[0], dataAad[1], dataAad[2],
+        dataAad[3], dataAad[4], dataAad[0], dataAad[6], tape); // At-the-money volatility, not used
+    tape.freeze();
+    int[] outputIndices = {volatility.tapeIndex()};
+    TapeAad compacted = TapeOptimizer.eliminateDeadEntries(tape, outputIndices);
+    assertTrue("TapeOptimizer: dead entries", compacted.isFrozen());
+    assertEquals("TapeOptimizer: dead entries", volatility.tapeIndex() + 1, compacted.size());
+    double[] expected = TapeUtils.interpret(tape, volatility.tapeIndex(), new double[tape.size()]);
+    double[] d = TapeUtils.interpret(compacted, outputIndices[0], new double[compacted.size()]);
+    ArrayAsserts.assertArrayEquals("TapeOptimizer: dead entries", expected, d, TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void fuseChainsAffine() {
+    for (boolean partials : new boolean[] {false, true}) {
+      TapeAad tape = new TapeAad(16, partials);
+      DoubleAad x = DoubleAad.input(0.5d, tape);
+      DoubleAad a = MathAad.plus(MathAad.multipliedBy(MathAad.multipliedBy(x, -1.0d, tape), 2.0d, tape), 1.0d, tape);
+      DoubleAad b = MathAad.exp(MathAad.sin(MathAad.multipliedBy(a, 1.0d, tape), tape), tape);
+      DoubleAad c = MathAad.plus(MathAad.plus(MathAad.multipliedBy(b, x, tape), a, tape), 0.0d, tape);
+      int[] outputIndices = {c.tapeIndex()};
+      TapeAad fused = TapeOptimizer.fuseChains(tape, outputIndices);
+      // input, affine, composition, multiplication, addition
+      assertEquals("TapeOptimizer: fuse chains", 5, fused.size());
+      assertEquals("TapeOptimizer: fuse chains", 4, outputIndices[0]);
+      assertTrue("TapeOptimizer: fuse chains", fused.getOperationType(1) == OperationTypeAad.AFFINE);
+      assertEquals("TapeOptimizer: fuse chains", -2.0d, fused.getExtraValue(1), TOLERANCE_DOUBLE);
+      assertEquals("TapeOptimizer: fuse chains", a.value(), fused.getValue(1), TOLERANCE_DOUBLE);
+      assertTrue("TapeOptimizer: fuse chains", fused.getOperationType(2) == OperationTypeAad.COMPOSITION);
+      assertEquals("TapeOptimizer: fuse chains", b.value(), fused.getValue(2), TOLERANCE_DOUBLE);
+      assertEquals("TapeOptimizer: fuse chains", c.value(), fused.getValue(outputIndices[0]), TOLERANCE_DOUBLE);
+      double[] expected = TapeUtils.interpret(tape, c.tapeIndex(), new double[tape.size()]);
+      double[] d = TapeUtils.interpret(fused, outputIndices[0], new double[fused.size()]);
+      ArrayAsserts.assertArrayEquals("TapeOptimizer: fuse chains", expected, d, TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test
+  public void fuseChainsReplay() {
+    for (double recorded : new double[] {1.0E+8, Double.POSITIVE_INFINITY}) {
+      TapeAad tape = new TapeAad();
+      DoubleAad x = DoubleAad.input(recorded, tape);
+      DoubleAad a = MathAad.plus(MathAad.multipliedBy(MathAad.multipliedBy(x, 3.0d, tape), 0.5d, tape), 0.1d, tape);
+      tape.freeze();
+      int[] outputIndices = {a.tapeIndex()};
+      TapeAad fused = TapeOptimizer.fuseChains(tape, outputIndices);
+      assertTrue("TapeOptimizer: fuse chains", fused.getOperationType(1) == OperationTypeAad.AFFINE);
+      assertEquals("TapeOptimizer: fuse chains", 0.1d, fused.getAffineConstant(1), 0.0d);
+      int[] copyIndices = outputIndices.clone();
+      TapeAad copied = TapeOptimizer.eliminateDeadEntries(fused, copyIndices);
+      assertEquals("TapeOptimizer: fuse chains", 0.1d, copied.getAffineConstant(copyIndices[0]), 0.0d);
+      // Replayed far from the recorded input
+      double[] value = new double[fused.size()];
+      assertTrue("TapeOptimizer: fuse chains", TapeReplay.forward(fused, outputIndices[0], new double[] {0.3d}, value));
+      assertEquals("TapeOptimizer: fuse chains", 1.5d * 0.3d + 0.1d, value[outputIndices[0]], 1.0E-15);
+      double[] gradient = new double[1];
+      double compiled = TapeCompiler.compile(fused, outputIndices[0]).valueAndGradient(new double[] {0.3d}, gradient);
+      assertEquals("TapeOptimizer: fuse chains", 1.5d * 0.3d + 0.1d, compiled, 1.0E-15);
+      assertEquals("TapeOptimizer: fuse chains", 1.5d, gradient[0], 1.0E-15);
+    }
+  }
+
+  @Test
+  public void fuseChainsVector() {
+    for (boolean partials : new boolean[] {false, true}) {
+      TapeAad tape = new TapeAad(16, partials);
+      DoubleAad x = DoubleAad.input(0.5d, tape);
+      DoubleAad y = DoubleAad.input(2.0d, tape);
+      DoubleAad a = MathAad.plus(MathAad.multipliedBy(MathAad.multipliedBy(x, 3.0d, tape), 0.5d, tape), 0.1d, tape);
+      DoubleAad b = MathAad.multipliedBy(a, y, tape);
+      DoubleAad c = MathAad.plus(MathAad.exp(b, tape), a, tape);
+      tape.freeze();
+      int[] outputIndices = {b.tapeIndex(), c.tapeIndex()};
+      double[][] expected = TapeUtils.interpretVector(tape, outputIndices);
+      TapeAad fused = TapeOptimizer.fuseChains(tape, outputIndices);
+      assertTrue("TapeOptimizer: fuse chains", fused.getOperationType(2) == OperationTypeAad.AFFINE);
+      double[][] jacobian = TapeUtils.interpretVector(fused, outputIndices);
+      for (int loopo = 0; loopo < outputIndices.length; loopo++) {
+        ArrayAsserts.assertArrayEquals("TapeOptimizer: fuse chains", expected[loopo], jacobian[loopo],
+            TOLERANCE_DOUBLE);
+      }
+    }
+  }
+
+  @Test
+  public void fuseChainsOutputs() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad a = MathAad.multipliedBy(x, 3.0d, tape);
+    DoubleAad b = MathAad.plus(a, 2.0d, tape);
+    int[] outputIndices = {a.tapeIndex(), b.tapeIndex()};
+    TapeAad fused = TapeOptimizer.fuseChains(tape, outputIndices);
+    assertEquals("TapeOptimizer: fuse chains", tape.size(), fused.size());
+    ArrayAsserts.assertArrayEquals("TapeOptimizer: fuse chains", new int[] {1, 2}, outputIndices);
+  }
+
+  @Test
+  public void fuseChainsBlack() {
+    for (boolean isCall : new boolean[] {true, false}) {
+      TapeAad tape = new TapeAad();
+      DoubleAad[] dataAad = new DoubleAad[5];
+      double[] data = {0.05, 0.20, 0.95, 0.045, 2.5};
+      for (int loopi = 0; loopi < 5; loopi++) {
+        dataAad[loopi] = DoubleAad.input(data[loopi], tape);
+      }
+      DoubleAad price = BlackFormula.price_Aad_Automatic(dataAad[0], dataAad[1], dataAad[2], dataAad[3],
+          dataAad[4], isCall, tape);
+      tape.freeze();
+      int[] outputIndices = {price.tapeIndex()};
+      TapeAad fused = TapeOptimizer.fuseChains(tape, outputIndices);
+      assertTrue("TapeOptimizer: fuse chains", fused.isFrozen());
+      assertTrue("TapeOptimizer: fuse chains", fused.size() < tape.size());
+      double[] expected = TapeUtils.interpret(tape, price.tapeIndex(), new double[tape.size()]);
+      double[] d = TapeUtils.interpret(fused, outputIndices[0], new double[fused.size()]);
+      ArrayAsserts.assertArrayEquals("TapeOptimizer: fuse chains", expected, d, TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test
+  public void fuseChainsSabr() {
+    for (boolean partials : new boolean[] {false, true}) {
+      TapeAad tape = new TapeAad(256, partials);
+      DoubleAad[] dataAad = new DoubleAad[7];
+      for (int loopi = 0; loopi < 7; loopi++) {
+        dataAad[loopi] = DoubleAad.input(SABR_DATA[loopi], tape);
+      }
+      DoubleAad volatility = SabrVolatilityFormula.volatility_Aad_Automatic(dataAad[0], dataAad[1], dataAad[2],
+          dataAad[3], dataAad[4], dataAad[5], dataAad[6], tape);
+      int[] outputIndices = {volatility.tapeIndex()};
+      TapeAad fused = TapeOptimizer.fuseChains(tape, outputIndices);
+      assertTrue("TapeOptimizer: fuse chains", fused.size() < tape.size());
+      assertEquals("TapeOptimizer: fuse chains", volatility.value(), fused.getValue(outputIndices[0]),
+          TOLERANCE_DOUBLE);
+      double[] expected = TapeUtils.interpret(tape, volatility.tapeIndex(), new double[tape.size()]);
+      double[] d = TapeUtils.interpret(fused, outputIndices[0], new double[fused.size()]);
+      ArrayAsserts.assertArrayEquals("TapeOptimizer: fuse chains", expected, d, TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test
+  public void manualEntries() {
+    TapeAad tape = new TapeAad();
+    DoubleAad[] dataAad = new DoubleAad[5];
+    double[] data = {0.05, 0.20, 0.95, 0.045, 2.5};
+    for (int loopi = 0; loopi < 5; loopi++) {
+      dataAad[loopi] = DoubleAad.input(data[loopi], tape);
+    }
+    DoubleAad volatility = MathAad.multipliedBy(MathAad.multipliedBy(dataAad[1], 2.0d, tape), 0.5d, tape);
+    MathAad.exp(volatility, tape); // Not used
+    DoubleAad price = BlackFormula.price_Aad_Automatic2(dataAad[0], volatility, dataAad[2], dataAad[3],
+        dataAad[4], true, tape);
+    double[] expected = TapeUtils.interpret(tape, price.tapeIndex(), new double[tape.size()]);
+    int[] outputIndices = {price.tapeIndex()};
+    TapeAad compacted = TapeOptimizer.eliminateDeadEntries(tape, outputIndices);
+    assertEquals("TapeOptimizer: manual entries", tape.size() - 1, compacted.size());
+    double[] d = TapeUtils.interpret(compacted, outputIndices[0], new double[compacted.size()]);
+    ArrayAsserts.assertArrayEquals("TapeOptimizer: manual entries", expected, d, TOLERANCE_DOUBLE);
+    TapeAad fused = TapeOptimizer.fuseChains(compacted, outputIndices);
+    assertEquals("TapeOptimizer: manual entries", compacted.size() - 1, fused.size());
+    d = TapeUtils.interpret(fused, outputIndices[0], new double[fused.size()]);
+    ArrayAsserts.assertArrayEquals("TapeOptimizer: manual entries", expected, d, TOLERANCE_DOUBLE);
+  }
+
+}
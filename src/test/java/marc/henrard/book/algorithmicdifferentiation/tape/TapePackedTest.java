@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.BlackFormula;
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.SabrVolatilityFormula;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+
+import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
+
+/**
+ * Tests related to {@link TapePacked}.
+ */
+public class TapePackedTest {
+
+  /* The tolerance for the comparison of operations on doubles. */
+  static private final double TOLERANCE_DOUBLE = 1.0E-10;
+  // forward, alpha, beta, rho, nu, strike, expiry
+  static private final double[][] SABR_DATA = {
+    {0.02, 0.05, 0.50, -0.25, 0.50, 0.03, 1.00},
+    {0.05, 0.10, 0.40, 0.00, 0.40, 0.04, 2.00},
+    {0.10, 0.02, 0.60, 0.25, 0.30, 0.20, 0.10},
+    {0.05, 0.05, 0.30, -0.25, 0.60, 0.05, 5.50} };
+
+  @Test
+  public void packedFunction() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = DoubleAad.input(2.0d, tape);
+    DoubleAad[] output = TapeUtilsTest.recordFunction(tape, x, y);
+    MathAad.cos(output[0], tape); // After the output, skipped
+    tape.freeze();
+    TapePacked packed = TapePacked.of(tape);
+    assertEquals("TapePacked: function", tape.size(), packed.size());
+    assertEquals("TapePacked: function", 2, packed.getNbInputs());
+    double[] valueBar = new double[tape.size()];
+    ArrayAsserts.assertArrayEquals("TapePacked: function", TapeUtilsTest.functionDerivatives(0.5d, 2.0d),
+        packed.interpret(output[0].tapeIndex(), valueBar), TOLERANCE_DOUBLE);
+    double[] expectedProduct = {Math.cos(0.5d) * Math.exp(2.0d), Math.sin(0.5d) * Math.exp(2.0d)};
+    ArrayAsserts.assertArrayEquals("TapePacked: function", expectedProduct,
+        packed.interpret(output[1].tapeIndex(), valueBar), TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void packedSabr() {
+    for (boolean partials : new boolean[] {false, true}) {
+      for (double[] data : SABR_DATA) {
+        TapeAad tape = new TapeAad(16, partials);
+        DoubleAad[] dataAad = new DoubleAad[7];
+        for (int loopi = 0; loopi < 7; loopi++) {
+          dataAad[loopi] = DoubleAad.input(data[loopi], tape);
+        }
+        DoubleAad volatility = SabrVolatilityFormula.volatility_Aad_Automatic(dataAad[0], dataAad[1], dataAad[2],
+            dataAad[3], dataAad[4], dataAad[5], dataAad[6], tape);
+        tape.freeze();
+        double[] valueBar = new double[tape.size()];
+        double[] expected = TapeUtils.interpret(tape, volatility.tapeIndex(), valueBar);
+        TapePacked packed = TapePacked.of(tape);
+        ArrayAsserts.assertArrayEquals("TapePacked: SABR", expected,
+            packed.interpret(volatility.tapeIndex(), valueBar), TOLERANCE_DOUBLE);
+        assertTrue("TapePacked: SABR", packed.memorySize() < 16L * tape.size());
+      }
+    }
+  }
+
+  @Test
+  public void packedFusedManual() {
+    double[] data = {0.05, 0.20, 0.95, 0.045, 2.5};
+    for (boolean isCall : new boolean[] {true, false}) {
+      TapeAad tape = new TapeAad();
+      DoubleAad[] dataAad = new DoubleAad[5];
+      for (int loopi = 0; loopi < 5; loopi++) {
+        dataAad[loopi] = DoubleAad.input(data[loopi], tape);
+      }
+      DoubleAad price = BlackFormula.price_Aad_Automatic(dataAad[0], dataAad[1], dataAad[2], dataAad[3],
+          dataAad[4], isCall, tape);
+      DoubleAad priceManual = BlackFormula.price_Aad_Automatic2(dataAad[0], dataAad[1], dataAad[2], dataAad[3],
+          dataAad[4], isCall, tape);
+      tape.freeze();
+      int[] outputIndices = {price.tapeIndex(), priceManual.tapeIndex()};
+      TapeAad fused = TapeOptimizer.fuseChains(tape, outputIndices);
+      TapePacked packed = TapePacked.of(fused);
+      double[] valueBar = new double[tape.size()];
+      for (int loopo = 0; loopo < 2; loopo++) {
+        double[] expected = TapeUtils.interpret(fused, outputIndices[loopo], valueBar);
+        ArrayAsserts.assertArrayEquals("TapePacked: fused and manual", expected,
+            packed.interpret(outputIndices[loopo], valueBar), TOLERANCE_DOUBLE);
+      }
+    }
+  }
+
+  @Test
+  public void packedLongDistances() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = DoubleAad.input(2.0d, tape);
+    DoubleAad s = MathAad.sin(x, tape);
+    for (int loopi = 0; loopi < 20_000; loopi++) {
+      s = MathAad.plus(MathAad.multipliedBy(s, 0.9999d, tape), 1.0d, tape);
+    }
+    DoubleAad output = MathAad.multipliedBy(MathAad.minus(s, y, tape), x, tape); // Distance to x above 2^14
+    tape.freeze();
+    TapePacked packed = TapePacked.of(tape);
+    double[] valueBar = new double[tape.size()];
+    ArrayAsserts.assertArrayEquals("TapePacked: long distances",
+        TapeUtils.interpret(tape, output.tapeIndex(), valueBar), packed.interpret(output.tapeIndex(), valueBar),
+        TOLERANCE_DOUBLE);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void packedNotFrozen() {
+    TapeAad tape = new TapeAad();
+    MathAad.sin(DoubleAad.input(0.5d, tape), tape);
+    TapePacked.of(tape);
+  }
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.BlackFormula;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+
+import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
+
+/**
+ * Tests related to {@link TapeParallel}.
+ */
+public class TapeParallelTest {
+
+  /* The tolerance for the comparison of operations on doubles. */
+  static private final double TOLERANCE_DOUBLE = 1.0E-10;
+  static private final ForkJoinPool POOL = new ForkJoinPool(4);
+
+  @Test
+  public void levels() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = DoubleAad.input(2.0d, tape);
+    DoubleAad[] output = TapeUtilsTest.recordFunction(tape, x, y);
+    tape.freeze();
+    TapeParallel parallel = new TapeParallel(tape, POOL, 1);
+    assertEquals("TapeParallel: inputs level", 2, parallel.getLevelSize(0));
+    int nbEntries = 0;
+    for (int loopl = 0; loopl < parallel.getNbLevels(); loopl++) {
+      nbEntries += parallel.getLevelSize(loopl);
+    }
+    assertEquals("TapeParallel: levels", tape.size(), nbEntries);
+    ArrayAsserts.assertArrayEquals("TapeParallel: function", TapeUtilsTest.functionDerivatives(0.5d, 2.0d),
+        parallel.interpret(output[0].tapeIndex()), TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void strikeLadder() {
+    for (boolean partials : new boolean[] {false, true}) {
+      TapeAad tape = new TapeAad(16, partials);
+      DoubleAad[] ladder = recordLadder(tape, 2_000);
+      tape.freeze();
+      TapeParallel parallel = new TapeParallel(tape, POOL, 64);
+      assertTrue("TapeParallel: wide", parallel.getLevelSize(1) >= 2_000);
+      for (DoubleAad output : new DoubleAad[] {ladder[0], ladder[1], ladder[1_000]}) {
+        ArrayAsserts.assertArrayEquals("TapeParallel: ladder",
+            TapeUtils.interpret(tape, output.tapeIndex(), new double[tape.size()]),
+            parallel.interpret(output.tapeIndex()), TOLERANCE_DOUBLE);
+      }
+    }
+  }
+
+  @Test
+  public void reproducible() {
+    for (boolean partials : new boolean[] {false, true}) {
+      TapeAad tape = new TapeAad(16, partials);
+      DoubleAad[] ladder = recordLadder(tape, 2_000);
+      tape.freeze();
+      TapeParallel reference = new TapeParallel(tape, POOL, 64, TapeParallel.DEFAULT_NB_PARTITIONS);
+      assertTrue("TapeParallel: reproducible", reference.isReproducible());
+      assertFalse("TapeParallel: atomic", new TapeParallel(tape).isReproducible());
+      double[] expected = reference.interpret(ladder[0].tapeIndex());
+      ArrayAsserts.assertArrayEquals("TapeParallel: reproducible",
+          TapeUtils.interpret(tape, ladder[0].tapeIndex(), new double[tape.size()]), expected, TOLERANCE_DOUBLE);
+      ForkJoinPool single = new ForkJoinPool(1);
+      try {
+        TapeParallel[] others = {reference, new TapeParallel(tape, single, 64, TapeParallel.DEFAULT_NB_PARTITIONS),
+            new TapeParallel(tape, POOL, 1, TapeParallel.DEFAULT_NB_PARTITIONS),
+            new TapeParallel(tape, POOL, 100_000, TapeParallel.DEFAULT_NB_PARTITIONS)};
+        for (TapeParallel other : others) {
+          for (int looprep = 0; looprep < 3; looprep++) { // Bitwise equal
+            ArrayAsserts.assertArrayEquals("TapeParallel: reproducible", expected,
+                other.interpret(ladder[0].tapeIndex()), 0.0d);
+          }
+        }
+      } finally {
+        single.shutdown();
+      }
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void negativePartitions() {
+    TapeAad tape = new TapeAad();
+    MathAad.sin(DoubleAad.input(0.5d, tape), tape);
+    tape.freeze();
+    new TapeParallel(tape, POOL, 1, -1);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void notFrozen() {
+    TapeAad tape = new TapeAad();
+    MathAad.sin(DoubleAad.input(0.5d, tape), tape);
+    new TapeParallel(tape);
+  }
+
+  /* Records a ladder of Black prices, with a strike input for each price; returns the sum followed by the prices. */
+  private static DoubleAad[] recordLadder(TapeAad tape, int nbStrikes) {
+    DoubleAad forward = DoubleAad.input(0.05d, tape);
+    DoubleAad volatility = DoubleAad.input(0.20d, tape);
+    DoubleAad numeraire = DoubleAad.input(0.95d, tape);
+    DoubleAad expiry = DoubleAad.input(2.5d, tape);
+    DoubleAad[] strikes = new DoubleAad[nbStrikes];
+    for (int loops = 0; loops < nbStrikes; loops++) {
+      strikes[loops] = DoubleAad.input(0.02d + 0.00002d * loops, tape);
+    }
+    DoubleAad[] ladder = new DoubleAad[nbStrikes + 1];
+    for (int loops = 0; loops < nbStrikes; loops++) {
+      ladder[loops + 1] = (loops % 2 == 0) ?
+          BlackFormula.price_Aad_Automatic(forward, volatility, numeraire, strikes[loops], expiry, true, tape) :
+          BlackFormula.price_Aad_Automatic2(forward, volatility, numeraire, strikes[loops], expiry, true, tape);
+    }
+    DoubleAad[] level = Arrays.copyOfRange(ladder, 1, nbStrikes + 1);
+    for (int width = nbStrikes; width > 1; width = (width + 1) / 2) { // Pairwise sum, of logarithmic depth
+      for (int loops = 0; loops < width / 2; loops++) {
+        level[loops] = MathAad.plus(level[2 * loops], level[2 * loops + 1], tape);
+      }
+      if (width % 2 == 1) {
+        level[width / 2] = level[width - 1];
+      }
+    }
+    ladder[0] = level[0];
+    return ladder;
+  }
+
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.BlackFormula;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+
+import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
+
+/**
+ * Tests related to {@link TapePrefix}.
+ */
+public class TapePrefixTest {
+
+  /* The tolerance for the comparison of operations on doubles. */
+  static private final double TOLERANCE_DOUBLE = 1.0E-10;
+  static private final int NB_TRADES = 20;
+  // forward, rate, volatility, expiry
+  static private final double[] MARKET = {0.05, 0.02, 0.20, 2.5};
+
+  @Test
+  public void branchesVersusSequential() {
+    for (boolean partials : new boolean[] {false, true}) {
+      // One tape for the market and all the trades
+      TapeAad sequential = new TapeAad(16, partials);
+      DoubleAad[] market = market(sequential);
+      DoubleAad expected = null;
+      for (int loopt = 0; loopt < NB_TRADES; loopt++) {
+        DoubleAad price = trade(loopt, market, sequential);
+        expected = (expected == null) ? price : MathAad.plus(expected, price, sequential);
+      }
+      sequential.freeze();
+      double[] expectedDerivatives =
+          TapeUtils.interpret(sequential, expected.tapeIndex(), new double[sequential.size()]);
+      // The market once in the prefix, one branch per trade recorded in parallel
+      TapeAad prefixTape = new TapeAad(16, partials);
+      DoubleAad[] marketPrefix = market(prefixTape);
+      prefixTape.freeze();
+      TapePrefix prefix = new TapePrefix(prefixTape);
+      double[][] buffers = new double[NB_TRADES][];
+      double[][] tradeDerivatives = new double[NB_TRADES][];
+      double[] values = IntStream.range(0, NB_TRADES).parallel().mapToDouble(t -> {
+        TapeAad branch = prefix.branch();
+        DoubleAad price = trade(t, marketPrefix, branch);
+        buffers[t] = new double[branch.size()];
+        tradeDerivatives[t] = prefix.interpretBranch(branch, price.tapeIndex(), buffers[t]);
+        return price.value();
+      }).toArray();
+      assertEquals("TapePrefix: prefix not modified", marketPrefix[4].tapeIndex() + 1, prefixTape.size());
+      assertEquals("TapePrefix: value", expected.value(), Arrays.stream(values).sum(), TOLERANCE_DOUBLE);
+      double[] marketDerivatives = prefix.interpretPrefix(buffers);
+      for (int loopi = 0; loopi < MARKET.length; loopi++) {
+        assertEquals("TapePrefix: market derivatives", expectedDerivatives[loopi], marketDerivatives[loopi],
+            TOLERANCE_DOUBLE);
+      }
+      for (int loopt = 0; loopt < NB_TRADES; loopt++) {
+        assertEquals("TapePrefix: trade derivatives", 1, tradeDerivatives[loopt].length);
+        assertEquals("TapePrefix: trade derivatives", expectedDerivatives[MARKET.length + loopt],
+            tradeDerivatives[loopt][0], TOLERANCE_DOUBLE);
+      }
+    }
+  }
+
+  @Test
+  public void branchReused() {
+    TapeAad prefixTape = new TapeAad();
+    DoubleAad[] market = market(prefixTape);
+    prefixTape.freeze();
+    TapePrefix prefix = new TapePrefix(prefixTape);
+    TapeAad branch = prefix.branch();
+    double[] buffer = new double[0];
+    double[] tradeDerivatives = new double[NB_TRADES];
+    for (int loopt = 0; loopt < NB_TRADES; loopt++) {
+      branch.reset();
+      assertEquals("TapePrefix: reset", prefix.size(), branch.size());
+      assertEquals("TapePrefix: reset", MARKET.length, branch.getNbInputs());
+      DoubleAad price = trade(loopt, market, branch);
+      branch.freeze();
+      if (buffer.length < branch.size()) {
+        buffer = Arrays.copyOf(buffer, branch.size());
+      }
+      tradeDerivatives[loopt] = prefix.interpretBranch(branch, price.tapeIndex(), buffer)[0];
+    }
+    TapeAad sequential = new TapeAad();
+    DoubleAad[] marketSequential = market(sequential);
+    DoubleAad sum = null;
+    for (int loopt = 0; loopt < NB_TRADES; loopt++) {
+      DoubleAad price = trade(loopt, marketSequential, sequential);
+      sum = (sum == null) ? price : MathAad.plus(sum, price, sequential);
+    }
+    sequential.freeze();
+    double[] expected = TapeUtils.interpret(sequential, sum.tapeIndex(), new double[sequential.size()]);
+    double[] marketDerivatives = prefix.interpretPrefix(new double[][] {buffer});
+    ArrayAsserts.assertArrayEquals("TapePrefix: reused branch", Arrays.copyOf(expected, MARKET.length),
+        marketDerivatives, TOLERANCE_DOUBLE);
+    ArrayAsserts.assertArrayEquals("TapePrefix: reused branch",
+        Arrays.copyOfRange(expected, MARKET.length, MARKET.length + NB_TRADES), tradeDerivatives,
+        TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void branchValues() {
+    TapeAad prefixTape = new TapeAad();
+    DoubleAad[] market = market(prefixTape);
+    prefixTape.freeze();
+    TapePrefix prefix = new TapePrefix(prefixTape);
+    TapeAad branch = prefix.branch();
+    DoubleAad price = null;
+    for (int loopt = 0; loopt < NB_TRADES; loopt++) { // The branch grows
+      price = trade(loopt, market, branch);
+    }
+    BranchTapeStorage storage = (BranchTapeStorage) branch.storage();
+    assertTrue("TapePrefix: branch values", storage.prefix().values() == prefixTape.values()); // Not copied
+    double[] values = storage.branchValues();
+    for (int loope = prefix.size(); loope < branch.size(); loope++) {
+      assertEquals("TapePrefix: branch values", branch.getValue(loope), values[loope - prefix.size()], 0.0d);
+    }
+    assertEquals("TapePrefix: branch values", price.value(), values[price.tapeIndex() - prefix.size()], 0.0d);
+    double[] expected = new double[branch.size()];
+    expected[price.tapeIndex()] = 1.0d;
+    TapeUtils.sweepLocalPartials(branch, expected, price.tapeIndex(), 0);
+    double[] valueBar = new double[branch.size()];
+    TapeUtils.interpret(branch, price.tapeIndex(), valueBar);
+    ArrayAsserts.assertArrayEquals("TapePrefix: branch values", expected, valueBar, TOLERANCE_DOUBLE);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void prefixReleased() {
+    TapeAad tape = new TapeAad();
+    market(tape);
+    tape.freeze();
+    tape.releaseValues();
+    new TapePrefix(tape);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void prefixReleasedAfterCreation() {
+    TapeAad tape = new TapeAad();
+    market(tape);
+    tape.freeze();
+    TapePrefix prefix = new TapePrefix(tape);
+    tape.releaseValues();
+    prefix.branch();
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void prefixNotFrozen() {
+    TapeAad tape = new TapeAad();
+    DoubleAad.input(0.5d, tape);
+    new TapePrefix(tape);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void foreignBranch() {
+    TapeAad tape = new TapeAad();
+    DoubleAad.input(0.5d, tape);
+    tape.freeze();
+    TapePrefix prefix = new TapePrefix(tape);
+    TapeAad other = new TapeAad();
+    DoubleAad y = MathAad.sin(DoubleAad.input(0.5d, other), other);
+    prefix.interpretBranch(other, y.tapeIndex(), new double[other.size()]);
+  }
+
+  @Test(expectedExceptions = IndexOutOfBoundsException.class)
+  public void rewindIntoPrefix() {
+    TapeAad tape = new TapeAad();
+    DoubleAad.input(0.5d, tape);
+    tape.freeze();
+    TapeAad branch = new TapePrefix(tape).branch();
+    DoubleAad.input(1.0d, branch);
+    branch.rewindTo(0);
+  }
+
+  /* Records the market: the inputs, the numeraire, the adjusted volatility and a reference price. */
+  private static DoubleAad[] market(TapeAad tape) {
+    DoubleAad[] inputs = new DoubleAad[MARKET.length];
+    for (int loopi = 0; loopi < MARKET.length; loopi++) {
+      inputs[loopi] = DoubleAad.input(MARKET[loopi], tape);
+    }
+    DoubleAad numeraire = MathAad.exp(MathAad.multipliedBy(MathAad.multipliedBy(inputs[1], inputs[3], tape),
+        -1.0d, tape), tape);
+    DoubleAad volatility = MathAad.sqrt(MathAad.plus(MathAad.multipliedBy(inputs[2], inputs[2], tape), 1.0E-4,
+        tape), tape);
+    DoubleAad reference = BlackFormula.price_Aad_Automatic2(inputs[0], volatility, numeraire, inputs[0], inputs[3],
+        true, tape);
+    return new DoubleAad[] {inputs[0], numeraire, volatility, inputs[3], reference};
+  }
+
+  /* The price of one trade, with its strike as input, plus a share of the reference price. */
+  private static DoubleAad trade(int tradeNumber, DoubleAad[] market, TapeAad tape) {
+    DoubleAad strike = DoubleAad.input(0.03d + 0.002d * tradeNumber, tape);
+    boolean isCall = tradeNumber % 3 != 0;
+    DoubleAad price = (tradeNumber % 2 == 0) ?
+        BlackFormula.price_Aad_Automatic(market[0], market[2], market[1], strike, market[3], isCall, tape) :
+        BlackFormula.price_Aad_Automatic2(market[0], market[2], market[1], strike, market[3], isCall, tape);
+    return MathAad.plus(price, MathAad.multipliedBy(market[4], 0.01d, tape), tape);
+  }
+
+}
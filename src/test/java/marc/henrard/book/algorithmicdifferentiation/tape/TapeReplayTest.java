@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.function.BiFunction;
+
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.SabrVolatilityFormula;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
+
+import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
+
+/**
+ * Tests related to {@link TapeReplay}.
+ */
+public class TapeReplayTest {
+
+  /* The tolerance for the comparison of operations on doubles. */
+  static private final double TOLERANCE_DOUBLE = 1.0E-10;
+  // forward, alpha, beta, rho, nu, strike, expiry
+  static private final double[][] SABR_DATA = {
+    {0.02, 0.05, 0.50, -0.25, 0.50, 0.03, 1.00},
+    {0.05, 0.10, 0.40, 0.00, 0.40, 0.04, 2.00},
+    {0.10, 0.02, 0.60, 0.25, 0.30, 0.20, 0.10},
+    {0.05, 0.05, 0.30, -0.25, 0.60, 0.03, 5.50},
+    {0.06, 0.05, 0.30, -0.25, 0.60, 0.03, 10.00} };
+  static private final BiFunction<DoubleAad[], TapeAad, DoubleAad> SABR = (d, tape) ->
+      SabrVolatilityFormula.volatility_Aad_Automatic(d[0], d[1], d[2], d[3], d[4], d[5], d[6], tape);
+
+  @Test
+  public void replayFunction() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = DoubleAad.input(2.0d, tape);
+    DoubleAad[] output = TapeUtilsTest.recordFunction(tape, x, y);
+    tape.freeze();
+    double[] value = new double[tape.size()];
+    double[] valueBar = new double[tape.size()];
+    double[] derivatives = new double[2];
+    double[][] inputs = { {0.5d, 2.0d}, {1.5d, 0.75d}, {-0.25d, 3.0d} };
+    for (double[] input : inputs) {
+      assertTrue("TapeReplay: function",
+          TapeReplay.replay(tape, output[0].tapeIndex(), input, value, valueBar, derivatives));
+      double expectedValue = Math.sin(input[0]) * Math.exp(input[1]) + input[0] / input[1];
+      assertEquals("TapeReplay: function", expectedValue, value[output[0].tapeIndex()], TOLERANCE_DOUBLE);
+      ArrayAsserts.assertArrayEquals("TapeReplay: function",
+          TapeUtilsTest.functionDerivatives(input[0], input[1]), derivatives, TOLERANCE_DOUBLE);
+    }
+  }
+
+  @Test
+  public void replaySabr() {
+    TapeReplay replay = new TapeReplay(SABR, SABR_DATA[0]);
+    double[] derivatives = new double[7];
+    for (double[] data : SABR_DATA) {
+      TapeAad tape = new TapeAad();
+      DoubleAad[] dataAad = new DoubleAad[7];
+      for (int loopi = 0; loopi < 7; loopi++) {
+        dataAad[loopi] = DoubleAad.input(data[loopi], tape);
+      }
+      DoubleAad volatility = SABR.apply(dataAad, tape);
+      double[] expected = TapeUtils.interpret(tape);
+      double value = replay.evaluate(data, derivatives);
+      assertEquals("TapeReplay: SABR", volatility.value(), value, TOLERANCE_DOUBLE);
+      ArrayAsserts.assertArrayEquals("TapeReplay: SABR", expected, derivatives, TOLERANCE_DOUBLE);
+    }
+    assertEquals("TapeReplay: SABR", 1, replay.getNbRecords());
+    int nbGuards = 0;
+    for (int loope = 0; loope < replay.getTape().size(); loope++) {
+      if (replay.getTape().getOperationType(loope) == OperationTypeAad.GUARD_ABS) {
+        nbGuards++;
+      }
+    }
+    assertEquals("TapeReplay: SABR", 1, nbGuards);
+  }
+
+  @Test
+  public void replaySabrBranchFlip() {
+    TapeReplay replay = new TapeReplay(SABR, SABR_DATA[3]);
+    double[] atm = SABR_DATA[3].clone();
+    atm[5] = atm[0]; // At-the-money: z = 0, other branch
+    double[] derivatives = new double[7];
+    TapeAad tape = new TapeAad();
+    assertFalse("TapeReplay: branch", TapeReplay.forward(replay.getTape(), replay.getTape().size() - 1, atm,
+        new double[replay.getTape().size()]));
+    DoubleAad[] dataAad = new DoubleAad[7];
+    for (int loopi = 0; loopi < 7; loopi++) {
+      dataAad[loopi] = DoubleAad.input(atm[loopi], tape);
+    }
+    DoubleAad volatility = SABR.apply(dataAad, tape);
+    double[] expected = TapeUtils.interpret(tape);
+    double valueAtm = replay.evaluate(atm, derivatives);
+    assertEquals("TapeReplay: branch", 2, replay.getNbRecords());
+    assertEquals("TapeReplay: branch", volatility.value(), valueAtm, TOLERANCE_DOUBLE);
+    ArrayAsserts.assertArrayEquals("TapeReplay: branch", expected, derivatives, TOLERANCE_DOUBLE);
+    replay.evaluate(atm, derivatives);
+    replay.evaluate(SABR_DATA[3], derivatives);
+    replay.evaluate(atm, derivatives);
+    assertEquals("TapeReplay: branch", 2, replay.getNbRecords());
+    assertEquals("TapeReplay: branch", 2, replay.getNbTapes());
+  }
+
+  @Test
+  public void replayAffine() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = DoubleAad.input(2.0d, tape);
+    DoubleAad a = MathAad.plus(MathAad.multipliedBy(MathAad.multipliedBy(x, -1.0d, tape), 2.0d, tape), 1.0d, tape);
+    DoubleAad b = MathAad.multipliedBy(a, MathAad.plus(y, 3.0d, tape), tape);
+    tape.freeze();
+    int[] outputIndices = {b.tapeIndex()};
+    TapeAad fused = TapeOptimizer.fuseChains(tape, outputIndices);
+    assertEquals("TapeReplay: affine", 5, fused.size());
+    double[] inputs = {1.5d, -0.5d};
+    double[] d = new double[2];
+    double[] value = new double[tape.size()];
+    double[] valueBar = new double[tape.size()];
+    assertTrue("TapeReplay: affine", TapeReplay.replay(fused, outputIndices[0], inputs, value, valueBar, d));
+    assertEquals("TapeReplay: affine", (1.0d - 2.0d * 1.5d) * 2.5d, value[outputIndices[0]], TOLERANCE_DOUBLE);
+    ArrayAsserts.assertArrayEquals("TapeReplay: affine", new double[] {-2.0d * 2.5d, 1.0d - 2.0d * 1.5d}, d,
+        TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void replayGuardAbs() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    assertEquals("TapeReplay: guard", -1, MathAad.compareAbs(x, 1.0d, tape));
+    DoubleAad y = MathAad.sin(x, tape);
+    tape.freeze();
+    assertTrue("TapeReplay: guard", tape.getOperationType(1) == OperationTypeAad.GUARD_ABS);
+    double[] value = new double[tape.size()];
+    assertTrue("TapeReplay: guard", TapeReplay.forward(tape, y.tapeIndex(), new double[] {-0.75d}, value));
+    assertEquals("TapeReplay: guard", Math.sin(-0.75d), value[y.tapeIndex()], TOLERANCE_DOUBLE);
+    assertFalse("TapeReplay: guard", TapeReplay.forward(tape, y.tapeIndex(), new double[] {1.5d}, value));
+    assertFalse("TapeReplay: guard", TapeReplay.forward(tape, y.tapeIndex(), new double[] {-1.5d}, value));
+    double[] gradient = new double[1];
+    TapeKernel kernel = TapeCompiler.compile(tape, y.tapeIndex());
+    assertEquals("TapeReplay: guard", Math.sin(-0.75d), kernel.valueAndGradient(new double[] {-0.75d}, gradient),
+        TOLERANCE_DOUBLE);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void replayManual() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    int index = tape.addManualEntry(1.0d, new int[] {x.tapeIndex()}, new double[] {2.0d});
+    tape.freeze();
+    TapeReplay.forward(tape, index, new double[] {1.0d}, new double[tape.size()]);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void replayNotFrozen() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(0.5d, tape);
+    DoubleAad y = MathAad.sin(x, tape);
+    TapeReplay.forward(tape, y.tapeIndex(), new double[] {1.0d}, new double[tape.size()]);
+  }
+
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2014 - present by Marc Henrard
+ */
+package marc.henrard.book.algorithmicdifferentiation.tape;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.util.Arrays;
+
+import marc.henrard.book.algorithmicdifferentiation.finance.formula.BlackFormula;
+import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
+import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
+
+import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
+
+/**
+ * Tests related to {@link TapeTwoPhase}.
+ */
+public class TapeTwoPhaseTest {
+
+  /* The tolerance for the comparison of operations on doubles. */
+  static private final double TOLERANCE_DOUBLE = 1.0E-10;
+  static private final int NB_TRADES = 30;
+  static private final int NB_BUCKETS = 3;
+  // forward, rate, volatility, expiry
+  static private final double[] MARKET = {0.05, 0.02, 0.20, 2.5};
+
+  @Test
+  public void twoPhaseVersusFullSweeps() {
+    for (boolean partials : new boolean[] {false, true}) {
+      TapeAad tape = new TapeAad(16, partials);
+      DoubleAad[] market = market(tape);
+      int marketMark = tape.mark();
+      int[] tradeMarks = new int[NB_TRADES];
+      DoubleAad[] outputs = new DoubleAad[NB_TRADES];
+      int[] buckets = new int[NB_TRADES];
+      for (int loopt = 0; loopt < NB_TRADES; loopt++) {
+        tradeMarks[loopt] = tape.mark();
+        outputs[loopt] = trade(loopt, market, tape);
+        buckets[loopt] = (loopt * 7) % NB_BUCKETS;
+      }
+      tape.freeze();
+      TapeTwoPhase twoPhase = new TapeTwoPhase(tape, marketMark);
+      assertEquals("TapeTwoPhase: market inputs", MARKET.length, twoPhase.getNbMarketInputs());
+      // Per trade
+      double[] workspace = new double[tape.size()];
+      for (int loopt = 0; loopt < NB_TRADES; loopt++) {
+        double[] expected = TapeUtils.interpret(tape, outputs[loopt].tapeIndex(), new double[tape.size()]);
+        double[] computed = twoPhase.interpretTrade(tradeMarks[loopt], outputs[loopt].tapeIndex(), workspace);
+        ArrayAsserts.assertArrayEquals("TapeTwoPhase: trade", new double[] {expected[MARKET.length + loopt]},
+            computed, TOLERANCE_DOUBLE);
+      }
+      // Aggregated
+      double[] weights = new double[NB_TRADES];
+      Arrays.fill(weights, 1.0d);
+      double[] expectedTotal = TapeUtils.interpret(tape, outputs, weights);
+      double[][] total = twoPhase.interpretMarket(new double[][] {workspace});
+      ArrayAsserts.assertArrayEquals("TapeTwoPhase: aggregated", Arrays.copyOf(expectedTotal, MARKET.length),
+          total[0], TOLERANCE_DOUBLE);
+      // Bucketed
+      double[][] bucketed = twoPhase.interpret(tradeMarks, outputIndices(outputs), buckets, NB_BUCKETS);
+      assertEquals("TapeTwoPhase: bucketed", NB_BUCKETS, bucketed.length);
+      for (int loopb = 0; loopb < NB_BUCKETS; loopb++) {
+        for (int loopt = 0; loopt < NB_TRADES; loopt++) {
+          weights[loopt] = (buckets[loopt] == loopb) ? 1.0d : 0.0d;
+        }
+        double[] expectedBucket = TapeUtils.interpret(tape, outputs, weights);
+        ArrayAsserts.assertArrayEquals("TapeTwoPhase: bucketed", Arrays.copyOf(expectedBucket, MARKET.length),
+            bucketed[loopb], TOLERANCE_DOUBLE);
+      }
+    }
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void notFrozen() {
+    TapeAad tape = new TapeAad();
+    market(tape);
+    new TapeTwoPhase(tape, tape.mark());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void tradeInMarket() {
+    TapeAad tape = new TapeAad();
+    DoubleAad[] market = market(tape);
+    int marketMark = tape.mark();
+    DoubleAad output = trade(0, market, tape);
+    tape.freeze();
+    new TapeTwoPhase(tape, marketMark).interpretTrade(marketMark - 1, output.tapeIndex(), new double[tape.size()]);
+  }
+
+  /* Records the market: the inputs, the numeraire, the adjusted volatility and a reference price. */
+  private static DoubleAad[] market(TapeAad tape) {
+    DoubleAad[] inputs = new DoubleAad[MARKET.length];
+    for (int loopi = 0; loopi < MARKET.length; loopi++) {
+      inputs[loopi] = DoubleAad.input(MARKET[loopi], tape);
+    }
+    DoubleAad numeraire = MathAad.exp(MathAad.multipliedBy(MathAad.multipliedBy(inputs[1], inputs[3], tape),
+        -1.0d, tape), tape);
+    DoubleAad volatility = MathAad.sqrt(MathAad.plus(MathAad.multipliedBy(inputs[2], inputs[2], tape), 1.0E-4,
+        tape), tape);
+    DoubleAad reference = BlackFormula.price_Aad_Automatic2(inputs[0], volatility, numeraire, inputs[0], inputs[3],
+        true, tape);
+    return new DoubleAad[] {inputs[0], numeraire, volatility, inputs[3], reference};
+  }
+
+  /* The price of one trade, with its strike as input, plus a share of the reference price. */
+  private static DoubleAad trade(int tradeNumber, DoubleAad[] market, TapeAad tape) {
+    DoubleAad strike = DoubleAad.input(0.03d + 0.002d * tradeNumber, tape);
+    boolean isCall = tradeNumber % 3 != 0;
+    DoubleAad price = (tradeNumber % 2 == 0) ?
+        BlackFormula.price_Aad_Automatic(market[0], market[2], market[1], strike, market[3], isCall, tape) :
+        BlackFormula.price_Aad_Automatic2(market[0], market[2], market[1], strike, market[3], isCall, tape);
+    return MathAad.plus(price, MathAad.multipliedBy(market[4], 0.01d, tape), tape);
+  }
+
+  /* The tape indices of the outputs. */
+  private static int[] outputIndices(DoubleAad[] outputs) {
+    int[] indices = new int[outputs.length];
+    for (int loopo = 0; loopo < outputs.length; loopo++) {
+      indices[loopo] = outputs[loopo].tapeIndex();
+    }
+    return indices;
+  }
+
+}
@@ -5,6 +5,13 @@ package marc.henrard.book.algorithmicdifferentiation.tape;
 
 import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import marc.henrard.book.algorithmicdifferentiation.mathad.MathAad;
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeAad;
 import marc.henrard.book.algorithmicdifferentiation.tape.TapeEntryAad;
@@ -13,6 +20,7 @@ import marc.henrard.book.algorithmicdifferentiation.type.DoubleAad;
 import marc.henrard.book.algorithmicdifferentiation.type.OperationTypeAad;
 
 import org.testng.annotations.Test;
+import org.testng.internal.junit.ArrayAsserts;
 
 /**
  * Tests related to {@link TapeUtils} and {@link DoubleAad}.
@@ -86,6 +94,123 @@ public class TapeUtilsTest {
     assertEquals("TapeUtils: interpret - ADDITION", tape.getEntry(2).getIndexArg2(), index2In);
   }
   
+  @Test
+  public void interpretWorkspaceRepeated() {
+    TapeAad tape = new TapeAad();
+    DoubleAad[] output = recordFunction(tape, 0.5d, 2.0d);
+    tape.freeze();
+    double[] expected = functionDerivatives(0.5d, 2.0d);
+    double[] workspace = new double[tape.size()];
+    for (int loopr = 0; loopr < 3; loopr++) {
+      double[] d = TapeUtils.interpret(tape, output[0].tapeIndex(), workspace);
+      ArrayAsserts.assertArrayEquals("TapeUtils: interpret - workspace", expected, d, TOLERANCE_DOUBLE);
+    }
+    double[] dIntermediate = TapeUtils.interpret(tape, output[1].tapeIndex(), workspace);
+    ArrayAsserts.assertArrayEquals("TapeUtils: interpret - workspace", 
+        new double[] {Math.cos(0.5d) * Math.exp(2.0d), Math.sin(0.5d) * Math.exp(2.0d)}, dIntermediate, TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void interpretWorkspaceConcurrent() throws Exception {
+    TapeAad tape = new TapeAad();
+    DoubleAad[] output = recordFunction(tape, 0.5d, 2.0d);
+    tape.freeze();
+    double[] expected = functionDerivatives(0.5d, 2.0d);
+    int nbThreads = 4;
+    ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+    try {
+      List<Future<double[]>> results = new ArrayList<>();
+      for (int loopt = 0; loopt < nbThreads; loopt++) {
+        results.add(executor.submit(() -> {
+          double[] workspace = new double[tape.size()];
+          double[] d = null;
+          for (int loopr = 0; loopr < 1000; loopr++) {
+            d = TapeUtils.interpret(tape, output[0].tapeIndex(), workspace);
+          }
+          return d;
+        }));
+      }
+      for (Future<double[]> result : results) {
+        ArrayAsserts.assertArrayEquals("TapeUtils: interpret - concurrent", expected, result.get(), TOLERANCE_DOUBLE);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void frozenAddEntry() {
+    TapeAad tape = new TapeAad();
+    DoubleAad x = DoubleAad.input(1.0d, tape);
+    tape.freeze();
+    MathAad.sin(x, tape);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void frozenInterpretInTape() {
+    TapeAad tape = new TapeAad();
+    recordFunction(tape, 0.5d, 2.0d);
+    tape.freeze();
+    TapeUtils.interpret(tape);
+  }
+
+  @Test
+  public void interpretRecordedPartials() {
+    TapeAad tape = new TapeAad(16, true);
+    DoubleAad[] output = recordFunction(tape, 0.5d, 2.0d);
+    assertTrue("TapeUtils: interpret - partials", tape.isRecordingPartials());
+    assertEquals("TapeUtils: interpret - partials", Math.cos(0.5d), tape.getPartialArg1(2), TOLERANCE_DOUBLE);
+    double[] d = TapeUtils.interpret(tape);
+    ArrayAsserts.assertArrayEquals("TapeUtils: interpret - partials", functionDerivatives(0.5d, 2.0d), d, TOLERANCE_DOUBLE);
+    double[][] jacobian = TapeUtils.interpretVector(tape, new int[] {output[0].tapeIndex(), output[1].tapeIndex()});
+    ArrayAsserts.assertArrayEquals("TapeUtils: interpret - partials", 
+        functionDerivatives(0.5d, 2.0d), jacobian[0], TOLERANCE_DOUBLE);
+    ArrayAsserts.assertArrayEquals("TapeUtils: interpret - partials", 
+        new double[] {Math.cos(0.5d) * Math.exp(2.0d), Math.sin(0.5d) * Math.exp(2.0d)}, jacobian[1], TOLERANCE_DOUBLE);
+  }
+
+  @Test
+  public void interpretRecordedPartialsEntry() {
+    TapeAad tape = new TapeAad(16, true);
+    int index1 = tape.addEntry(new TapeEntryAad(OperationTypeAad.INPUT, 3.0d));
+    int index2 = tape.addEntry(new TapeEntryAad(OperationTypeAad.INPUT, 4.0d));
+    tape.addEntry(new TapeEntryAad(OperationTypeAad.MULTIPLICATION, index1, index2, 12.0d));
+    assertEquals("TapeUtils: interpret - partials", 4.0d, tape.getPartialArg1(2), TOLERANCE_DOUBLE);
+    assertEquals("TapeUtils: interpret - partials", 3.0d, tape.getPartialArg2(2), TOLERANCE_DOUBLE);
+    double[] d = TapeUtils.interpret(tape);
+    ArrayAsserts.assertArrayEquals("TapeUtils: interpret - partials", new double[] {4.0d, 3.0d}, d, TOLERANCE_DOUBLE);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void partialsNotRecorded() {
+    TapeAad tape = new TapeAad();
+    recordFunction(tape, 0.5d, 2.0d);
+    tape.getPartialArg1(2);
+  }
+
+  /**
+   * Records the function f(x, y) = sin(x) * exp(y) + x / y on a tape. 
+   * @return The output and an intermediary value (sin(x) * exp(y)).
+   */
+  static DoubleAad[] recordFunction(TapeAad tape, double x, double y) {
+    return recordFunction(tape, DoubleAad.input(x, tape), DoubleAad.input(y, tape));
+  }
+
+  /**
+   * Records the function f(x, y) = sin(x) * exp(y) + x / y on a tape for given tape variables. 
+   * @return The output and an intermediary value (sin(x) * exp(y)).
+   */
+  static DoubleAad[] recordFunction(TapeAad tape, DoubleAad xAad, DoubleAad yAad) {
+    DoubleAad product = MathAad.multipliedBy(MathAad.sin(xAad, tape), MathAad.exp(yAad, tape), tape);
+    DoubleAad output = MathAad.plus(product, MathAad.dividedBy(xAad, yAad, tape), tape);
+    return new DoubleAad[] {output, product};
+  }
+
+  /** The derivatives of the function f(x, y) = sin(x) * exp(y) + x / y. */
+  static double[] functionDerivatives(double x, double y) {
+    return new double[] {Math.cos(x) * Math.exp(y) + 1.0d / y, Math.sin(x) * Math.exp(y) - x / (y * y)};
+  }
+  
   //TODO: add tests for other operations
   
 }